@@ -8,9 +8,16 @@ import org.ourgrid.virt.model.CPUStats;
 import org.ourgrid.virt.model.DiskStats;
 import org.ourgrid.virt.model.ExecutionResult;
 import org.ourgrid.virt.model.HypervisorType;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.VirtualMachine;
 import org.ourgrid.virt.model.VirtualMachineStatus;
+import org.ourgrid.virt.stats.OperationStats;
+import org.ourgrid.virt.stats.OperationStats.Timing;
+import org.ourgrid.virt.stats.PrometheusExporter;
+import org.ourgrid.virt.stats.StatsSampler;
+import org.ourgrid.virt.stats.StatsSink;
+import org.ourgrid.virt.strategies.HostCapabilities;
 import org.ourgrid.virt.strategies.HypervisorStrategyFactory;
 
 
@@ -24,8 +31,14 @@ import org.ourgrid.virt.strategies.HypervisorStrategyFactory;
  */
 public class OurVirt {
 
+	private static final long DEFAULT_SAMPLING_PERIOD = 10000;
+	private static final int DEFAULT_SAMPLING_CAPACITY = 360;
+	
 	private Map<String, VirtualMachine> vMCache = new HashMap<String, VirtualMachine>();
 	private HypervisorStrategyFactory factory = new HypervisorStrategyFactory();
+	private StatsSampler sampler;
+	private OperationStats operationStats = new OperationStats();
+	private PrometheusExporter exporter;
 	
 	/**
 	 * Registers a new virtual machine with the specified name and configuration in OurVirt volatile memory.
@@ -57,7 +70,13 @@ public class OurVirt {
 	 * @see OurVirt#register(String, Map)
 	 */
 	public void create(HypervisorType hypervisor, String vmName) throws Exception {
-		factory.get(hypervisor).create(getRegisteredVM(vmName));
+		Timing timing = operationStats.start(OperationStats.CREATE);
+		try {
+			factory.get(hypervisor).create(getRegisteredVM(vmName));
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 	
 	/**
@@ -68,7 +87,13 @@ public class OurVirt {
 	 * or if some problem occurs while trying to start the virtual machine
 	 */
 	public void start(HypervisorType hypervisor, String vmName) throws Exception {
-		factory.get(hypervisor).start(getRegisteredVM(vmName));
+		Timing timing = operationStats.start(OperationStats.START);
+		try {
+			factory.get(hypervisor).start(getRegisteredVM(vmName));
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 
 	private VirtualMachine getRegisteredVM(String vmName) throws Exception{
@@ -87,7 +112,13 @@ public class OurVirt {
 	 * or if some problem occurs while trying to stop the virtual machine
 	 */
 	public void stop(HypervisorType hypervisor, String vmName) throws Exception {
-		factory.get(hypervisor).stop(getRegisteredVM(vmName));
+		Timing timing = operationStats.start(OperationStats.STOP);
+		try {
+			factory.get(hypervisor).stop(getRegisteredVM(vmName));
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 	
 	/**
@@ -98,7 +129,13 @@ public class OurVirt {
 	 * or if some problem occurs while trying to reboot the virtual machine
 	 */
 	public void reboot(HypervisorType hypervisor, String vmName) throws Exception {
-		factory.get(hypervisor).reboot(getRegisteredVM(vmName));
+		Timing timing = operationStats.start(OperationStats.REBOOT);
+		try {
+			factory.get(hypervisor).reboot(getRegisteredVM(vmName));
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 
 	/**
@@ -127,7 +164,15 @@ public class OurVirt {
 	 * or if some problem occurs while trying to execute the command within the virtual machine
 	 */
 	public ExecutionResult exec(HypervisorType hypervisor, String vmName, String command) throws Exception {
-		return factory.get(hypervisor).exec(getRegisteredVM(vmName), command);
+		Timing timing = operationStats.start(OperationStats.EXEC);
+		try {
+			ExecutionResult executionResult = factory.get(hypervisor).exec(
+					getRegisteredVM(vmName), command);
+			timing.succeeded();
+			return executionResult;
+		} finally {
+			timing.record();
+		}
 	}
 	
 	/**
@@ -140,7 +185,13 @@ public class OurVirt {
 	 */
 	public void takeSnapshot(HypervisorType hypervisor, 
 			String vmName, String snapshotName) throws Exception {
-		factory.get(hypervisor).takeSnapshot(getRegisteredVM(vmName), snapshotName);
+		Timing timing = operationStats.start(OperationStats.TAKE_SNAPSHOT);
+		try {
+			factory.get(hypervisor).takeSnapshot(getRegisteredVM(vmName), snapshotName);
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 	
 	/**
@@ -153,7 +204,13 @@ public class OurVirt {
 	 */
 	public void restoreSnapshot(HypervisorType hypervisor, 
 			String vmName, String snapshotName) throws Exception {
-		factory.get(hypervisor).restoreSnapshot(getRegisteredVM(vmName), snapshotName);
+		Timing timing = operationStats.start(OperationStats.RESTORE_SNAPSHOT);
+		try {
+			factory.get(hypervisor).restoreSnapshot(getRegisteredVM(vmName), snapshotName);
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 	
 	/**
@@ -161,14 +218,22 @@ public class OurVirt {
 	 * <b>must be</b> called in order to make the virtual machine available for use again,
 	 * although its configuration still remains in the OurVirt volatile memory.
 	 * This means that the <i>register</i> method <b>is not</b> needed again during the current execution.
+	 * The virtual machine is no longer sampled and its collected statistics are discarded.
 	 * @param hypervisor the hypervisor used to manage the virtual machine
 	 * @param vmName the name identifier of the virtual machine
 	 * @throws Exception if the hypervisor does not support this method
 	 * or if some problem occurs while trying to destroy the virtual machine
 	 */
 	public void destroy(HypervisorType hypervisor, String vmName) throws Exception {
-		factory.get(hypervisor).destroy(getRegisteredVM(vmName));
-		vMCache.remove(vmName);
+		Timing timing = operationStats.start(OperationStats.DESTROY);
+		try {
+			factory.get(hypervisor).destroy(getRegisteredVM(vmName));
+			vMCache.remove(vmName);
+			discardSamples(vmName);
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 	
 	/**
@@ -193,6 +258,24 @@ public class OurVirt {
 		return factory.get(hypervisor).isSupported();
 	}
 	
+	/**
+	 * Returns the capabilities of the host, such as KVM and hugepages support,
+	 * CPU flags and the versions of the installed hypervisors. They are probed
+	 * once and cached, see {@link #refreshHostCapabilities()}.
+	 * @return the capabilities of the host
+	 */
+	public HostCapabilities getHostCapabilities() {
+		return HostCapabilities.getInstance();
+	}
+	
+	/**
+	 * Discards the cached host capabilities, so that they are probed again on their next use.
+	 * Should be called after installing a hypervisor or changing the host configuration.
+	 */
+	public void refreshHostCapabilities() {
+		HostCapabilities.getInstance().refresh();
+	}
+	
 	/**
 	 * Lists the existing snapshots of the registered virtual machine.
 	 * This method only lists the snapshots which were taken by OurVirt.
@@ -318,6 +401,18 @@ public class OurVirt {
 		return factory.get(hypervisor).getNetworkStats(getRegisteredVM(vmName));
 	}
 	
+	/**
+	 * @param hypervisor the hypervisor used to manage the virtual machine
+	 * @param vmName the name identifier of the virtual machine
+	 * @return the Memory Statistics for the specified virtual machine, 
+	 * or <b>null</b> if the hypervisor does not provide them.
+	 * @throws Exception if some problem occurs while trying to get the Memory Statistics for
+	 * the specified virtual machine.
+	 */
+	public MemoryStats getMemoryStats(HypervisorType hypervisor, String vmName) throws Exception {
+		return factory.get(hypervisor).getMemoryStats(getRegisteredVM(vmName));
+	}
+	
 	/**
 	 * @param virtualMachine the related virtual machine
 	 * @return the Disk Statistics for the specified virtual machine process.
@@ -329,6 +424,110 @@ public class OurVirt {
 		return factory.get(hypervisor).getDiskStats(getRegisteredVM(vmName));
 	}
 	
+	/**
+	 * Starts collecting the statistics of the registered virtual machine in background.
+	 * The sampling period (in ms) and the number of samples kept are set by the 
+	 * <i>stats.period</i> and <i>stats.capacity</i> system properties.
+	 * @param hypervisor the hypervisor used to manage the virtual machine
+	 * @param vmName the name identifier of the virtual machine
+	 * @throws Exception if the virtual machine is not registered
+	 * @see OurVirt#getSampler()
+	 */
+	public void startSampling(HypervisorType hypervisor, String vmName) throws Exception {
+		getSampler().add(factory.get(hypervisor), getRegisteredVM(vmName));
+	}
+	
+	/**
+	 * Stops collecting the statistics of the virtual machine and discards the collected ones.
+	 * @param vmName the name identifier of the virtual machine
+	 */
+	public void stopSampling(String vmName) {
+		getSampler().remove(vmName);
+	}
+	
+	private synchronized void discardSamples(String vmName) {
+		if (sampler != null) {
+			sampler.remove(vmName);
+		}
+	}
+	
+	/**
+	 * @return the sampler which holds the statistics collected in background
+	 */
+	public synchronized StatsSampler getSampler() {
+		if (sampler == null) {
+			sampler = new StatsSampler(Long.getLong("stats.period", DEFAULT_SAMPLING_PERIOD), 
+					Integer.getInteger("stats.capacity", DEFAULT_SAMPLING_CAPACITY));
+		}
+		return sampler;
+	}
+	
+	/**
+	 * Adds a sink which will receive the statistics collected in background.
+	 * @param sink the sink to be added
+	 * @see StatsSampler#addSink(StatsSink)
+	 */
+	public void addStatsSink(StatsSink sink) {
+		getSampler().addSink(sink);
+	}
+	
+	/**
+	 * Removes a sink added with <i>addStatsSink</i> and closes it.
+	 * @param sink the sink to be removed
+	 */
+	public void removeStatsSink(StatsSink sink) {
+		getSampler().removeSink(sink);
+	}
+	
+	/**
+	 * @return the counts and durations of the virtual machine operations run
+	 * through this instance, such as <i>start</i> or <i>takeSnapshot</i>
+	 */
+	public OperationStats getOperationStats() {
+		return operationStats;
+	}
+	
+	/**
+	 * Serves the statistics collected in background and the operation statistics 
+	 * in the Prometheus text format, at <i>http://localhost:port/metrics</i>.
+	 * Only virtual machines being sampled are exposed.
+	 * @param port the port to listen to, on the loopback interface
+	 * @throws Exception if the port cannot be bound
+	 * @see OurVirt#startSampling(HypervisorType, String)
+	 */
+	public void startMetricsEndpoint(int port) throws Exception {
+		startMetricsEndpoint(null, port);
+	}
+	
+	/**
+	 * Serves the metrics of <i>startMetricsEndpoint(int)</i> on the given interface.
+	 * They have no authentication, so other interfaces than the loopback one should 
+	 * only be used on trusted networks.
+	 * @param bindAddress the address of the interface to listen on, 0.0.0.0 for all of them,
+	 * or <b>null</b> for the loopback interface
+	 * @param port the port to listen to
+	 * @throws Exception if the port cannot be bound
+	 */
+	public synchronized void startMetricsEndpoint(String bindAddress, int port) throws Exception {
+		if (exporter == null) {
+			exporter = new PrometheusExporter(getSampler(), operationStats);
+		}
+		if (bindAddress == null) {
+			exporter.start(port);
+		} else {
+			exporter.start(bindAddress, port);
+		}
+	}
+	
+	/**
+	 * Stops serving the metrics started by <i>startMetricsEndpoint</i>.
+	 */
+	public synchronized void stopMetricsEndpoint() {
+		if (exporter != null) {
+			exporter.stop();
+		}
+	}
+	
 	public void attachDevice(HypervisorType hypervisor, String vmName, String localDevicePath) throws Exception {
 		factory.get(hypervisor).attachDevice(getRegisteredVM(vmName), localDevicePath);
 	}
@@ -338,7 +537,13 @@ public class OurVirt {
 	}
 	
 	public void clone(HypervisorType hypervisor, String sourceDevice, String destDevice) throws Exception {
-		factory.get(hypervisor).clone(sourceDevice, destDevice);
+		Timing timing = operationStats.start(OperationStats.CLONE);
+		try {
+			factory.get(hypervisor).clone(sourceDevice, destDevice);
+			timing.succeeded();
+		} finally {
+			timing.record();
+		}
 	}
 	
 	public String getConsoleOutput(HypervisorType hypervisor, String vmName) throws Exception {
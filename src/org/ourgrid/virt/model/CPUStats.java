@@ -1,9 +1,18 @@
 package org.ourgrid.virt.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class CPUStats {
 	
 	private long timestamp;
+	private long nanoTime;
 	private long cpuTime;
+	private long userTime;
+	private long systemTime;
+	private long guestTime;
+	private List<ThreadCPUStats> threads = new ArrayList<ThreadCPUStats>();
+	private List<VCpuStats> vcpus = new ArrayList<VCpuStats>();
 	
 	public CPUStats() {}
 	
@@ -13,10 +22,83 @@ public class CPUStats {
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
 	}
+	/**
+	 * @return the monotonic time of the sample, as given by {@link System#nanoTime()}.
+	 * It is only meaningful when compared to other samples taken by the same JVM,
+	 * and is 0 if unknown.
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+	public void setNanoTime(long nanoTime) {
+		this.nanoTime = nanoTime;
+	}
+	/**
+	 * @return the total cpu time (user + system), in ms
+	 */
 	public long getCpuTime() {
 		return cpuTime;
 	}
 	public void setCpuTime(long cpuTime) {
 		this.cpuTime = cpuTime;
 	}
+	/**
+	 * @return the cpu time spent in user mode, in ms. 
+	 * It includes the time spent running guest code.
+	 */
+	public long getUserTime() {
+		return userTime;
+	}
+	public void setUserTime(long userTime) {
+		this.userTime = userTime;
+	}
+	/**
+	 * @return the cpu time spent in kernel mode, in ms
+	 */
+	public long getSystemTime() {
+		return systemTime;
+	}
+	public void setSystemTime(long systemTime) {
+		this.systemTime = systemTime;
+	}
+	/**
+	 * @return the cpu time spent running guest code (e.g. KVM vCPUs), in ms
+	 */
+	public long getGuestTime() {
+		return guestTime;
+	}
+	public void setGuestTime(long guestTime) {
+		this.guestTime = guestTime;
+	}
+	/**
+	 * @return the breakdown per thread of the hypervisor process, 
+	 * empty if it is not available
+	 */
+	public List<ThreadCPUStats> getThreads() {
+		return threads;
+	}
+	public void setThreads(List<ThreadCPUStats> threads) {
+		this.threads = threads;
+	}
+	/**
+	 * @return the scheduling statistics of each vCPU thread, 
+	 * empty if they are not available
+	 */
+	public List<VCpuStats> getVcpus() {
+		return vcpus;
+	}
+	public void setVcpus(List<VCpuStats> vcpus) {
+		this.vcpus = vcpus;
+	}
+	/**
+	 * @return the time the vCPU threads were runnable but waited on a host run queue,
+	 * summed over all vCPUs, in ms
+	 */
+	public long getRunDelay() {
+		long runDelay = 0;
+		for (VCpuStats vcpu : vcpus) {
+			runDelay += vcpu.getRunDelay();
+		}
+		return runDelay;
+	}
 }
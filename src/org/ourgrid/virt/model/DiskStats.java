@@ -5,6 +5,7 @@ public class DiskStats {
 	private String deviceName;
 	
 	private long timestamp;
+	private long nanoTime;
 	private long readTotalTime;
 	private long readOps;
 	private long readBytes;
@@ -15,6 +16,9 @@ public class DiskStats {
 	
 	public DiskStats() {}
 	
+	/**
+	 * @return the total time spent on reads, in microseconds
+	 */
 	public long getReadTotalTime() {
 		return readTotalTime;
 	}
@@ -33,6 +37,9 @@ public class DiskStats {
 	public void setReadBytes(long readBytes) {
 		this.readBytes = readBytes;
 	}
+	/**
+	 * @return the total time spent on writes, in microseconds
+	 */
 	public long getWriteTotalTime() {
 		return writeTotalTime;
 	}
@@ -67,4 +74,17 @@ public class DiskStats {
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
 	}
+
+	/**
+	 * @return the monotonic time of the sample, as given by {@link System#nanoTime()}.
+	 * It is only meaningful when compared to other samples taken by the same JVM,
+	 * and is 0 if unknown.
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	public void setNanoTime(long nanoTime) {
+		this.nanoTime = nanoTime;
+	}
 }
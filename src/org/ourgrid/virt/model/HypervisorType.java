@@ -2,6 +2,6 @@ package org.ourgrid.virt.model;
 
 public enum HypervisorType {
 
-	VBOX, VBOXSDK, VSERVER, QEMU
+	VBOX, VBOXSDK, VSERVER, QEMU, FAKE
 	
 }
@@ -0,0 +1,109 @@
+package org.ourgrid.virt.model;
+
+/**
+ * Memory usage of a virtual machine, in bytes. Host side values refer to the
+ * hypervisor process, guest side values are reported by the guest balloon 
+ * driver or additions. Values which are not available are {@link #NOT_AVAILABLE}.
+ */
+public class MemoryStats {
+	
+	public static final long NOT_AVAILABLE = -1;
+	
+	private long timestamp;
+	private long nanoTime;
+	
+	private long residentMemory = NOT_AVAILABLE;
+	private long proportionalMemory = NOT_AVAILABLE;
+	private long swappedMemory = NOT_AVAILABLE;
+	
+	private long balloonActual = NOT_AVAILABLE;
+	private long guestTotalMemory = NOT_AVAILABLE;
+	private long guestFreeMemory = NOT_AVAILABLE;
+	private long guestAvailableMemory = NOT_AVAILABLE;
+	private long guestCachedMemory = NOT_AVAILABLE;
+	
+	public MemoryStats() {}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+	/**
+	 * @return the monotonic time of the sample, as given by {@link System#nanoTime()}.
+	 * It is only meaningful when compared to other samples taken by the same JVM,
+	 * and is 0 if unknown.
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+	public void setNanoTime(long nanoTime) {
+		this.nanoTime = nanoTime;
+	}
+	/**
+	 * @return the resident set size (RSS) of the hypervisor process
+	 */
+	public long getResidentMemory() {
+		return residentMemory;
+	}
+	public void setResidentMemory(long residentMemory) {
+		this.residentMemory = residentMemory;
+	}
+	/**
+	 * @return the proportional set size (PSS) of the hypervisor process, 
+	 * where pages shared with other processes are divided among them
+	 */
+	public long getProportionalMemory() {
+		return proportionalMemory;
+	}
+	public void setProportionalMemory(long proportionalMemory) {
+		this.proportionalMemory = proportionalMemory;
+	}
+	/**
+	 * @return the memory of the hypervisor process swapped out by the host
+	 */
+	public long getSwappedMemory() {
+		return swappedMemory;
+	}
+	public void setSwappedMemory(long swappedMemory) {
+		this.swappedMemory = swappedMemory;
+	}
+	/**
+	 * @return the memory currently left to the guest by its balloon
+	 */
+	public long getBalloonActual() {
+		return balloonActual;
+	}
+	public void setBalloonActual(long balloonActual) {
+		this.balloonActual = balloonActual;
+	}
+	public long getGuestTotalMemory() {
+		return guestTotalMemory;
+	}
+	public void setGuestTotalMemory(long guestTotalMemory) {
+		this.guestTotalMemory = guestTotalMemory;
+	}
+	public long getGuestFreeMemory() {
+		return guestFreeMemory;
+	}
+	public void setGuestFreeMemory(long guestFreeMemory) {
+		this.guestFreeMemory = guestFreeMemory;
+	}
+	/**
+	 * @return the memory the guest can use without swapping, 
+	 * including the reclaimable caches
+	 */
+	public long getGuestAvailableMemory() {
+		return guestAvailableMemory;
+	}
+	public void setGuestAvailableMemory(long guestAvailableMemory) {
+		this.guestAvailableMemory = guestAvailableMemory;
+	}
+	public long getGuestCachedMemory() {
+		return guestCachedMemory;
+	}
+	public void setGuestCachedMemory(long guestCachedMemory) {
+		this.guestCachedMemory = guestCachedMemory;
+	}
+}
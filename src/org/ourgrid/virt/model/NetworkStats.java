@@ -4,6 +4,7 @@ public class NetworkStats {
 	
 	private String deviceName;
 	private long timestamp;
+	private long nanoTime;
 
 	private long receivedBytes;
 	private long receivedPackets;
@@ -171,4 +172,17 @@ public class NetworkStats {
 		this.timestamp = timestamp;
 	}
 
+	/**
+	 * @return the monotonic time of the sample, as given by {@link System#nanoTime()}.
+	 * It is only meaningful when compared to other samples taken by the same JVM,
+	 * and is 0 if unknown.
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	public void setNanoTime(long nanoTime) {
+		this.nanoTime = nanoTime;
+	}
+
 }
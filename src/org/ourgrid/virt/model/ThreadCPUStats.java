@@ -0,0 +1,53 @@
+package org.ourgrid.virt.model;
+
+/**
+ * CPU times of a single thread of the hypervisor process, 
+ * such as a QEmu vCPU or I/O thread.
+ */
+public class ThreadCPUStats {
+	
+	private int threadId;
+	private String name;
+	private long userTime;
+	private long systemTime;
+	private long guestTime;
+	
+	public ThreadCPUStats() {}
+	
+	public int getThreadId() {
+		return threadId;
+	}
+	public void setThreadId(int threadId) {
+		this.threadId = threadId;
+	}
+	/**
+	 * @return the thread name, e.g. <i>CPU 0/KVM</i> for QEmu vCPU threads
+	 */
+	public String getName() {
+		return name;
+	}
+	public void setName(String name) {
+		this.name = name;
+	}
+	public long getUserTime() {
+		return userTime;
+	}
+	public void setUserTime(long userTime) {
+		this.userTime = userTime;
+	}
+	public long getSystemTime() {
+		return systemTime;
+	}
+	public void setSystemTime(long systemTime) {
+		this.systemTime = systemTime;
+	}
+	public long getGuestTime() {
+		return guestTime;
+	}
+	public void setGuestTime(long guestTime) {
+		this.guestTime = guestTime;
+	}
+	public long getCpuTime() {
+		return userTime + systemTime;
+	}
+}
@@ -0,0 +1,57 @@
+package org.ourgrid.virt.model;
+
+/**
+ * Scheduling statistics of the host thread running a vCPU of a virtual machine,
+ * as accounted by the host scheduler in /proc/&lt;pid&gt;/task/&lt;tid&gt;/schedstat.
+ */
+public class VCpuStats {
+	
+	private int cpuIndex;
+	private int threadId;
+	private long cpuTime;
+	private long runDelay;
+	private long timeslices;
+	
+	public VCpuStats() {}
+	
+	public int getCpuIndex() {
+		return cpuIndex;
+	}
+	public void setCpuIndex(int cpuIndex) {
+		this.cpuIndex = cpuIndex;
+	}
+	public int getThreadId() {
+		return threadId;
+	}
+	public void setThreadId(int threadId) {
+		this.threadId = threadId;
+	}
+	/**
+	 * @return the time the vCPU thread spent on a host cpu, in ms
+	 */
+	public long getCpuTime() {
+		return cpuTime;
+	}
+	public void setCpuTime(long cpuTime) {
+		this.cpuTime = cpuTime;
+	}
+	/**
+	 * @return the time the vCPU thread was runnable but waited on a host run queue, 
+	 * in ms. From the guest point of view, this is stolen time.
+	 */
+	public long getRunDelay() {
+		return runDelay;
+	}
+	public void setRunDelay(long runDelay) {
+		this.runDelay = runDelay;
+	}
+	/**
+	 * @return the number of times the vCPU thread was scheduled on a host cpu
+	 */
+	public long getTimeslices() {
+		return timeslices;
+	}
+	public void setTimeslices(long timeslices) {
+		this.timeslices = timeslices;
+	}
+}
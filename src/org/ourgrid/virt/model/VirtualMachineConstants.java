@@ -22,12 +22,29 @@ public class VirtualMachineConstants {
 	
 	public static final String DISK_IMAGE_PATH = "diskimagepath";
 	
+	/**
+	 * Name of a registered virtual machine to create a linked clone from,
+	 * instead of attaching the disk image
+	 */
+	public static final String TEMPLATE = "template";
+	
+	/**
+	 * Snapshot of the template the clone is linked to,
+	 * defaults to the current snapshot of the template
+	 */
+	public static final String TEMPLATE_SNAPSHOT = "template.snapshot";
+	
 	public static final String PAE_ENABLED = "pae.enabled";
 	
 	/**
 	 * In seconds
 	 */
 	public static final String START_TIMEOUT = "starttimeout";
+	
+	/**
+	 * In seconds
+	 */
+	public static final String STOP_TIMEOUT = "stoptimeout";
 
 	public static final String IP = "ip";
 	
@@ -39,6 +56,12 @@ public class VirtualMachineConstants {
 	
 	public static final Integer DEFAULT_SSH_PORT = 22;
 	
+	/**
+	 * Either "ssh" (default) or "guestcontrol", to run commands through the
+	 * VirtualBox guest additions, which needs no guest networking
+	 */
+	public static final String EXEC_MODE = "exec.mode";
+	
 	public static final String BRIDGED_NET_MODE = "bridged";
 
 	public static final String USE_USB_HUB = "use.usb";
@@ -48,4 +71,51 @@ public class VirtualMachineConstants {
 	public static final String USE_CONSOLE_OUTPUT_FILE = "use.consoleoutputfile";
 
 	public static final String TAP_WINDOWS_DIR = "tapwindows.dir";
+
+	/**
+	 * Either "virtio" (default) or "legacy" (emulated IDE disk and e1000 NIC)
+	 */
+	public static final String DEVICE_MODEL = "devicemodel";
+
+	/**
+	 * One of none (default), writeback, writethrough, directsync or unsafe
+	 */
+	public static final String DISK_CACHE = "disk.cache";
+
+	/**
+	 * One of threads, native or io_uring
+	 */
+	public static final String DISK_AIO = "disk.aio";
+
+	public static final String DISK_IOTHREAD = "disk.iothread";
+
+	public static final String NET_QUEUES = "net.queues";
+
+	public static final String NET_VHOST = "net.vhost";
+
+	/**
+	 * One of ram (default), hugepages or memfd
+	 */
+	public static final String MEMORY_BACKEND = "memory.backend";
+
+	public static final String MEMORY_PREALLOC = "memory.prealloc";
+
+	public static final String MEMORY_SHARE = "memory.share";
+
+	public static final String HUGEPAGES_PATH = "memory.hugepages.path";
+
+	/**
+	 * Adds a virtio balloon device, enabled by default for virtio guests
+	 */
+	public static final String BALLOON = "balloon";
+
+	/**
+	 * Lets the balloon controller resize the guest memory
+	 */
+	public static final String BALLOON_AUTO = "balloon.auto";
+
+	/**
+	 * In MB, defaults to a quarter of the guest memory
+	 */
+	public static final String BALLOON_MIN_MEMORY = "balloon.minmemory";
 }
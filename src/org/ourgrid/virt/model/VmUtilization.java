@@ -0,0 +1,139 @@
+package org.ourgrid.virt.model;
+
+/**
+ * Resource usage rates of a virtual machine over an interval, derived from 
+ * two samples of its cumulative counters. Rates which could not be derived,
+ * because the related statistics are not available, are {@link Double#NaN}.
+ */
+public class VmUtilization {
+	
+	private long interval;
+	
+	private double cpuUsage = Double.NaN;
+	private double guestCpuUsage = Double.NaN;
+	private double cpuWait = Double.NaN;
+	
+	private double receivedBytesPerSecond = Double.NaN;
+	private double receivedPacketsPerSecond = Double.NaN;
+	private double transferredBytesPerSecond = Double.NaN;
+	private double transferredPacketsPerSecond = Double.NaN;
+	
+	private double readOpsPerSecond = Double.NaN;
+	private double readBytesPerSecond = Double.NaN;
+	private double readLatency = Double.NaN;
+	private double writeOpsPerSecond = Double.NaN;
+	private double writeBytesPerSecond = Double.NaN;
+	private double writeLatency = Double.NaN;
+	
+	public VmUtilization() {}
+	
+	/**
+	 * @return the length of the interval, in ms
+	 */
+	public long getInterval() {
+		return interval;
+	}
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+	/**
+	 * @return the cpu usage in percent, where 100 means one host core fully used
+	 */
+	public double getCpuUsage() {
+		return cpuUsage;
+	}
+	public void setCpuUsage(double cpuUsage) {
+		this.cpuUsage = cpuUsage;
+	}
+	/**
+	 * @return the share of the cpu usage spent running guest code, in percent
+	 */
+	public double getGuestCpuUsage() {
+		return guestCpuUsage;
+	}
+	public void setGuestCpuUsage(double guestCpuUsage) {
+		this.guestCpuUsage = guestCpuUsage;
+	}
+	/**
+	 * @return the time the vCPUs were runnable but waited for a host cpu, in percent
+	 * of one vCPU. High values mean the host is oversubscribed.
+	 */
+	public double getCpuWait() {
+		return cpuWait;
+	}
+	public void setCpuWait(double cpuWait) {
+		this.cpuWait = cpuWait;
+	}
+	public double getReceivedBytesPerSecond() {
+		return receivedBytesPerSecond;
+	}
+	public void setReceivedBytesPerSecond(double receivedBytesPerSecond) {
+		this.receivedBytesPerSecond = receivedBytesPerSecond;
+	}
+	public double getReceivedPacketsPerSecond() {
+		return receivedPacketsPerSecond;
+	}
+	public void setReceivedPacketsPerSecond(double receivedPacketsPerSecond) {
+		this.receivedPacketsPerSecond = receivedPacketsPerSecond;
+	}
+	public double getTransferredBytesPerSecond() {
+		return transferredBytesPerSecond;
+	}
+	public void setTransferredBytesPerSecond(double transferredBytesPerSecond) {
+		this.transferredBytesPerSecond = transferredBytesPerSecond;
+	}
+	public double getTransferredPacketsPerSecond() {
+		return transferredPacketsPerSecond;
+	}
+	public void setTransferredPacketsPerSecond(double transferredPacketsPerSecond) {
+		this.transferredPacketsPerSecond = transferredPacketsPerSecond;
+	}
+	/**
+	 * @return the read operations per second (read iops)
+	 */
+	public double getReadOpsPerSecond() {
+		return readOpsPerSecond;
+	}
+	public void setReadOpsPerSecond(double readOpsPerSecond) {
+		this.readOpsPerSecond = readOpsPerSecond;
+	}
+	public double getReadBytesPerSecond() {
+		return readBytesPerSecond;
+	}
+	public void setReadBytesPerSecond(double readBytesPerSecond) {
+		this.readBytesPerSecond = readBytesPerSecond;
+	}
+	/**
+	 * @return the average latency of the reads completed in the interval, in ms
+	 */
+	public double getReadLatency() {
+		return readLatency;
+	}
+	public void setReadLatency(double readLatency) {
+		this.readLatency = readLatency;
+	}
+	/**
+	 * @return the write operations per second (write iops)
+	 */
+	public double getWriteOpsPerSecond() {
+		return writeOpsPerSecond;
+	}
+	public void setWriteOpsPerSecond(double writeOpsPerSecond) {
+		this.writeOpsPerSecond = writeOpsPerSecond;
+	}
+	public double getWriteBytesPerSecond() {
+		return writeBytesPerSecond;
+	}
+	public void setWriteBytesPerSecond(double writeBytesPerSecond) {
+		this.writeBytesPerSecond = writeBytesPerSecond;
+	}
+	/**
+	 * @return the average latency of the writes completed in the interval, in ms
+	 */
+	public double getWriteLatency() {
+		return writeLatency;
+	}
+	public void setWriteLatency(double writeLatency) {
+		this.writeLatency = writeLatency;
+	}
+}
@@ -0,0 +1,115 @@
+package org.ourgrid.virt.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands samples over to a {@link StatsSink} through a bounded queue drained in
+ * batches by a writer thread. Offering a sample never blocks: when the sink falls
+ * behind and the queue is full, the sample is dropped and counted.
+ */
+class AsyncSinkWriter implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(AsyncSinkWriter.class);
+	private static final long POLL_TIMEOUT = 1000;
+	// Logs the first dropped sample, then one in this many
+	private static final long DROP_LOG_INTERVAL = 1000;
+
+	private final StatsSink sink;
+	private final BlockingQueue<StatsSample> queue;
+	private final int batchSize;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean closed;
+
+	/**
+	 * @param sink the sink to be written
+	 * @param queueSize the maximum number of samples waiting to be written
+	 * @param batchSize the maximum number of samples written at once
+	 */
+	AsyncSinkWriter(StatsSink sink, int queueSize, int batchSize) {
+		this.sink = sink;
+		this.queue = new ArrayBlockingQueue<StatsSample>(queueSize);
+		this.batchSize = batchSize;
+		this.thread = new Thread(this, "ourvirt-stats-sink-" + sink.getClass().getSimpleName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	StatsSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Queues a sample, dropping it if the queue is full.
+	 */
+	void offer(StatsSample sample) {
+		if (queue.offer(sample)) {
+			return;
+		}
+		long droppedCount = dropped.incrementAndGet();
+		if (droppedCount == 1 || droppedCount % DROP_LOG_INTERVAL == 0) {
+			LOGGER.warn("Stats sink " + sink.getClass().getSimpleName() 
+					+ " is falling behind, " + droppedCount + " samples dropped");
+		}
+	}
+
+	/**
+	 * @return the number of samples dropped because the queue was full
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void run() {
+		List<StatsSample> batch = new ArrayList<StatsSample>(batchSize);
+		while (!closed) {
+			try {
+				StatsSample first = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				write(batch);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		// Flushes what was queued before closing
+		while (queue.drainTo(batch, batchSize) > 0) {
+			write(batch);
+		}
+		sink.close();
+	}
+
+	private void write(List<StatsSample> batch) {
+		try {
+			sink.write(batch);
+		} catch (Exception e) {
+			LOGGER.warn("Could not write " + batch.size() + " samples to stats sink " 
+					+ sink.getClass().getSimpleName(), e);
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Writes the queued samples and closes the sink.
+	 */
+	void close() {
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.ourgrid.virt.stats;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Appends samples to a local file in the InfluxDB line protocol, one line per
+ * sample, such as <i>"ourvirt,vm=vm1 cpu_time=1200i,memory_resident=52428800i 
+ * 1350000000000000000"</i>. Values are in the units of the {@link Metric}s and
+ * missing metrics are left out. The file can be tailed by Telegraf or similar agents.
+ */
+public class LineProtocolFileSink implements StatsSink {
+
+	private static final String MEASUREMENT = "ourvirt";
+	private static final Metric[] METRICS = Metric.values();
+	private static final String[] FIELD_NAMES = new String[METRICS.length];
+
+	static {
+		for (Metric metric : METRICS) {
+			FIELD_NAMES[metric.ordinal()] = metric.name().toLowerCase();
+		}
+	}
+
+	private final Writer writer;
+	private final StringBuilder line = new StringBuilder();
+
+	/**
+	 * @param path the file the samples are appended to
+	 * @throws IOException if the file cannot be opened
+	 */
+	public LineProtocolFileSink(String path) throws IOException {
+		this.writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(path, true), "UTF-8"));
+	}
+
+	@Override
+	public void write(List<StatsSample> samples) throws IOException {
+		for (StatsSample sample : samples) {
+			line.setLength(0);
+			line.append(MEASUREMENT).append(",vm=");
+			escape(sample.getVmName());
+			char separator = ' ';
+			for (Metric metric : METRICS) {
+				long value = sample.getValue(metric);
+				if (value == TimeSeries.MISSING) {
+					continue;
+				}
+				line.append(separator).append(FIELD_NAMES[metric.ordinal()])
+						.append('=').append(value).append('i');
+				separator = ',';
+			}
+			if (separator == ' ') {
+				// Nothing was collected in this round
+				continue;
+			}
+			line.append(' ').append(sample.getTimestamp()).append("000000\n");
+			writer.write(line.toString());
+		}
+		// One flush per batch
+		writer.flush();
+	}
+
+	/**
+	 * Escapes the characters which delimit tags.
+	 */
+	private void escape(String tagValue) {
+		for (int i = 0; i < tagValue.length(); i++) {
+			char c = tagValue.charAt(i);
+			if (c == ' ' || c == ',' || c == '=') {
+				line.append('\\');
+			}
+			line.append(c);
+		}
+	}
+
+	@Override
+	public void close() {
+		IOUtils.closeQuietly(writer);
+	}
+}
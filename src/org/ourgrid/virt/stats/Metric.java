@@ -0,0 +1,57 @@
+package org.ourgrid.virt.stats;
+
+/**
+ * Metrics sampled by the {@link StatsSampler}. Counters are cumulative and
+ * are usually queried as rates, gauges are instant values.
+ * New metrics must be added last, as the {@link TimeSeriesStore} refers to
+ * metrics by ordinal.
+ */
+public enum Metric {
+
+	CPU_TIME(true),
+	CPU_USER_TIME(true),
+	CPU_SYSTEM_TIME(true),
+	CPU_GUEST_TIME(true),
+
+	NET_RECEIVED_BYTES(true),
+	NET_RECEIVED_PACKETS(true),
+	NET_RECEIVED_ERRORS(true),
+	NET_RECEIVED_DROPPED(true),
+	NET_TRANSFERRED_BYTES(true),
+	NET_TRANSFERRED_PACKETS(true),
+	NET_TRANSFERRED_ERRORS(true),
+	NET_TRANSFERRED_DROPPED(true),
+
+	DISK_READ_OPS(true),
+	DISK_READ_BYTES(true),
+	DISK_READ_TIME(true),
+	DISK_WRITE_OPS(true),
+	DISK_WRITE_BYTES(true),
+	DISK_WRITE_TIME(true),
+
+	MEMORY_RESIDENT(false),
+	MEMORY_PROPORTIONAL(false),
+	MEMORY_SWAPPED(false),
+	BALLOON_ACTUAL(false),
+	GUEST_MEMORY_TOTAL(false),
+	GUEST_MEMORY_FREE(false),
+	GUEST_MEMORY_AVAILABLE(false),
+	GUEST_MEMORY_CACHED(false),
+
+	// Time runnable vCPU threads waited on a host run queue, in ms
+	CPU_WAIT_TIME(true);
+
+	private final boolean counter;
+
+	Metric(boolean counter) {
+		this.counter = counter;
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if the metric is a cumulative counter,
+	 * <b><i>false</b></i> if it is a gauge.
+	 */
+	public boolean isCounter() {
+		return counter;
+	}
+}
@@ -0,0 +1,122 @@
+package org.ourgrid.virt.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the operations run through OurVirt, such as starting or stopping
+ * virtual machines, along with their failures and their total duration.
+ */
+public class OperationStats {
+
+	public static final String CREATE = "create";
+	public static final String START = "start";
+	public static final String STOP = "stop";
+	public static final String REBOOT = "reboot";
+	public static final String EXEC = "exec";
+	public static final String TAKE_SNAPSHOT = "takeSnapshot";
+	public static final String RESTORE_SNAPSHOT = "restoreSnapshot";
+	public static final String DESTROY = "destroy";
+	public static final String CLONE = "clone";
+
+	private final ConcurrentMap<String, Counters> operations = 
+			new ConcurrentHashMap<String, Counters>();
+
+	/**
+	 * Starts timing an operation. It is recorded as failed when {@link Timing#record()}
+	 * is called, unless {@link Timing#succeeded()} was called before.
+	 * @param operation the name of the operation
+	 * @return the timing of the operation
+	 */
+	public Timing start(String operation) {
+		return new Timing(operation);
+	}
+
+	/**
+	 * Records an operation.
+	 * @param operation the name of the operation
+	 * @param startTime the time the operation started, as given by {@link System#nanoTime()}
+	 * @param success whether the operation succeeded
+	 */
+	public void record(String operation, long startTime, boolean success) {
+		long duration = System.nanoTime() - startTime;
+		Counters counters = operations.get(operation);
+		if (counters == null) {
+			Counters newCounters = new Counters();
+			counters = operations.putIfAbsent(operation, newCounters);
+			if (counters == null) {
+				counters = newCounters;
+			}
+		}
+		counters.count.incrementAndGet();
+		if (!success) {
+			counters.failures.incrementAndGet();
+		}
+		counters.duration.addAndGet(duration);
+	}
+
+	/**
+	 * @return the number of times each operation ran, sorted by operation name
+	 */
+	public Map<String, Long> getCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counters> operation : operations.entrySet()) {
+			counts.put(operation.getKey(), operation.getValue().count.get());
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the number of times each operation failed, sorted by operation name
+	 */
+	public Map<String, Long> getFailures() {
+		Map<String, Long> failures = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counters> operation : operations.entrySet()) {
+			failures.put(operation.getKey(), operation.getValue().failures.get());
+		}
+		return failures;
+	}
+
+	/**
+	 * @return the total time spent in each operation, in ns, sorted by operation name
+	 */
+	public Map<String, Long> getDurations() {
+		Map<String, Long> durations = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counters> operation : operations.entrySet()) {
+			durations.put(operation.getKey(), operation.getValue().duration.get());
+		}
+		return durations;
+	}
+
+	/**
+	 * An operation being timed, see {@link OperationStats#start(String)}.
+	 */
+	public class Timing {
+
+		private final String operation;
+		private final long startTime = System.nanoTime();
+		private boolean success;
+
+		private Timing(String operation) {
+			this.operation = operation;
+		}
+
+		public void succeeded() {
+			success = true;
+		}
+
+		public void record() {
+			OperationStats.this.record(operation, startTime, success);
+		}
+	}
+
+	private static class Counters {
+
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong duration = new AtomicLong();
+	}
+}
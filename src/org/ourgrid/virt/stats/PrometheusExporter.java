@@ -0,0 +1,182 @@
+package org.ourgrid.virt.stats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the latest sampled values of every virtual machine of a {@link StatsSampler},
+ * and the {@link OperationStats} of OurVirt, in the Prometheus text exposition
+ * format at <i>/metrics</i>. Scrapes only read the sampled series, they never 
+ * reach the hypervisors. Times are exposed in seconds and sizes in bytes.
+ */
+public class PrometheusExporter {
+
+	private static final String PATH = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final String PREFIX = "ourvirt_";
+	private static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+
+	private final StatsSampler sampler;
+	private final OperationStats operationStats;
+	private HttpServer server;
+
+	public PrometheusExporter(StatsSampler sampler, OperationStats operationStats) {
+		this.sampler = sampler;
+		this.operationStats = operationStats;
+	}
+
+	/**
+	 * Starts serving the metrics on the loopback interface only.
+	 * @param port the port to listen to
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void start(int port) throws IOException {
+		start(DEFAULT_BIND_ADDRESS, port);
+	}
+
+	/**
+	 * Starts serving the metrics. They are served with no authentication and
+	 * name the virtual machines, so they should only be exposed to trusted networks.
+	 * @param bindAddress the address of the interface to listen on, 0.0.0.0 for all of them
+	 * @param port the port to listen to
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized void start(String bindAddress, int port) throws IOException {
+		if (server != null) {
+			return;
+		}
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = render().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	/**
+	 * @return the current metrics in the Prometheus text format
+	 */
+	public String render() {
+		StringBuilder text = new StringBuilder();
+		TreeSet<String> vmNames = new TreeSet<String>(sampler.getSampledVMs());
+
+		for (Metric metric : Metric.values()) {
+			String name = getName(metric);
+			boolean typed = false;
+			for (String vmName : vmNames) {
+				TimeSeries timeSeries = sampler.getTimeSeries(vmName);
+				long value = timeSeries == null ? TimeSeries.MISSING : timeSeries.getLatest(metric);
+				if (value == TimeSeries.MISSING) {
+					continue;
+				}
+				if (!typed) {
+					appendType(text, name, metric.isCounter());
+					typed = true;
+				}
+				appendSample(text, name, "vm", vmName);
+				double divisor = getDivisor(metric);
+				if (divisor == 1) {
+					text.append(value);
+				} else {
+					text.append(value / divisor);
+				}
+				text.append('\n');
+			}
+		}
+
+		appendOperations(text, "operations_total", operationStats.getCounts(), 1);
+		appendOperations(text, "operation_failures_total", operationStats.getFailures(), 1);
+		appendOperations(text, "operation_duration_seconds_total", 
+				operationStats.getDurations(), 1e9);
+
+		return text.toString();
+	}
+
+	private static void appendOperations(StringBuilder text, String name, 
+			Map<String, Long> values, double divisor) {
+		if (values.isEmpty()) {
+			return;
+		}
+		appendType(text, PREFIX + name, true);
+		for (Map.Entry<String, Long> operation : values.entrySet()) {
+			appendSample(text, PREFIX + name, "operation", operation.getKey());
+			if (divisor == 1) {
+				text.append(operation.getValue());
+			} else {
+				text.append(operation.getValue() / divisor);
+			}
+			text.append('\n');
+		}
+	}
+
+	private static void appendType(StringBuilder text, String name, boolean counter) {
+		text.append("# TYPE ").append(name).append(counter ? " counter\n" : " gauge\n");
+	}
+
+	private static void appendSample(StringBuilder text, String name, 
+			String label, String labelValue) {
+		text.append(name).append('{').append(label).append("=\"");
+		for (int i = 0; i < labelValue.length(); i++) {
+			char c = labelValue.charAt(i);
+			if (c == '\\' || c == '"') {
+				text.append('\\').append(c);
+			} else if (c == '\n') {
+				text.append("\\n");
+			} else {
+				text.append(c);
+			}
+		}
+		text.append("\"} ");
+	}
+
+	/**
+	 * @return the exposed name of the metric, following the Prometheus conventions,
+	 * such as <i>ourvirt_cpu_time_seconds_total</i> or <i>ourvirt_memory_resident_bytes</i>
+	 */
+	private static String getName(Metric metric) {
+		String name = PREFIX + metric.name().toLowerCase();
+		if (isTime(metric)) {
+			return name + "_seconds_total";
+		}
+		return name + (metric.isCounter() ? "_total" : "_bytes");
+	}
+
+	/**
+	 * @return the divisor turning the sampled value into the exposed unit
+	 */
+	private static double getDivisor(Metric metric) {
+		if (!isTime(metric)) {
+			return 1;
+		}
+		// Cpu times are sampled in ms and disk times in microseconds
+		return metric.name().startsWith("CPU_") ? 1e3 : 1e6;
+	}
+
+	private static boolean isTime(Metric metric) {
+		return metric.name().endsWith("_TIME");
+	}
+}
@@ -0,0 +1,218 @@
+package org.ourgrid.virt.stats;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes the rows of a block of a {@link TimeSeriesStore} segment in columns.
+ * Timestamps are stored as zigzag varints of their delta of deltas, which take a
+ * single byte for a steady sampling period, and each metric column as zigzag 
+ * varints of the deltas between its values, preceded by a presence bitmap when
+ * some values are {@link TimeSeries#MISSING}.
+ * <p>
+ * A block starts with a fixed size header: the number of rows, the number of
+ * metric columns, the length of the encoded columns, the first and last 
+ * timestamps, so that blocks out of a queried range are skipped undecoded,
+ * and the CRC32 of the encoded columns, so that blocks whose columns were
+ * not fully written are told apart.
+ */
+class SegmentBlock {
+
+	static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+
+	private static final byte NONE_PRESENT = 0;
+	private static final byte ALL_PRESENT = 1;
+	private static final byte SOME_PRESENT = 2;
+	private static final int CHECKSUM_CHUNK = 4096;
+
+	private SegmentBlock() {
+	}
+
+	/**
+	 * Encodes a block, header included.
+	 * @param timestamps the timestamps of the rows
+	 * @param values the values of the rows, indexed by metric then by row
+	 * @param rows the number of rows to be encoded
+	 * @param out receives the encoded block, it must have room for 
+	 * {@link #maxEncodedSize(int, int)} bytes
+	 * @return the encoded size
+	 */
+	static int encode(long[] timestamps, long[][] values, int rows, ByteBuffer out) {
+		int start = out.position();
+		out.position(start + HEADER_SIZE);
+
+		long previousDelta = 0;
+		for (int i = 0; i < rows; i++) {
+			if (i == 0) {
+				putVarLong(out, timestamps[0]);
+			} else {
+				long delta = timestamps[i] - timestamps[i - 1];
+				putVarLong(out, delta - previousDelta);
+				previousDelta = delta;
+			}
+		}
+
+		for (long[] column : values) {
+			int present = 0;
+			for (int i = 0; i < rows; i++) {
+				if (column[i] != TimeSeries.MISSING) {
+					present++;
+				}
+			}
+			if (present == 0) {
+				out.put(NONE_PRESENT);
+				continue;
+			}
+			if (present == rows) {
+				out.put(ALL_PRESENT);
+			} else {
+				out.put(SOME_PRESENT);
+				for (int i = 0; i < rows; i += 8) {
+					int bits = 0;
+					for (int j = i; j < Math.min(i + 8, rows); j++) {
+						if (column[j] != TimeSeries.MISSING) {
+							bits |= 1 << (j - i);
+						}
+					}
+					out.put((byte) bits);
+				}
+			}
+			long previous = 0;
+			for (int i = 0; i < rows; i++) {
+				if (column[i] != TimeSeries.MISSING) {
+					putVarLong(out, column[i] - previous);
+					previous = column[i];
+				}
+			}
+		}
+
+		int end = out.position();
+		out.putInt(start, rows);
+		out.putInt(start + 4, values.length);
+		out.putInt(start + 8, end - start - HEADER_SIZE);
+		out.putLong(start + 12, timestamps[0]);
+		out.putLong(start + 20, timestamps[rows - 1]);
+		out.putInt(start + 28, checksum(out, start));
+		return end - start;
+	}
+
+	/**
+	 * @return the largest possible size of an encoded block
+	 */
+	static int maxEncodedSize(int rows, int metrics) {
+		return HEADER_SIZE + rows * 10 + metrics * (1 + (rows + 7) / 8 + rows * 10);
+	}
+
+	static int getRows(ByteBuffer in, int blockStart) {
+		return in.getInt(blockStart);
+	}
+
+	static int getMetrics(ByteBuffer in, int blockStart) {
+		return in.getInt(blockStart + 4);
+	}
+
+	static int getEncodedSize(ByteBuffer in, int blockStart) {
+		return HEADER_SIZE + in.getInt(blockStart + 8);
+	}
+
+	static long getFirstTimestamp(ByteBuffer in, int blockStart) {
+		return in.getLong(blockStart + 12);
+	}
+
+	static long getLastTimestamp(ByteBuffer in, int blockStart) {
+		return in.getLong(blockStart + 20);
+	}
+
+	/**
+	 * @param in the buffer holding the whole block
+	 * @param blockStart the position of the block in the buffer
+	 * @return <b><i>true</b></i> if the encoded columns match the checksum of the header
+	 */
+	static boolean isChecksumValid(ByteBuffer in, int blockStart) {
+		return in.getInt(blockStart + 28) == checksum(in, blockStart);
+	}
+
+	private static int checksum(ByteBuffer in, int blockStart) {
+		ByteBuffer columns = in.duplicate();
+		columns.limit(blockStart + getEncodedSize(in, blockStart));
+		columns.position(blockStart + HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[Math.min(CHECKSUM_CHUNK, columns.remaining())];
+		while (columns.hasRemaining()) {
+			int length = Math.min(chunk.length, columns.remaining());
+			columns.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Decodes a block. Columns of metrics the block was written without,
+	 * as happens for metrics added afterwards, are filled with {@link TimeSeries#MISSING}.
+	 * @param in the buffer holding the block
+	 * @param blockStart the position of the block in the buffer
+	 * @param timestamps receives the timestamps of the rows
+	 * @param values receives the values of the rows, indexed by metric then by row
+	 */
+	static void decode(ByteBuffer in, int blockStart, long[] timestamps, long[][] values) {
+		int rows = getRows(in, blockStart);
+		int metrics = getMetrics(in, blockStart);
+		in.position(blockStart + HEADER_SIZE);
+
+		long previousDelta = 0;
+		for (int i = 0; i < rows; i++) {
+			if (i == 0) {
+				timestamps[0] = getVarLong(in);
+			} else {
+				long delta = previousDelta + getVarLong(in);
+				timestamps[i] = timestamps[i - 1] + delta;
+				previousDelta = delta;
+			}
+		}
+
+		byte[] bitmap = new byte[(rows + 7) / 8];
+		for (int metric = 0; metric < values.length; metric++) {
+			long[] column = values[metric];
+			byte presence = metric < metrics ? in.get() : NONE_PRESENT;
+			if (presence == NONE_PRESENT) {
+				for (int i = 0; i < rows; i++) {
+					column[i] = TimeSeries.MISSING;
+				}
+				continue;
+			}
+			if (presence == SOME_PRESENT) {
+				in.get(bitmap);
+			}
+			long previous = 0;
+			for (int i = 0; i < rows; i++) {
+				if (presence == SOME_PRESENT && (bitmap[i >> 3] & (1 << (i & 7))) == 0) {
+					column[i] = TimeSeries.MISSING;
+				} else {
+					previous += getVarLong(in);
+					column[i] = previous;
+				}
+			}
+		}
+	}
+
+	private static void putVarLong(ByteBuffer out, long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.put((byte) ((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		out.put((byte) zigzag);
+	}
+
+	private static long getVarLong(ByteBuffer in) {
+		long zigzag = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			zigzag |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+}
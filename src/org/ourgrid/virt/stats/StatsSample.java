@@ -0,0 +1,39 @@
+package org.ourgrid.virt.stats;
+
+/**
+ * A sampling round of a virtual machine, as handed to the {@link StatsSink}s.
+ */
+public class StatsSample {
+
+	private final String vmName;
+	private final long timestamp;
+	private final long[] values;
+
+	/**
+	 * @param vmName the name of the virtual machine
+	 * @param timestamp the wall clock time of the round, in ms
+	 * @param values the sampled values indexed by {@link Metric#ordinal()}, 
+	 * which are not copied
+	 */
+	public StatsSample(String vmName, long timestamp, long[] values) {
+		this.vmName = vmName;
+		this.timestamp = timestamp;
+		this.values = values;
+	}
+
+	public String getVmName() {
+		return vmName;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the sampled value of the metric, or {@link TimeSeries#MISSING}
+	 * if it could not be collected
+	 */
+	public long getValue(Metric metric) {
+		return values[metric.ordinal()];
+	}
+}
@@ -0,0 +1,329 @@
+package org.ourgrid.virt.stats;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.DiskStats;
+import org.ourgrid.virt.model.MemoryStats;
+import org.ourgrid.virt.model.NetworkStats;
+import org.ourgrid.virt.model.VirtualMachine;
+import org.ourgrid.virt.model.VmUtilization;
+import org.ourgrid.virt.strategies.HypervisorStrategy;
+
+/**
+ * Periodically collects the CPU, network, disk and memory statistics of the sampled
+ * virtual machines on a single scheduler thread, and keeps them in a
+ * {@link TimeSeries} per virtual machine. Consumers query the sampled series
+ * instead of hitting the hypervisor on their request path, and {@link StatsSink}s
+ * receive every sample asynchronously.
+ */
+public class StatsSampler {
+
+	private static final Logger LOGGER = Logger.getLogger(StatsSampler.class);
+
+	private static final Metric[] DISK_METRICS = {Metric.DISK_READ_OPS,
+		Metric.DISK_READ_BYTES, Metric.DISK_READ_TIME, Metric.DISK_WRITE_OPS,
+		Metric.DISK_WRITE_BYTES, Metric.DISK_WRITE_TIME};
+	private static final int DEFAULT_SINK_QUEUE_SIZE = 1024;
+	private static final int DEFAULT_SINK_BATCH_SIZE = 100;
+
+	private final long period;
+	private final int capacity;
+	private final Map<String, SampledVM> sampledVMs = new ConcurrentHashMap<String, SampledVM>();
+	private final long[] sample = new long[Metric.values().length];
+	private final List<AsyncSinkWriter> sinkWriters = new CopyOnWriteArrayList<AsyncSinkWriter>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param period the sampling period, in ms
+	 * @param capacity the number of samples kept for each metric of each virtual machine
+	 */
+	public StatsSampler(long period, int capacity) {
+		this.period = period;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Starts sampling the given virtual machine.
+	 * @param strategy the strategy of the hypervisor which manages the virtual machine
+	 * @param virtualMachine the virtual machine to be sampled
+	 */
+	public synchronized void add(HypervisorStrategy strategy, VirtualMachine virtualMachine) {
+		if (!sampledVMs.containsKey(virtualMachine.getName())) {
+			sampledVMs.put(virtualMachine.getName(),
+					new SampledVM(strategy, virtualMachine, new TimeSeries(capacity)));
+		}
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ourvirt-stats-sampler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					sampleAll();
+				}
+			}, 0, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops sampling the given virtual machine and discards its series.
+	 * @param vmName the name of the virtual machine
+	 */
+	public void remove(String vmName) {
+		sampledVMs.remove(vmName);
+	}
+
+	/**
+	 * @return the names of the sampled virtual machines
+	 */
+	public Set<String> getSampledVMs() {
+		return new HashSet<String>(sampledVMs.keySet());
+	}
+
+	/**
+	 * Adds a sink which will receive every sample from now on. Samples are queued
+	 * and written in batches by a thread of the sink, so a slow sink never delays 
+	 * the sampling; if it falls too far behind, samples are dropped. The queue and 
+	 * batch sizes are set by the <i>stats.sink.queue</i> and <i>stats.sink.batch</i> 
+	 * system properties.
+	 * @param sink the sink to be added
+	 */
+	public void addSink(StatsSink sink) {
+		sinkWriters.add(new AsyncSinkWriter(sink,
+				Integer.getInteger("stats.sink.queue", DEFAULT_SINK_QUEUE_SIZE),
+				Integer.getInteger("stats.sink.batch", DEFAULT_SINK_BATCH_SIZE)));
+	}
+
+	/**
+	 * Removes a sink, after writing the samples queued for it, and closes it.
+	 * @param sink the sink to be removed
+	 */
+	public void removeSink(StatsSink sink) {
+		for (AsyncSinkWriter sinkWriter : sinkWriters) {
+			if (sinkWriter.getSink() == sink) {
+				sinkWriters.remove(sinkWriter);
+				sinkWriter.close();
+			}
+		}
+	}
+
+	/**
+	 * @param vmName the name of the virtual machine
+	 * @return the sampled series of the virtual machine, or <b>null</b> if it is not sampled
+	 */
+	public TimeSeries getTimeSeries(String vmName) {
+		SampledVM sampledVM = sampledVMs.get(vmName);
+		return sampledVM == null ? null : sampledVM.timeSeries;
+	}
+
+	/**
+	 * @see TimeSeries#getLatest(Metric)
+	 */
+	public long getLatest(String vmName, Metric metric) throws Exception {
+		return getSampledTimeSeries(vmName).getLatest(metric);
+	}
+
+	/**
+	 * @see TimeSeries#getRate(Metric, long)
+	 */
+	public double getRate(String vmName, Metric metric, long window) throws Exception {
+		return getSampledTimeSeries(vmName).getRate(metric, window);
+	}
+
+	/**
+	 * @see TimeSeries#getMin(Metric, long)
+	 */
+	public long getMin(String vmName, Metric metric, long window) throws Exception {
+		return getSampledTimeSeries(vmName).getMin(metric, window);
+	}
+
+	/**
+	 * @see TimeSeries#getMax(Metric, long)
+	 */
+	public long getMax(String vmName, Metric metric, long window) throws Exception {
+		return getSampledTimeSeries(vmName).getMax(metric, window);
+	}
+
+	/**
+	 * @see TimeSeries#getAverage(Metric, long)
+	 */
+	public double getAverage(String vmName, Metric metric, long window) throws Exception {
+		return getSampledTimeSeries(vmName).getAverage(metric, window);
+	}
+
+	/**
+	 * @see UsageCalculator#calculate(TimeSeries, long)
+	 */
+	public VmUtilization getUtilization(String vmName, long window) throws Exception {
+		return UsageCalculator.calculate(getSampledTimeSeries(vmName), window);
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Stops sampling and closes the sinks.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		for (AsyncSinkWriter sinkWriter : sinkWriters) {
+			sinkWriter.close();
+		}
+		sinkWriters.clear();
+	}
+
+	private TimeSeries getSampledTimeSeries(String vmName) throws Exception {
+		TimeSeries timeSeries = getTimeSeries(vmName);
+		if (timeSeries == null) {
+			throw new Exception("Virtual machine " + vmName + " is not being sampled.");
+		}
+		return timeSeries;
+	}
+
+	private void sampleAll() {
+		for (SampledVM sampledVM : sampledVMs.values()) {
+			try {
+				sample(sampledVM);
+			} catch (Throwable e) {
+				// Keeps the scheduler alive
+				LOGGER.warn("Could not sample " + sampledVM.virtualMachine.getName(), e);
+			}
+		}
+	}
+
+	private void sample(SampledVM sampledVM) {
+		Arrays.fill(sample, TimeSeries.MISSING);
+		long timestamp = System.currentTimeMillis();
+		long nanoTime = System.nanoTime();
+
+		HypervisorStrategy strategy = sampledVM.strategy;
+		VirtualMachine virtualMachine = sampledVM.virtualMachine;
+
+		try {
+			CPUStats cpuStats = strategy.getCPUStats(virtualMachine);
+			if (cpuStats != null) {
+				set(Metric.CPU_TIME, cpuStats.getCpuTime());
+				set(Metric.CPU_USER_TIME, cpuStats.getUserTime());
+				set(Metric.CPU_SYSTEM_TIME, cpuStats.getSystemTime());
+				set(Metric.CPU_GUEST_TIME, cpuStats.getGuestTime());
+				if (!cpuStats.getVcpus().isEmpty()) {
+					set(Metric.CPU_WAIT_TIME, cpuStats.getRunDelay());
+				}
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not sample cpu of " + virtualMachine.getName(), e);
+		}
+
+		try {
+			NetworkStats networkStats = strategy.getNetworkStats(virtualMachine);
+			if (networkStats != null) {
+				set(Metric.NET_RECEIVED_BYTES, networkStats.getReceivedBytes());
+				set(Metric.NET_RECEIVED_PACKETS, networkStats.getReceivedPackets());
+				set(Metric.NET_RECEIVED_ERRORS, networkStats.getReceivedErrors());
+				set(Metric.NET_RECEIVED_DROPPED, networkStats.getReceivedDropped());
+				set(Metric.NET_TRANSFERRED_BYTES, networkStats.getTransferredBytes());
+				set(Metric.NET_TRANSFERRED_PACKETS, networkStats.getTransferredPackets());
+				set(Metric.NET_TRANSFERRED_ERRORS, networkStats.getTransferredErrors());
+				set(Metric.NET_TRANSFERRED_DROPPED, networkStats.getTransferredDropped());
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not sample network of " + virtualMachine.getName(), e);
+		}
+
+		try {
+			List<DiskStats> disksStats = strategy.getDiskStats(virtualMachine);
+			if (disksStats != null && !disksStats.isEmpty()) {
+				// Disks are aggregated, VMs usually have a single disk
+				for (Metric metric : DISK_METRICS) {
+					set(metric, 0);
+				}
+				for (DiskStats diskStats : disksStats) {
+					add(Metric.DISK_READ_OPS, diskStats.getReadOps());
+					add(Metric.DISK_READ_BYTES, diskStats.getReadBytes());
+					add(Metric.DISK_READ_TIME, diskStats.getReadTotalTime());
+					add(Metric.DISK_WRITE_OPS, diskStats.getWriteOps());
+					add(Metric.DISK_WRITE_BYTES, diskStats.getWriteBytes());
+					add(Metric.DISK_WRITE_TIME, diskStats.getWriteTotalTime());
+				}
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not sample disks of " + virtualMachine.getName(), e);
+		}
+
+		try {
+			MemoryStats memoryStats = strategy.getMemoryStats(virtualMachine);
+			if (memoryStats != null) {
+				setMemory(Metric.MEMORY_RESIDENT, memoryStats.getResidentMemory());
+				setMemory(Metric.MEMORY_PROPORTIONAL, memoryStats.getProportionalMemory());
+				setMemory(Metric.MEMORY_SWAPPED, memoryStats.getSwappedMemory());
+				setMemory(Metric.BALLOON_ACTUAL, memoryStats.getBalloonActual());
+				setMemory(Metric.GUEST_MEMORY_TOTAL, memoryStats.getGuestTotalMemory());
+				setMemory(Metric.GUEST_MEMORY_FREE, memoryStats.getGuestFreeMemory());
+				setMemory(Metric.GUEST_MEMORY_AVAILABLE, memoryStats.getGuestAvailableMemory());
+				setMemory(Metric.GUEST_MEMORY_CACHED, memoryStats.getGuestCachedMemory());
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not sample memory of " + virtualMachine.getName(), e);
+		}
+
+		sampledVM.timeSeries.record(timestamp, nanoTime, sample);
+
+		if (!sinkWriters.isEmpty()) {
+			// The sample array is reused, so sinks get a copy shared among them
+			StatsSample statsSample = new StatsSample(virtualMachine.getName(), 
+					timestamp, sample.clone());
+			for (AsyncSinkWriter sinkWriter : sinkWriters) {
+				sinkWriter.offer(statsSample);
+			}
+		}
+	}
+
+	private void set(Metric metric, long value) {
+		sample[metric.ordinal()] = value;
+	}
+
+	private void setMemory(Metric metric, long value) {
+		if (value != MemoryStats.NOT_AVAILABLE) {
+			set(metric, value);
+		}
+	}
+
+	private void add(Metric metric, long value) {
+		sample[metric.ordinal()] += value;
+	}
+
+	private static class SampledVM {
+
+		final HypervisorStrategy strategy;
+		final VirtualMachine virtualMachine;
+		final TimeSeries timeSeries;
+
+		SampledVM(HypervisorStrategy strategy, VirtualMachine virtualMachine,
+				TimeSeries timeSeries) {
+			this.strategy = strategy;
+			this.virtualMachine = virtualMachine;
+			this.timeSeries = timeSeries;
+		}
+	}
+}
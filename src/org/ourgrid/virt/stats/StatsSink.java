@@ -0,0 +1,25 @@
+package org.ourgrid.virt.stats;
+
+import java.util.List;
+
+/**
+ * Receives the samples collected by the {@link StatsSampler}, for instance to
+ * ship them to a monitoring system. Sinks are called in batches from their own
+ * writer thread, never from the sampling thread, so they may block on I/O.
+ * @see StatsSampler#addSink(StatsSink)
+ */
+public interface StatsSink {
+
+	/**
+	 * Writes a batch of samples.
+	 * @param samples the samples, oldest first
+	 * @throws Exception if the samples could not be written, in which case
+	 * they are dropped
+	 */
+	public void write(List<StatsSample> samples) throws Exception;
+
+	/**
+	 * Releases the resources held by the sink, after the last batch was written.
+	 */
+	public void close();
+}
@@ -0,0 +1,66 @@
+package org.ourgrid.virt.stats;
+
+import java.util.Arrays;
+
+/**
+ * The rows of a virtual machine returned by a {@link TimeSeriesStore} query,
+ * oldest first, with a column per {@link Metric}.
+ */
+public class StoredSeries {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final String vmName;
+	private final TimeSeriesStore.Resolution resolution;
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	private long[][] values = new long[Metric.values().length][INITIAL_CAPACITY];
+	private int size;
+
+	StoredSeries(String vmName, TimeSeriesStore.Resolution resolution) {
+		this.vmName = vmName;
+		this.resolution = resolution;
+	}
+
+	void add(long timestamp, long[][] rowValues, int row) {
+		if (size == timestamps.length) {
+			timestamps = Arrays.copyOf(timestamps, size * 2);
+			for (int i = 0; i < values.length; i++) {
+				values[i] = Arrays.copyOf(values[i], size * 2);
+			}
+		}
+		timestamps[size] = timestamp;
+		for (int i = 0; i < values.length; i++) {
+			values[i][size] = rowValues[i][row];
+		}
+		size++;
+	}
+
+	public String getVmName() {
+		return vmName;
+	}
+
+	public TimeSeriesStore.Resolution getResolution() {
+		return resolution;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the wall clock time of the row, in ms. Rollup rows are timestamped
+	 * with the start of their interval.
+	 */
+	public long getTimestamp(int row) {
+		return timestamps[row];
+	}
+
+	/**
+	 * @return the value of the metric in the row, or {@link TimeSeries#MISSING}.
+	 * Rollup rows hold the last value of counters and the average of gauges
+	 * over their interval.
+	 */
+	public long getValue(int row, Metric metric) {
+		return values[metric.ordinal()][row];
+	}
+}
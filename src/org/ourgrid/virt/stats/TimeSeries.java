@@ -0,0 +1,230 @@
+package org.ourgrid.virt.stats;
+
+/**
+ * Fixed size ring buffers holding the samples of every {@link Metric} of a
+ * virtual machine. Values are kept in primitive arrays, one per metric, so
+ * recording a sample allocates nothing. Metrics which could not be collected
+ * in a round are stored as {@link #MISSING}.
+ */
+public class TimeSeries {
+
+	public static final long MISSING = Long.MIN_VALUE;
+
+	private static final Metric[] METRICS = Metric.values();
+
+	private final int capacity;
+	private final long[] timestamps;
+	private final long[] nanoTimes;
+	private final long[][] values;
+	private int next;
+	private int size;
+	// Result of the last accumulate call, guarded by this
+	private long increase;
+
+	/**
+	 * @param capacity the number of samples kept for each metric
+	 */
+	public TimeSeries(int capacity) {
+		this.capacity = capacity;
+		this.timestamps = new long[capacity];
+		this.nanoTimes = new long[capacity];
+		this.values = new long[METRICS.length][capacity];
+	}
+
+	/**
+	 * Records a sampling round.
+	 * @param timestamp the wall clock time of the round, in ms
+	 * @param nanoTime the monotonic time of the round, as given by {@link System#nanoTime()}
+	 * @param sample the sampled values indexed by {@link Metric#ordinal()}
+	 */
+	public synchronized void record(long timestamp, long nanoTime, long[] sample) {
+		timestamps[next] = timestamp;
+		nanoTimes[next] = nanoTime;
+		for (int i = 0; i < METRICS.length; i++) {
+			values[i][next] = sample[i];
+		}
+		next = (next + 1) % capacity;
+		if (size < capacity) {
+			size++;
+		}
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the wall clock time of the latest round, in ms, or {@link #MISSING} if empty
+	 */
+	public synchronized long getLatestTimestamp() {
+		return size == 0 ? MISSING : timestamps[index(size - 1)];
+	}
+
+	/**
+	 * @return the latest value of the metric, or {@link #MISSING} if it was never collected
+	 */
+	public synchronized long getLatest(Metric metric) {
+		long[] metricValues = values[metric.ordinal()];
+		for (int i = size - 1; i >= 0; i--) {
+			long value = metricValues[index(i)];
+			if (value != MISSING) {
+				return value;
+			}
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Computes the rate per second of a counter over the last <i>window</i> ms.
+	 * @return the rate per second, or {@link Double#NaN} if there are less than two samples
+	 * @see TimeSeries#getIncrease(Metric, long)
+	 */
+	public synchronized double getRate(Metric metric, long window) {
+		long elapsed = accumulate(metric, window);
+		if (elapsed <= 0) {
+			return Double.NaN;
+		}
+		return increase * 1e9 / elapsed;
+	}
+
+	/**
+	 * Computes how much a counter increased over the last <i>window</i> ms.
+	 * Counter resets, caused for instance by VM restarts, are detected when the counter
+	 * goes backwards, and the value after the reset is counted as accumulated since zero.
+	 * @return the increase, or {@link #MISSING} if there are less than two samples
+	 */
+	public synchronized long getIncrease(Metric metric, long window) {
+		return accumulate(metric, window) <= 0 ? MISSING : increase;
+	}
+
+	/**
+	 * @return the time elapsed between the oldest and the latest samples of the last 
+	 * <i>window</i> ms, in ms
+	 */
+	public synchronized long getInterval(long window) {
+		if (size == 0) {
+			return 0;
+		}
+		return (nanoTimes[index(size - 1)] - nanoTimes[index(firstInWindow(window))]) / 1000000;
+	}
+
+	/**
+	 * @return the minimum value of the metric over the last <i>window</i> ms,
+	 * or {@link #MISSING} if there are no samples
+	 */
+	public synchronized long getMin(Metric metric, long window) {
+		long min = MISSING;
+		long[] metricValues = values[metric.ordinal()];
+		for (int i = firstInWindow(window); i < size; i++) {
+			long value = metricValues[index(i)];
+			if (value != MISSING && (min == MISSING || value < min)) {
+				min = value;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * @return the maximum value of the metric over the last <i>window</i> ms,
+	 * or {@link #MISSING} if there are no samples
+	 */
+	public synchronized long getMax(Metric metric, long window) {
+		long max = MISSING;
+		long[] metricValues = values[metric.ordinal()];
+		for (int i = firstInWindow(window); i < size; i++) {
+			long value = metricValues[index(i)];
+			if (value != MISSING && value > max) {
+				max = value;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return the average value of the metric over the last <i>window</i> ms,
+	 * or {@link Double#NaN} if there are no samples
+	 */
+	public synchronized double getAverage(Metric metric, long window) {
+		long sum = 0;
+		int count = 0;
+		long[] metricValues = values[metric.ordinal()];
+		for (int i = firstInWindow(window); i < size; i++) {
+			long value = metricValues[index(i)];
+			if (value != MISSING) {
+				sum += value;
+				count++;
+			}
+		}
+		return count == 0 ? Double.NaN : (double) sum / count;
+	}
+
+	/**
+	 * Copies the samples of a metric, oldest first.
+	 * @param metric the metric to be copied
+	 * @param timestamps receives the wall clock time of each sample, in ms
+	 * @param values receives the value of each sample, possibly {@link #MISSING}
+	 * @return the number of samples copied, bounded by the length of the arrays
+	 */
+	public synchronized int copy(Metric metric, long[] timestamps, long[] values) {
+		int count = Math.min(size, Math.min(timestamps.length, values.length));
+		long[] metricValues = this.values[metric.ordinal()];
+		for (int i = 0; i < count; i++) {
+			int index = index(size - count + i);
+			timestamps[i] = this.timestamps[index];
+			values[i] = metricValues[index];
+		}
+		return count;
+	}
+
+	/**
+	 * Sums the reset aware deltas of a counter within the window into <i>increase</i>.
+	 * @return the nanoseconds elapsed between the first and the last samples found
+	 */
+	private long accumulate(Metric metric, long window) {
+		long[] metricValues = values[metric.ordinal()];
+		long firstTime = 0;
+		long lastTime = 0;
+		long previous = MISSING;
+		increase = 0;
+		for (int i = firstInWindow(window); i < size; i++) {
+			int index = index(i);
+			long value = metricValues[index];
+			if (value == MISSING) {
+				continue;
+			}
+			if (previous == MISSING) {
+				firstTime = nanoTimes[index];
+			} else {
+				increase += value >= previous ? value - previous : value;
+			}
+			previous = value;
+			lastTime = nanoTimes[index];
+		}
+		return lastTime - firstTime;
+	}
+
+	/**
+	 * @return the position, from oldest (0) to latest (size - 1), of the oldest
+	 * sample taken within the last <i>window</i> ms
+	 */
+	private int firstInWindow(long window) {
+		if (size == 0) {
+			return 0;
+		}
+		long latest = nanoTimes[index(size - 1)];
+		long windowNanos = window * 1000000;
+		int first = size - 1;
+		while (first > 0 && latest - nanoTimes[index(first - 1)] <= windowNanos) {
+			first--;
+		}
+		return first;
+	}
+
+	private int index(int position) {
+		return (next - size + position + capacity) % capacity;
+	}
+}
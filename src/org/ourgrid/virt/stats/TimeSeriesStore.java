@@ -0,0 +1,585 @@
+package org.ourgrid.virt.stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local store keeping the usage history of virtual machines, for accounting
+ * and capacity planning. Samples are appended to per virtual machine segment
+ * files, each covering a fixed time window, made of column encoded
+ * {@link SegmentBlock}s which take a few bytes per sample. Segments are written
+ * and read through memory mappings.
+ * <p>
+ * Samples are also rolled up into one minute and one hour rows, and segments are
+ * deleted once older than the retention of their resolution. Rows are buffered
+ * in memory and written as a block when the buffer is full, when it is older
+ * than the flush interval, or on {@link #flush()} and {@link #close()}. The age
+ * of the buffers of every virtual machine is checked as samples of any of them
+ * are appended, so the rows of a virtual machine no longer sampled are written
+ * within the flush interval too. Expired segments are looked for hourly as well,
+ * including those of virtual machines no longer sampled.
+ * <p>
+ * A crash while a block is written may leave a partial or zero filled block at
+ * the end of a segment, or a block whose header reached the disk but not all
+ * of its columns, which its checksum tells apart. Reads stop at the first
+ * invalid block, and the segment is truncated to its valid blocks before new
+ * blocks are appended to it.
+ */
+public class TimeSeriesStore {
+
+	private static final Logger LOGGER = Logger.getLogger(TimeSeriesStore.class);
+
+	private static final int METRICS = Metric.values().length;
+	private static final int BLOCK_ROWS = 1024;
+	// Buffers grow up to a block, so rarely sampled virtual machines take little memory
+	private static final int INITIAL_ROWS = 16;
+	private static final long EXPIRY_CHECK_INTERVAL = 10 * 1000L;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final long ONE_MINUTE = 60 * 1000L;
+	private static final long ONE_HOUR = 60 * ONE_MINUTE;
+	private static final long RETENTION_CHECK_INTERVAL = ONE_HOUR;
+	private static final long ONE_DAY = 24 * ONE_HOUR;
+	private static final long DEFAULT_FLUSH_INTERVAL = 5 * ONE_MINUTE;
+
+	/**
+	 * Resolutions the samples are kept at.
+	 */
+	public static enum Resolution {
+
+		RAW(0, ONE_DAY, 7 * ONE_DAY),
+		MINUTE(ONE_MINUTE, 30 * ONE_DAY, 90 * ONE_DAY),
+		HOUR(ONE_HOUR, 365 * ONE_DAY, 5 * 365 * ONE_DAY);
+
+		private final long interval;
+		private final long segmentSpan;
+		private final long defaultRetention;
+
+		Resolution(long interval, long segmentSpan, long defaultRetention) {
+			this.interval = interval;
+			this.segmentSpan = segmentSpan;
+			this.defaultRetention = defaultRetention;
+		}
+
+		/**
+		 * @return the interval covered by each row, in ms, 0 for raw samples
+		 */
+		public long getInterval() {
+			return interval;
+		}
+
+		/**
+		 * @return the time window covered by each segment file, in ms
+		 */
+		public long getSegmentSpan() {
+			return segmentSpan;
+		}
+
+		/**
+		 * @return how long rows are kept by default, in ms
+		 */
+		public long getDefaultRetention() {
+			return defaultRetention;
+		}
+	}
+
+	private final File root;
+	private final long flushInterval;
+	private final long[] retentions = new long[Resolution.values().length];
+	private final Map<String, SegmentWriter> writers = new HashMap<String, SegmentWriter>();
+	private final Map<String, Rollup> rollups = new HashMap<String, Rollup>();
+	private final ByteBuffer encodeBuffer = ByteBuffer.allocate(
+			SegmentBlock.maxEncodedSize(BLOCK_ROWS, METRICS));
+	private final long[][] decodeValues = new long[METRICS][BLOCK_ROWS];
+	private final long[] decodeTimestamps = new long[BLOCK_ROWS];
+	private long lastExpiryCheck = System.nanoTime();
+	// So that the first expiry check looks for expired segments
+	private long lastRetentionCheck = System.nanoTime() - RETENTION_CHECK_INTERVAL * 1000000;
+
+	/**
+	 * Opens a store with the default retentions and a flush interval of 5 minutes.
+	 * @param root the directory holding the segment files, created if needed
+	 * @throws IOException if the directory cannot be created
+	 */
+	public TimeSeriesStore(File root) throws IOException {
+		this(root, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * @param root the directory holding the segment files, created if needed
+	 * @param flushInterval the longest time, in ms, appended rows stay in memory
+	 * @throws IOException if the directory cannot be created
+	 */
+	public TimeSeriesStore(File root, long flushInterval) throws IOException {
+		if (!root.isDirectory() && !root.mkdirs()) {
+			throw new IOException("Could not create time series store at " + root);
+		}
+		this.root = root;
+		this.flushInterval = flushInterval;
+		for (Resolution resolution : Resolution.values()) {
+			retentions[resolution.ordinal()] = resolution.getDefaultRetention();
+		}
+	}
+
+	/**
+	 * @param resolution the resolution
+	 * @param retention how long rows are kept at the resolution, in ms
+	 */
+	public synchronized void setRetention(Resolution resolution, long retention) {
+		retentions[resolution.ordinal()] = retention;
+	}
+
+	/**
+	 * Appends a sample of a virtual machine and rolls it up.
+	 * @param vmName the name of the virtual machine
+	 * @param timestamp the wall clock time of the sample, in ms
+	 * @param values the sampled values indexed by {@link Metric#ordinal()},
+	 * possibly {@link TimeSeries#MISSING}
+	 * @throws IOException if a block cannot be written
+	 */
+	public synchronized void append(String vmName, long timestamp, long[] values)
+			throws IOException {
+		appendRow(vmName, Resolution.RAW, timestamp, values);
+		getRollup(vmName, Resolution.MINUTE).add(timestamp, values);
+
+		long now = System.nanoTime();
+		if (now - lastExpiryCheck >= Math.min(flushInterval, EXPIRY_CHECK_INTERVAL) * 1000000) {
+			lastExpiryCheck = now;
+			flushExpired();
+		}
+	}
+
+	/**
+	 * Queries the rows of a virtual machine within a time range.
+	 * @param vmName the name of the virtual machine
+	 * @param resolution the resolution of the rows
+	 * @param from the start of the range, inclusive, in ms
+	 * @param to the end of the range, exclusive, in ms
+	 * @return the rows found, oldest first
+	 * @throws IOException if a segment cannot be read
+	 */
+	public synchronized StoredSeries query(String vmName, Resolution resolution,
+			long from, long to) throws IOException {
+		StoredSeries series = new StoredSeries(vmName, resolution);
+
+		File[] segments = getSegments(vmName, resolution);
+		for (File segment : segments) {
+			long segmentStart = getSegmentStart(segment);
+			if (segmentStart >= to || segmentStart + resolution.getSegmentSpan() <= from) {
+				continue;
+			}
+			readSegment(segment, from, to, series);
+		}
+
+		// Rows not written yet are the latest ones
+		SegmentWriter writer = writers.get(getKey(vmName, resolution));
+		if (writer != null) {
+			for (int i = 0; i < writer.rows; i++) {
+				if (writer.timestamps[i] >= from && writer.timestamps[i] < to) {
+					series.add(writer.timestamps[i], writer.values, i);
+				}
+			}
+		}
+		return series;
+	}
+
+	/**
+	 * Writes the buffered rows of every virtual machine.
+	 * @throws IOException if a block cannot be written
+	 */
+	public synchronized void flush() throws IOException {
+		for (SegmentWriter writer : writers.values()) {
+			writer.writeBlock();
+		}
+	}
+
+	/**
+	 * Writes the buffered rows of the virtual machines which are older than
+	 * the flush interval, and deletes the expired segments if they were not
+	 * looked for within the last hour.
+	 * @throws IOException if a block cannot be written
+	 */
+	public synchronized void flushExpired() throws IOException {
+		for (SegmentWriter writer : writers.values()) {
+			if (writer.isExpired()) {
+				writer.writeBlock();
+			}
+		}
+
+		long now = System.nanoTime();
+		if (now - lastRetentionCheck >= RETENTION_CHECK_INTERVAL * 1000000) {
+			lastRetentionCheck = now;
+			enforceRetention();
+		}
+	}
+
+	/**
+	 * Writes the pending rollups, which are partial, and the buffered rows.
+	 * A store reopened within the same minute or hour will thus hold two
+	 * rollup rows for it.
+	 * @throws IOException if a block cannot be written
+	 */
+	public synchronized void close() throws IOException {
+		// Minute rollups first, as they feed the hour ones
+		for (Resolution resolution : new Resolution[] {Resolution.MINUTE, Resolution.HOUR}) {
+			for (Rollup rollup : rollups.values().toArray(new Rollup[0])) {
+				if (rollup.resolution == resolution) {
+					rollup.emit();
+				}
+			}
+		}
+		rollups.clear();
+		flush();
+		writers.clear();
+	}
+
+	/**
+	 * Deletes the segments of every virtual machine which only hold rows older
+	 * than the retention of their resolution.
+	 */
+	public synchronized void enforceRetention() {
+		long now = System.currentTimeMillis();
+		for (Resolution resolution : Resolution.values()) {
+			File[] vmDirs = new File(root, resolution.name().toLowerCase()).listFiles();
+			if (vmDirs == null) {
+				continue;
+			}
+			for (File vmDir : vmDirs) {
+				enforceRetention(vmDir, resolution, now);
+			}
+		}
+	}
+
+	private void enforceRetention(File vmDir, Resolution resolution, long now) {
+		File[] segments = vmDir.listFiles();
+		if (segments == null) {
+			return;
+		}
+		long cutoff = now - retentions[resolution.ordinal()];
+		for (File segment : segments) {
+			if (getSegmentStart(segment) + resolution.getSegmentSpan() <= cutoff) {
+				if (segment.delete()) {
+					LOGGER.debug("Deleted expired segment " + segment);
+				}
+			}
+		}
+		// Left by virtual machines no longer sampled, recreated when needed
+		vmDir.delete();
+	}
+
+	private void appendRow(String vmName, Resolution resolution, long timestamp,
+			long[] values) throws IOException {
+		String key = getKey(vmName, resolution);
+		SegmentWriter writer = writers.get(key);
+		if (writer == null) {
+			writer = new SegmentWriter(getVmDir(vmName, resolution), resolution);
+			writers.put(key, writer);
+		}
+		writer.append(timestamp, values);
+	}
+
+	private Rollup getRollup(String vmName, Resolution resolution) {
+		String key = getKey(vmName, resolution);
+		Rollup rollup = rollups.get(key);
+		if (rollup == null) {
+			rollup = new Rollup(vmName, resolution);
+			rollups.put(key, rollup);
+		}
+		return rollup;
+	}
+
+	private void readSegment(File segment, long from, long to, StoredSeries series)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			int validLength = getValidLength(buffer);
+			int position = 0;
+			while (position < validLength) {
+				int blockSize = SegmentBlock.getEncodedSize(buffer, position);
+				if (SegmentBlock.getLastTimestamp(buffer, position) >= from
+						&& SegmentBlock.getFirstTimestamp(buffer, position) < to) {
+					int rows = SegmentBlock.getRows(buffer, position);
+					SegmentBlock.decode(buffer, position, decodeTimestamps, decodeValues);
+					for (int i = 0; i < rows; i++) {
+						if (decodeTimestamps[i] >= from && decodeTimestamps[i] < to) {
+							series.add(decodeTimestamps[i], decodeValues, i);
+						}
+					}
+				}
+				position += blockSize;
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * A crash while writing may leave a truncated block, a zero filled one, as
+	 * the file is extended when the block is mapped, or one whose columns were
+	 * only partly written.
+	 * @return the length of the blocks of the segment up to the first invalid one
+	 */
+	private static int getValidLength(ByteBuffer buffer) {
+		int position = 0;
+		while (isValidHeader(buffer, position, position, buffer.limit())
+				&& SegmentBlock.isChecksumValid(buffer, position)) {
+			position += SegmentBlock.getEncodedSize(buffer, position);
+		}
+		return position;
+	}
+
+	/**
+	 * @param header the buffer holding the header of the block
+	 * @param headerStart the position of the header in the buffer
+	 * @param blockStart the position of the block in the segment
+	 * @param segmentSize the size of the segment
+	 * @return <b><i>true</b></i> if the header is sound and the block fits in the
+	 * segment, its columns still have to match the checksum
+	 */
+	private static boolean isValidHeader(ByteBuffer header, int headerStart,
+			long blockStart, long segmentSize) {
+		if (blockStart + SegmentBlock.HEADER_SIZE > segmentSize) {
+			return false;
+		}
+		int rows = SegmentBlock.getRows(header, headerStart);
+		int metrics = SegmentBlock.getMetrics(header, headerStart);
+		int blockSize = SegmentBlock.getEncodedSize(header, headerStart);
+		return rows > 0 && rows <= BLOCK_ROWS && metrics > 0 && metrics <= METRICS
+				&& blockSize > SegmentBlock.HEADER_SIZE && blockStart + blockSize <= segmentSize;
+	}
+
+	/**
+	 * @return the segments of the virtual machine, oldest first
+	 */
+	private File[] getSegments(String vmName, Resolution resolution) throws IOException {
+		File[] segments = getVmDir(vmName, resolution).listFiles();
+		if (segments == null) {
+			return new File[0];
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private File getVmDir(String vmName, Resolution resolution) throws IOException {
+		return new File(new File(root, resolution.name().toLowerCase()),
+				URLEncoder.encode(vmName, "UTF-8"));
+	}
+
+	/**
+	 * Segments are named after the start of their window, zero padded so that
+	 * they sort by time.
+	 */
+	private static File getSegmentFile(File vmDir, long segmentStart) {
+		return new File(vmDir, String.format("%015d", segmentStart) + SEGMENT_SUFFIX);
+	}
+
+	private static long getSegmentStart(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static String getKey(String vmName, Resolution resolution) {
+		return resolution.ordinal() + vmName;
+	}
+
+	/**
+	 * Buffers the rows of a virtual machine at a resolution and writes them as
+	 * blocks to the segment covering them.
+	 */
+	private class SegmentWriter {
+
+		final File vmDir;
+		final Resolution resolution;
+		long[] timestamps = new long[INITIAL_ROWS];
+		long[][] values = new long[METRICS][INITIAL_ROWS];
+		int rows;
+		long segmentStart = -1;
+		// Whether the segment was truncated to its valid blocks
+		boolean segmentChecked;
+		long firstAppend;
+
+		SegmentWriter(File vmDir, Resolution resolution) {
+			this.vmDir = vmDir;
+			this.resolution = resolution;
+		}
+
+		void append(long timestamp, long[] row) throws IOException {
+			long rowSegmentStart = timestamp - timestamp % resolution.getSegmentSpan();
+			if (rowSegmentStart != segmentStart) {
+				writeBlock();
+				segmentStart = rowSegmentStart;
+				segmentChecked = false;
+				enforceRetention(vmDir, resolution, System.currentTimeMillis());
+			}
+			if (rows == 0) {
+				firstAppend = System.nanoTime();
+			}
+			if (rows == timestamps.length) {
+				resize(Math.min(2 * rows, BLOCK_ROWS));
+			}
+			timestamps[rows] = timestamp;
+			for (int i = 0; i < METRICS; i++) {
+				values[i][rows] = row[i];
+			}
+			rows++;
+			if (rows == BLOCK_ROWS || isExpired()) {
+				writeBlock();
+			}
+		}
+
+		boolean isExpired() {
+			return rows > 0 && System.nanoTime() - firstAppend >= flushInterval * 1000000;
+		}
+
+		private void resize(int capacity) {
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			for (int i = 0; i < METRICS; i++) {
+				values[i] = Arrays.copyOf(values[i], capacity);
+			}
+		}
+
+		/**
+		 * Appends the buffered rows as a block at the end of the segment file,
+		 * through a mapping of the appended region.
+		 */
+		void writeBlock() throws IOException {
+			if (rows == 0) {
+				return;
+			}
+			encodeBuffer.clear();
+			int blockSize = SegmentBlock.encode(timestamps, values, rows, encodeBuffer);
+			encodeBuffer.flip();
+
+			if (!vmDir.isDirectory() && !vmDir.mkdirs()) {
+				throw new IOException("Could not create " + vmDir);
+			}
+			RandomAccessFile file = new RandomAccessFile(getSegmentFile(vmDir, segmentStart), "rw");
+			try {
+				FileChannel channel = file.getChannel();
+				if (!segmentChecked) {
+					truncateInvalidBlocks(channel);
+					segmentChecked = true;
+				}
+				MappedByteBuffer block = channel.map(MapMode.READ_WRITE, channel.size(), blockSize);
+				block.put(encodeBuffer);
+				block.force();
+			} finally {
+				file.close();
+			}
+			rows = 0;
+			if (timestamps.length > INITIAL_ROWS) {
+				timestamps = new long[INITIAL_ROWS];
+				values = new long[METRICS][INITIAL_ROWS];
+			}
+		}
+
+		/**
+		 * Drops what a crash left after the last valid block, so that new
+		 * blocks are appended right after it. The blocks are read without a
+		 * mapping, which would prevent the truncation on some hosts.
+		 */
+		private void truncateInvalidBlocks(FileChannel channel) throws IOException {
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(SegmentBlock.HEADER_SIZE);
+			long validLength = 0;
+			while (validLength + SegmentBlock.HEADER_SIZE <= size) {
+				header.clear();
+				read(channel, header, validLength);
+				if (!isValidHeader(header, 0, validLength, size)) {
+					break;
+				}
+				ByteBuffer block = ByteBuffer.allocate(SegmentBlock.getEncodedSize(header, 0));
+				read(channel, block, validLength);
+				if (!SegmentBlock.isChecksumValid(block, 0)) {
+					break;
+				}
+				validLength += block.capacity();
+			}
+			if (validLength < size) {
+				LOGGER.warn("Truncating " + (size - validLength) + " invalid bytes of segment "
+						+ getSegmentFile(vmDir, segmentStart));
+				channel.truncate(validLength);
+			}
+		}
+
+		private void read(FileChannel channel, ByteBuffer buffer, long position)
+				throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Aggregates the rows of a virtual machine over the interval of a resolution:
+	 * the last value of counters and the average of gauges. Completed minute rows
+	 * are rolled up into hour rows in turn.
+	 */
+	private class Rollup {
+
+		final String vmName;
+		final Resolution resolution;
+		final long[] last = new long[METRICS];
+		final long[] sums = new long[METRICS];
+		final int[] counts = new int[METRICS];
+		final long[] row = new long[METRICS];
+		long intervalStart = -1;
+
+		Rollup(String vmName, Resolution resolution) {
+			this.vmName = vmName;
+			this.resolution = resolution;
+		}
+
+		void add(long timestamp, long[] values) throws IOException {
+			long rowIntervalStart = timestamp - timestamp % resolution.getInterval();
+			if (rowIntervalStart != intervalStart) {
+				emit();
+				intervalStart = rowIntervalStart;
+			}
+			for (Metric metric : Metric.values()) {
+				int i = metric.ordinal();
+				if (values[i] == TimeSeries.MISSING) {
+					continue;
+				}
+				last[i] = values[i];
+				sums[i] += values[i];
+				counts[i]++;
+			}
+		}
+
+		void emit() throws IOException {
+			if (intervalStart < 0) {
+				return;
+			}
+			for (Metric metric : Metric.values()) {
+				int i = metric.ordinal();
+				if (counts[i] == 0) {
+					row[i] = TimeSeries.MISSING;
+				} else {
+					row[i] = metric.isCounter() ? last[i] : sums[i] / counts[i];
+				}
+			}
+			appendRow(vmName, resolution, intervalStart, row);
+			if (resolution == Resolution.MINUTE) {
+				getRollup(vmName, Resolution.HOUR).add(intervalStart, row);
+			}
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+			intervalStart = -1;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.ourgrid.virt.stats;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the samples of the {@link StatsSampler} in a {@link TimeSeriesStore}.
+ */
+public class TimeSeriesStoreSink implements StatsSink {
+
+	private static final Logger LOGGER = Logger.getLogger(TimeSeriesStoreSink.class);
+	private static final Metric[] METRICS = Metric.values();
+
+	private final TimeSeriesStore store;
+	private final long[] values = new long[METRICS.length];
+
+	public TimeSeriesStoreSink(TimeSeriesStore store) {
+		this.store = store;
+	}
+
+	@Override
+	public void write(List<StatsSample> samples) throws IOException {
+		for (StatsSample sample : samples) {
+			for (Metric metric : METRICS) {
+				values[metric.ordinal()] = sample.getValue(metric);
+			}
+			store.append(sample.getVmName(), sample.getTimestamp(), values);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			store.close();
+		} catch (IOException e) {
+			LOGGER.warn("Could not close the time series store", e);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package org.ourgrid.virt.stats;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.DiskStats;
+import org.ourgrid.virt.model.NetworkStats;
+import org.ourgrid.virt.model.VmUtilization;
+
+/**
+ * Derives usage rates from cumulative statistics, either from two samples
+ * taken by the caller or from the series kept by the {@link StatsSampler}.
+ * Elapsed times are measured with the monotonic sample times when both samples
+ * have them, and counters which go backwards, as happens when a VM is restarted,
+ * are taken as reset to zero.
+ */
+public class UsageCalculator {
+
+	private static final double NANOS_PER_SECOND = 1e9;
+	private static final double NANOS_PER_MILLI = 1e6;
+	private static final DiskStats NO_DISK_ACTIVITY = new DiskStats();
+
+	/**
+	 * @return the increase of a counter between two samples,
+	 * assuming it was reset if it went backwards
+	 */
+	public static long delta(long previous, long current) {
+		return current >= previous ? current - previous : current;
+	}
+
+	/**
+	 * @return the cpu usage between the two samples, in percent of one host core
+	 */
+	public static double getCpuUsage(CPUStats previous, CPUStats current) {
+		double elapsed = elapsedNanos(previous.getTimestamp(), previous.getNanoTime(),
+				current.getTimestamp(), current.getNanoTime());
+		return percent(delta(previous.getCpuTime(), current.getCpuTime()), elapsed);
+	}
+
+	/**
+	 * Computes the usage rates of a virtual machine between two rounds of samples.
+	 * Any pair of samples may be <b>null</b>, in which case the related rates are
+	 * left as {@link Double#NaN}.
+	 * @return the usage rates between the two rounds
+	 */
+	public static VmUtilization calculate(CPUStats previousCpu, CPUStats currentCpu,
+			NetworkStats previousNetwork, NetworkStats currentNetwork,
+			List<DiskStats> previousDisks, List<DiskStats> currentDisks) {
+
+		VmUtilization utilization = new VmUtilization();
+
+		if (previousCpu != null && currentCpu != null) {
+			double elapsed = elapsedNanos(previousCpu.getTimestamp(), previousCpu.getNanoTime(),
+					currentCpu.getTimestamp(), currentCpu.getNanoTime());
+			utilization.setInterval((long) (elapsed / NANOS_PER_MILLI));
+			utilization.setCpuUsage(percent(
+					delta(previousCpu.getCpuTime(), currentCpu.getCpuTime()), elapsed));
+			utilization.setGuestCpuUsage(percent(
+					delta(previousCpu.getGuestTime(), currentCpu.getGuestTime()), elapsed));
+			if (!previousCpu.getVcpus().isEmpty() && !currentCpu.getVcpus().isEmpty()) {
+				utilization.setCpuWait(percent(
+						delta(previousCpu.getRunDelay(), currentCpu.getRunDelay()), elapsed));
+			}
+		}
+
+		if (previousNetwork != null && currentNetwork != null) {
+			double elapsed = elapsedNanos(previousNetwork.getTimestamp(),
+					previousNetwork.getNanoTime(), currentNetwork.getTimestamp(),
+					currentNetwork.getNanoTime());
+			utilization.setInterval((long) (elapsed / NANOS_PER_MILLI));
+			utilization.setReceivedBytesPerSecond(perSecond(delta(
+					previousNetwork.getReceivedBytes(), currentNetwork.getReceivedBytes()), elapsed));
+			utilization.setReceivedPacketsPerSecond(perSecond(delta(
+					previousNetwork.getReceivedPackets(), currentNetwork.getReceivedPackets()), elapsed));
+			utilization.setTransferredBytesPerSecond(perSecond(delta(
+					previousNetwork.getTransferredBytes(), currentNetwork.getTransferredBytes()), elapsed));
+			utilization.setTransferredPacketsPerSecond(perSecond(delta(
+					previousNetwork.getTransferredPackets(), currentNetwork.getTransferredPackets()), elapsed));
+		}
+
+		if (previousDisks != null && currentDisks != null && !currentDisks.isEmpty()) {
+			calculateDisks(utilization, previousDisks, currentDisks);
+		}
+
+		return utilization;
+	}
+
+	/**
+	 * Computes the usage rates of a virtual machine over the last <i>window</i> ms
+	 * of its sampled series.
+	 * @return the usage rates over the window
+	 */
+	public static VmUtilization calculate(TimeSeries timeSeries, long window) {
+		VmUtilization utilization = new VmUtilization();
+		utilization.setInterval(timeSeries.getInterval(window));
+
+		// Cpu times are in ms, so ms per second / 10 gives the percentage
+		utilization.setCpuUsage(timeSeries.getRate(Metric.CPU_TIME, window) / 10);
+		utilization.setGuestCpuUsage(timeSeries.getRate(Metric.CPU_GUEST_TIME, window) / 10);
+		utilization.setCpuWait(timeSeries.getRate(Metric.CPU_WAIT_TIME, window) / 10);
+
+		utilization.setReceivedBytesPerSecond(
+				timeSeries.getRate(Metric.NET_RECEIVED_BYTES, window));
+		utilization.setReceivedPacketsPerSecond(
+				timeSeries.getRate(Metric.NET_RECEIVED_PACKETS, window));
+		utilization.setTransferredBytesPerSecond(
+				timeSeries.getRate(Metric.NET_TRANSFERRED_BYTES, window));
+		utilization.setTransferredPacketsPerSecond(
+				timeSeries.getRate(Metric.NET_TRANSFERRED_PACKETS, window));
+
+		utilization.setReadOpsPerSecond(timeSeries.getRate(Metric.DISK_READ_OPS, window));
+		utilization.setReadBytesPerSecond(timeSeries.getRate(Metric.DISK_READ_BYTES, window));
+		utilization.setReadLatency(latency(
+				timeSeries.getIncrease(Metric.DISK_READ_TIME, window),
+				timeSeries.getIncrease(Metric.DISK_READ_OPS, window)));
+		utilization.setWriteOpsPerSecond(timeSeries.getRate(Metric.DISK_WRITE_OPS, window));
+		utilization.setWriteBytesPerSecond(timeSeries.getRate(Metric.DISK_WRITE_BYTES, window));
+		utilization.setWriteLatency(latency(
+				timeSeries.getIncrease(Metric.DISK_WRITE_TIME, window),
+				timeSeries.getIncrease(Metric.DISK_WRITE_OPS, window)));
+
+		return utilization;
+	}
+
+	private static void calculateDisks(VmUtilization utilization,
+			List<DiskStats> previousDisks, List<DiskStats> currentDisks) {
+
+		Map<String, DiskStats> previousByDevice = new HashMap<String, DiskStats>();
+		for (DiskStats previous : previousDisks) {
+			previousByDevice.put(previous.getDeviceName(), previous);
+		}
+
+		long readOps = 0;
+		long readBytes = 0;
+		long readTime = 0;
+		long writeOps = 0;
+		long writeBytes = 0;
+		long writeTime = 0;
+		double elapsed = Double.NaN;
+
+		for (DiskStats current : currentDisks) {
+			DiskStats previous = previousByDevice.get(current.getDeviceName());
+			if (previous == null) {
+				// Disk attached between the samples, all its activity is within the interval
+				previous = NO_DISK_ACTIVITY;
+			} else if (Double.isNaN(elapsed)) {
+				elapsed = elapsedNanos(previous.getTimestamp(), previous.getNanoTime(),
+						current.getTimestamp(), current.getNanoTime());
+			}
+			readOps += delta(previous.getReadOps(), current.getReadOps());
+			readBytes += delta(previous.getReadBytes(), current.getReadBytes());
+			readTime += delta(previous.getReadTotalTime(), current.getReadTotalTime());
+			writeOps += delta(previous.getWriteOps(), current.getWriteOps());
+			writeBytes += delta(previous.getWriteBytes(), current.getWriteBytes());
+			writeTime += delta(previous.getWriteTotalTime(), current.getWriteTotalTime());
+		}
+
+		utilization.setReadOpsPerSecond(perSecond(readOps, elapsed));
+		utilization.setReadBytesPerSecond(perSecond(readBytes, elapsed));
+		utilization.setReadLatency(latency(readTime, readOps));
+		utilization.setWriteOpsPerSecond(perSecond(writeOps, elapsed));
+		utilization.setWriteBytesPerSecond(perSecond(writeBytes, elapsed));
+		utilization.setWriteLatency(latency(writeTime, writeOps));
+	}
+
+	/**
+	 * @return the nanoseconds elapsed between two samples, preferring their
+	 * monotonic times and falling back to their wall clock times
+	 */
+	private static double elapsedNanos(long previousTimestamp, long previousNanoTime,
+			long currentTimestamp, long currentNanoTime) {
+		if (previousNanoTime != 0 && currentNanoTime != 0) {
+			return currentNanoTime - previousNanoTime;
+		}
+		return (currentTimestamp - previousTimestamp) * NANOS_PER_MILLI;
+	}
+
+	private static double perSecond(long delta, double elapsedNanos) {
+		if (!(elapsedNanos > 0)) {
+			return Double.NaN;
+		}
+		return delta * NANOS_PER_SECOND / elapsedNanos;
+	}
+
+	private static double percent(long deltaMillis, double elapsedNanos) {
+		return perSecond(deltaMillis, elapsedNanos) / 10;
+	}
+
+	/**
+	 * @param totalTime the time spent on the operations, in microseconds
+	 * @param ops the number of operations
+	 * @return the average latency in ms, 0 if there were no operations
+	 */
+	private static double latency(long totalTime, long ops) {
+		if (totalTime == TimeSeries.MISSING || ops == TimeSeries.MISSING) {
+			return Double.NaN;
+		}
+		return ops == 0 ? 0 : totalTime / 1000.0 / ops;
+	}
+}
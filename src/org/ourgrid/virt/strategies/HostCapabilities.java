@@ -0,0 +1,444 @@
+package org.ourgrid.virt.strategies;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.ourgrid.virt.model.ExecutionResult;
+
+/**
+ * Capabilities of the host which influence how virtual machines are launched,
+ * such as KVM and hugepages support, CPU flags and the installed hypervisor tools.
+ * Each group of capabilities is probed once, on its first use, and cached until
+ * {@link #refresh()} is called, so that no process is forked on the start path.
+ */
+public class HostCapabilities {
+
+	private static final Logger LOGGER = Logger.getLogger(HostCapabilities.class);
+
+	private static final HostCapabilities INSTANCE = new HostCapabilities();
+
+	private static final String KVM_DEVICE = "/dev/kvm";
+	private static final String VHOST_NET_DEVICE = "/dev/vhost-net";
+	private static final String CPUINFO_FILE = "/proc/cpuinfo";
+	private static final String[] NESTED_PARAMETERS = {
+		"/sys/module/kvm_intel/parameters/nested",
+		"/sys/module/kvm_amd/parameters/nested"};
+	private static final String AUXV_FILE = "/proc/self/auxv";
+	private static final long AT_CLKTCK = 17;
+	private static final long DEFAULT_CLOCK_TICKS = 100;
+	private static final String QEMU_SYSTEM = "qemu-system-i386";
+
+	private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d+)\\.(\\d+)(?:\\.(\\d+))?");
+	private static final Pattern QEMU_DEVICE_PATTERN = Pattern.compile("^name \"([^\"]+)\"");
+
+	private boolean hostProbed;
+	private boolean kvm;
+	private boolean nestedVirtualization;
+	private boolean vhostNet;
+	private long hugePageSize;
+	private long hugePagesTotal;
+	private Set<String> cpuFlags = Collections.emptySet();
+	private long clockTicks = DEFAULT_CLOCK_TICKS;
+
+	private boolean qemuProbed;
+	private String qemuVersion;
+	private Set<String> qemuDevices = Collections.emptySet();
+
+	private boolean vboxProbed;
+	private String vboxManageVersion;
+
+	private boolean vserverProbed;
+	private String vserverVersion;
+
+	/**
+	 * @return the capabilities of this host, shared by all strategies
+	 */
+	public static HostCapabilities getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Discards the cached capabilities, they will be probed again on their next use.
+	 */
+	public synchronized void refresh() {
+		hostProbed = false;
+		qemuProbed = false;
+		vboxProbed = false;
+		vserverProbed = false;
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if KVM can be used by the current user, <b><i>false</b></i> otherwise.
+	 */
+	public synchronized boolean isKvmAvailable() {
+		probeHost();
+		return kvm;
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if the KVM module allows nested virtualization,
+	 * <b><i>false</b></i> otherwise.
+	 */
+	public synchronized boolean isNestedVirtualizationEnabled() {
+		probeHost();
+		return nestedVirtualization;
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if the vhost-net device can be used by the current user,
+	 * <b><i>false</b></i> otherwise.
+	 */
+	public synchronized boolean isVhostNetAvailable() {
+		probeHost();
+		return vhostNet;
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if the kernel has hugepages reserved, <b><i>false</b></i> otherwise.
+	 */
+	public synchronized boolean isHugePagesSupported() {
+		probeHost();
+		return hugePagesTotal > 0;
+	}
+
+	/**
+	 * @return the size of a hugepage in bytes, or 0 if hugepages are not supported
+	 */
+	public synchronized long getHugePageSize() {
+		probeHost();
+		return hugePageSize;
+	}
+
+	/**
+	 * @return the flags of the host CPU, as listed in /proc/cpuinfo
+	 */
+	public synchronized Set<String> getCpuFlags() {
+		probeHost();
+		return cpuFlags;
+	}
+
+	/**
+	 * @return the number of clock ticks per second (USER_HZ) used by the 
+	 * kernel to report process times in /proc
+	 */
+	public synchronized long getClockTicks() {
+		probeHost();
+		return clockTicks;
+	}
+
+	public boolean hasCpuFlag(String flag) {
+		return getCpuFlags().contains(flag);
+	}
+
+	/**
+	 * @return the installed QEmu version, or <b>null</b> if QEmu could not be found
+	 */
+	public synchronized String getQemuVersion() {
+		probeQemu();
+		return qemuVersion;
+	}
+
+	/**
+	 * @return the names of the devices supported by the installed QEmu
+	 */
+	public synchronized Set<String> getQemuDevices() {
+		probeQemu();
+		return qemuDevices;
+	}
+
+	/**
+	 * @param device a QEmu device name, such as <i>virtio-blk-pci</i>
+	 * @return <b><i>true</b></i> if the installed QEmu supports the device,
+	 * or if its devices could not be probed.
+	 */
+	public boolean supportsQemuDevice(String device) {
+		Set<String> devices = getQemuDevices();
+		return devices.isEmpty() || devices.contains(device);
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if the installed QEmu is at least the given version,
+	 * <b><i>false</b></i> if it is older or its version could not be probed.
+	 */
+	public boolean isQemuVersionAtLeast(int major, int minor) {
+		return isVersionAtLeast(getQemuVersion(), major, minor);
+	}
+
+	/**
+	 * @return the installed VBoxManage version, or <b>null</b> if it could not be found
+	 */
+	public synchronized String getVBoxManageVersion() {
+		if (!vboxProbed) {
+			vboxManageVersion = probeVBoxManageVersion();
+			vboxProbed = true;
+		}
+		return vboxManageVersion;
+	}
+
+	/**
+	 * @return the installed vserver version, or <b>null</b> if it could not be found
+	 */
+	public synchronized String getVServerVersion() {
+		if (!vserverProbed) {
+			vserverVersion = probeVServerVersion();
+			vserverProbed = true;
+		}
+		return vserverVersion;
+	}
+
+	private void probeHost() {
+		if (hostProbed) {
+			return;
+		}
+		hostProbed = true;
+
+		kvm = false;
+		nestedVirtualization = false;
+		vhostNet = false;
+		hugePageSize = 0;
+		hugePagesTotal = 0;
+		cpuFlags = Collections.emptySet();
+		clockTicks = DEFAULT_CLOCK_TICKS;
+
+		if (!HypervisorUtils.isLinuxHost()) {
+			LOGGER.debug("It is not a linux host");
+			return;
+		}
+
+		kvm = probeKvm();
+		vhostNet = isReadWrite(new File(VHOST_NET_DEVICE));
+
+		for (String nestedParameter : NESTED_PARAMETERS) {
+			String nested = readFirstLine(nestedParameter);
+			if (nested != null && (nested.startsWith("Y") || nested.startsWith("1"))) {
+				nestedVirtualization = true;
+			}
+		}
+
+		try {
+			Map<String, Long> memInfo = LinuxUtils.getMemInfo();
+			Long pageSizeKB = memInfo.get("Hugepagesize");
+			Long pagesTotal = memInfo.get("HugePages_Total");
+			hugePageSize = pageSizeKB == null ? 0 : pageSizeKB * 1024;
+			hugePagesTotal = pagesTotal == null ? 0 : pagesTotal;
+		} catch (Exception e) {
+			LOGGER.debug("Could not read " + LinuxUtils.MEMINFO_FILE, e);
+		}
+
+		cpuFlags = probeCpuFlags();
+		clockTicks = probeClockTicks();
+	}
+
+	private boolean probeKvm() {
+		File kvmDevice = new File(KVM_DEVICE);
+		if (!kvmDevice.exists()) {
+			LOGGER.debug(KVM_DEVICE + " does not exist");
+			return false;
+		}
+		if (!isReadWrite(kvmDevice)) {
+			LOGGER.debug("No permission to access " + KVM_DEVICE);
+			return false;
+		}
+		try {
+			return new ProcessBuilder("kvm-ok").start().waitFor() == 0;
+		} catch (Exception e) {
+			LOGGER.debug("kvm-ok failed, relying on " + KVM_DEVICE);
+			return true;
+		}
+	}
+
+	private Set<String> probeCpuFlags() {
+		FileReader reader = null;
+		try {
+			reader = new FileReader(CPUINFO_FILE);
+			for (String line : IOUtils.readLines(reader)) {
+				if (line.startsWith("flags")) {
+					String flags = line.substring(line.indexOf(':') + 1).trim();
+					return Collections.unmodifiableSet(
+							new HashSet<String>(Arrays.asList(flags.split("\\s+"))));
+				}
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not read " + CPUINFO_FILE, e);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Reads AT_CLKTCK from the auxiliary vector the kernel passed to this process,
+	 * which avoids forking <i>getconf CLK_TCK</i>.
+	 */
+	private long probeClockTicks() {
+		FileInputStream auxvStream = null;
+		try {
+			auxvStream = new FileInputStream(AUXV_FILE);
+			ByteBuffer auxv = ByteBuffer.wrap(IOUtils.toByteArray(auxvStream));
+			auxv.order(ByteOrder.nativeOrder());
+			boolean is64Bit = !"32".equals(System.getProperty("sun.arch.data.model"));
+			int entrySize = is64Bit ? 16 : 8;
+			while (auxv.remaining() >= entrySize) {
+				long type = is64Bit ? auxv.getLong() : auxv.getInt();
+				long value = is64Bit ? auxv.getLong() : auxv.getInt();
+				if (type == AT_CLKTCK && value > 0) {
+					return value;
+				}
+				if (type == 0) {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Could not read " + AUXV_FILE, e);
+		} finally {
+			IOUtils.closeQuietly(auxvStream);
+		}
+		return DEFAULT_CLOCK_TICKS;
+	}
+
+	private void probeQemu() {
+		if (qemuProbed) {
+			return;
+		}
+		qemuProbed = true;
+		qemuVersion = null;
+		qemuDevices = Collections.emptySet();
+
+		List<String> versionOut = runQuietly(getQemuProcessBuilder("--version"));
+		if (versionOut == null || versionOut.isEmpty()) {
+			return;
+		}
+		qemuVersion = parseVersion(versionOut.get(0));
+
+		List<String> devicesOut = runQuietly(getQemuProcessBuilder("-device", "help"));
+		if (devicesOut == null) {
+			return;
+		}
+		Set<String> devices = new HashSet<String>();
+		for (String line : devicesOut) {
+			Matcher matcher = QEMU_DEVICE_PATTERN.matcher(line);
+			if (matcher.find()) {
+				devices.add(matcher.group(1));
+			}
+		}
+		qemuDevices = Collections.unmodifiableSet(devices);
+	}
+
+	/**
+	 * Runs the QEmu executable the way QEmuStrategy does, ./qemu-system-i386 from the
+	 * qemu.home directory, or the working directory if it is not set.
+	 */
+	private ProcessBuilder getQemuProcessBuilder(String... args) {
+		ProcessBuilder processBuilder;
+		if (HypervisorUtils.isWindowsHost()) {
+			StringBuilder cmd = new StringBuilder(QEMU_SYSTEM);
+			for (String arg : args) {
+				cmd.append(' ').append(arg);
+			}
+			processBuilder = new ProcessBuilder("cmd", "/C " + cmd);
+		} else {
+			String[] cmd = new String[args.length + 1];
+			cmd[0] = "./" + QEMU_SYSTEM;
+			System.arraycopy(args, 0, cmd, 1, args.length);
+			processBuilder = new ProcessBuilder(cmd);
+		}
+		String qemuHome = System.getProperty("qemu.home");
+		if (qemuHome != null) {
+			processBuilder.directory(new File(qemuHome));
+		}
+		return processBuilder;
+	}
+
+	private String probeVBoxManageVersion() {
+		String vBoxInstallPath = System.getenv().get("VBOX_INSTALL_PATH");
+		ProcessBuilder processBuilder;
+		if (HypervisorUtils.isWindowsHost()) {
+			if (!new File(vBoxInstallPath + "\\VBoxManage.exe").exists()) {
+				vBoxInstallPath = null;
+			}
+			processBuilder = new ProcessBuilder("cmd", "/C VBoxManage --nologo --version");
+		} else {
+			processBuilder = new ProcessBuilder("VBoxManage", "--nologo", "--version");
+		}
+		if (vBoxInstallPath != null) {
+			processBuilder.directory(new File(vBoxInstallPath));
+		}
+		return getFirstLine(runQuietly(processBuilder));
+	}
+
+	private String probeVServerVersion() {
+		if (!HypervisorUtils.isLinuxHost()) {
+			return null;
+		}
+		return getFirstLine(runQuietly(new ProcessBuilder(
+				"/usr/bin/sudo", "/usr/sbin/vserver", "--version")));
+	}
+
+	private static List<String> runQuietly(ProcessBuilder processBuilder) {
+		try {
+			ExecutionResult executionResult = HypervisorUtils.runProcess(processBuilder);
+			if (executionResult.getReturnValue() != ExecutionResult.OK) {
+				return null;
+			}
+			return executionResult.getStdOut();
+		} catch (Exception e) {
+			LOGGER.debug("Could not run " + processBuilder.command(), e);
+			return null;
+		}
+	}
+
+	private static String getFirstLine(List<String> output) {
+		if (output == null) {
+			return null;
+		}
+		return output.isEmpty() ? "" : output.get(0).trim();
+	}
+
+	private static String parseVersion(String versionLine) {
+		Matcher matcher = VERSION_PATTERN.matcher(versionLine);
+		return matcher.find() ? matcher.group() : null;
+	}
+
+	static boolean isVersionAtLeast(String version, int major, int minor) {
+		if (version == null) {
+			return false;
+		}
+		Matcher matcher = VERSION_PATTERN.matcher(version);
+		if (!matcher.find()) {
+			return false;
+		}
+		int versionMajor = Integer.parseInt(matcher.group(1));
+		int versionMinor = Integer.parseInt(matcher.group(2));
+		return versionMajor > major || (versionMajor == major && versionMinor >= minor);
+	}
+
+	private static boolean isReadWrite(File file) {
+		return file.canRead() && file.canWrite();
+	}
+
+	private static String readFirstLine(String path) {
+		FileReader reader = null;
+		try {
+			reader = new FileReader(path);
+			List<String> lines = IOUtils.readLines(reader);
+			return lines.isEmpty() ? null : lines.get(0).trim();
+		} catch (Exception e) {
+			return null;
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+}
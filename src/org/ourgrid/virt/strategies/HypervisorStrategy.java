@@ -7,6 +7,7 @@ import java.util.Map;
 import org.ourgrid.virt.model.CPUStats;
 import org.ourgrid.virt.model.DiskStats;
 import org.ourgrid.virt.model.ExecutionResult;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.VirtualMachine;
 import org.ourgrid.virt.model.VirtualMachineStatus;
@@ -211,6 +212,14 @@ public interface HypervisorStrategy {
 	
 	NetworkStats getNetworkStats(VirtualMachine registeredVM) throws Exception;
 	
+	/**
+	 * @param registeredVM the related virtual machine
+	 * @return the memory used by the hypervisor process and, where available,
+	 * the memory usage reported by the guest. <b>null</b> if not supported.
+	 * @throws Exception if some problem occurs while trying to get the memory statistics
+	 */
+	MemoryStats getMemoryStats(VirtualMachine registeredVM) throws Exception;
+	
 	/**
 	 * @param registeredVM
 	 * @param devicePathInHost
@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.ourgrid.virt.model.HypervisorType;
+import org.ourgrid.virt.strategies.fake.FakeStrategy;
 import org.ourgrid.virt.strategies.qemu.QEmuStrategy;
 import org.ourgrid.virt.strategies.vbox.VBoxSdkStrategy;
 import org.ourgrid.virt.strategies.vbox.VBoxStrategy;
@@ -39,6 +40,8 @@ public class HypervisorStrategyFactory {
 			return new VServerStrategy();
 		case QEMU:
 			return new QEmuStrategy();
+		case FAKE:
+			return new FakeStrategy();
 		default:
 			return null;
 		}
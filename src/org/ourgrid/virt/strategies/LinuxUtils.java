@@ -1,18 +1,24 @@
 package org.ourgrid.virt.strategies;
 
 import java.io.FileReader;
-import java.io.InputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
 import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.VirtualMachine;
-import org.ourgrid.virt.model.VirtualMachineConstants;
 
 public class LinuxUtils {
 
-	private static final int CPU_TIME_INDEX = 10;
+	private static final ProcStatReader PROC_STAT_READER = new ProcStatReader();
+	// Lets a single read of /proc/net/dev serve every VM sampled in the same round
+	private static final NetDevReader NET_DEV_READER = new NetDevReader(
+			Long.getLong("net.dev.maxage", 500));
 	public static final String LINUX_PERMISSIONS_FILE = "/etc/sudoers";
+	public static final String MEMINFO_FILE = "/proc/meminfo";
 
 	public static void appendNoPasswdToSudoers(String userName, String line)
 			throws Exception {
@@ -34,112 +40,113 @@ public class LinuxUtils {
 		}
 	}
 
-	public static NetworkStats getNetworkStats(VirtualMachine registeredVM, 
-			String ifName) throws Exception {
-		
-		if (!registeredVM.getProperty(VirtualMachineConstants.NETWORK_TYPE)
-				.equals(VirtualMachineConstants.BRIDGED_NET_MODE)) {
-			throw new RuntimeException("Unsupported network type");
+	/**
+	 * Reads the host memory counters from /proc/meminfo.
+	 * @return a map from counter names to their values, in kB for sizes
+	 * @throws IOException if /proc/meminfo cannot be read
+	 */
+	public static Map<String, Long> getMemInfo() throws IOException {
+		return readKeyValues(MEMINFO_FILE);
+	}
+
+	/**
+	 * Reads the memory used by the given process from /proc/&lt;pid&gt;/status and,
+	 * on kernels which provide it, /proc/&lt;pid&gt;/smaps_rollup.
+	 * @param pid the process id
+	 * @return the host side memory statistics of the process
+	 * @throws Exception if the process does not exist
+	 */
+	public static MemoryStats getMemoryStats(String pid) throws Exception {
+		Map<String, Long> status;
+		try {
+			status = readKeyValues("/proc/" + pid + "/status");
+		} catch (IOException e) {
+			throw new Exception("Could not retrieve memory statistics.", e);
 		}
 		
-		StringBuilder cmdSB = new StringBuilder();
-		cmdSB.append("cat /proc/net/dev | grep " + ifName);
-		
-		ProcessBuilder psProcessBuilder = 
-				new ProcessBuilder("/bin/bash", "-c", cmdSB.toString());
-		Process p = psProcessBuilder.start();
-		
-		int psExitValue = p.waitFor();
-		//Getting the approximate timestamp of the cat process return
-		long timestamp = System.currentTimeMillis();
-		if (psExitValue != 0) {
-			String stdError = IOUtils.toString(p.getErrorStream());
-			String stdOut = IOUtils.toString(p.getInputStream());
-			throw new RuntimeException(
-					"Error while trying to get device information. StdOut: [ " 
-					+ stdOut + " ]. StdError: [ " + stdError + " ]");
+		MemoryStats memoryStats = new MemoryStats();
+		memoryStats.setTimestamp(System.currentTimeMillis());
+		memoryStats.setNanoTime(System.nanoTime());
+		memoryStats.setResidentMemory(toBytes(status.get("VmRSS")));
+		memoryStats.setSwappedMemory(toBytes(status.get("VmSwap")));
+		
+		try {
+			Map<String, Long> smapsRollup = readKeyValues("/proc/" + pid + "/smaps_rollup");
+			memoryStats.setProportionalMemory(toBytes(smapsRollup.get("Pss")));
+		} catch (IOException e) {
+			// Kernels older than 4.14 have no smaps_rollup, PSS stays unavailable
 		}
 		
-		String[] ifStats = IOUtils.toString(p.getInputStream()).split("\\s+");
-		
-		NetworkStats networkStats = new NetworkStats();
-		networkStats.setDeviceName(ifName);
-		networkStats.setTimestamp(timestamp);
-		networkStats.setReceivedBytes(Long.parseLong(ifStats[1]));
-		networkStats.setReceivedPackets(Long.parseLong(ifStats[2]));
-		networkStats.setReceivedErrors(Long.parseLong(ifStats[3]));
-		networkStats.setReceivedDropped(Long.parseLong(ifStats[4]));
-		networkStats.setReceivedFIFOErrors(Long.parseLong(ifStats[5]));
-		networkStats.setReceivedPktFramingErrors(Long.parseLong(ifStats[6]));
-		networkStats.setReceivedCompressed(Long.parseLong(ifStats[7]));
-		networkStats.setReceivedMulticast(Long.parseLong(ifStats[8]));
-		
-		networkStats.setTransferredBytes(Long.parseLong(ifStats[9]));
-		networkStats.setTransferredPackets(Long.parseLong(ifStats[10]));
-		networkStats.setTransferredErrors(Long.parseLong(ifStats[11]));
-		networkStats.setTransferredDropped(Long.parseLong(ifStats[12]));
-		networkStats.setTransferredFIFOErrors(Long.parseLong(ifStats[13]));
-		networkStats.setTransferredCollisions(Long.parseLong(ifStats[14]));
-		networkStats.setTransferredCarrierLosses(Long.parseLong(ifStats[15]));
-		networkStats.setTransferredCompressed(Long.parseLong(ifStats[16]));
-		
-		return networkStats;
+		return memoryStats;
 	}
 
-	public static CPUStats getCPUStats(String vmProcessPid) throws Exception {
-			
-		CPUStats cpuStats;
-		
-		String[] topStats;
-		long cpuTime = 0;
-		
-		StringBuilder topCmd = new StringBuilder();
-		topCmd.append("top -b -n 1 -p ");
-		topCmd.append(vmProcessPid);
-		topCmd.append(" | grep ");
-		topCmd.append(vmProcessPid);
-		
-		ProcessBuilder psProcessBuilder = 
-				new ProcessBuilder("/bin/bash", "-c", topCmd.toString());
-		
-		Process psProcess = psProcessBuilder.start();
-		InputStream psIn = psProcess.getInputStream();
-		int psExitValue = psProcess.waitFor();
-		//Getting the approximate timestamp of the top process return
-		long timestamp = System.currentTimeMillis();
-		if (psExitValue != 0) {
-			throw new Exception("Could not retrieve cpu statistics. " +
-					"Process return value: " + psExitValue);
+	private static long toBytes(Long kiloBytes) {
+		return kiloBytes == null ? MemoryStats.NOT_AVAILABLE : kiloBytes * 1024;
+	}
+
+	/**
+	 * Parses procfs files made of "Key: value [kB]" lines.
+	 */
+	private static Map<String, Long> readKeyValues(String path) throws IOException {
+		Map<String, Long> keyValues = new HashMap<String, Long>();
+		FileReader reader = new FileReader(path);
+		try {
+			for (String line : IOUtils.readLines(reader)) {
+				int separator = line.indexOf(':');
+				if (separator < 0) {
+					continue;
+				}
+				String[] value = line.substring(separator + 1).trim().split("\\s+");
+				try {
+					keyValues.put(line.substring(0, separator), Long.parseLong(value[0]));
+				} catch (NumberFormatException e) {
+					// Not a numeric entry, such as the process name in status
+				}
+			}
+		} finally {
+			reader.close();
 		}
-		
-		String processStr = IOUtils.toString(psIn);
-		topStats = processStr.trim().split("\\s+");
-		
-		if (topStats.length < CPU_TIME_INDEX + 1) {
-			throw new Exception("Could not retrieve cpu statistics.");
+		return keyValues;
+	}
+
+	public static NetworkStats getNetworkStats(VirtualMachine registeredVM, 
+			String ifName) throws Exception {
+		if (ifName == null) {
+			throw new Exception("No network interface for " + registeredVM.getName());
 		}
-		
-//		CPUTime Pattern: [DD-]mm:ss.hh
-		String cpuTimeStr = topStats[CPU_TIME_INDEX];
-		String[] cpuTimeArray = cpuTimeStr.split("-");
-		if (cpuTimeArray.length > 1) {
-			cpuTime += Long.parseLong(cpuTimeArray[0])*24*60*60;
-			cpuTimeStr = cpuTimeArray[1];
+		try {
+			return NET_DEV_READER.getNetworkStats(ifName);
+		} catch (IOException e) {
+			throw new Exception("Error while trying to get device information.", e);
+		}
+	}
+
+	/**
+	 * Reads the scheduling statistics of a thread from 
+	 * /proc/&lt;pid&gt;/task/&lt;tid&gt;/schedstat.
+	 * @param pid the process id
+	 * @param tid the thread id
+	 * @return the time spent on a cpu (ns), the time spent waiting on a run queue (ns)
+	 * and the number of timeslices run
+	 * @throws IOException if the thread does not exist in the process
+	 */
+	public static long[] getSchedStat(String pid, int tid) throws IOException {
+		FileReader reader = new FileReader("/proc/" + pid + "/task/" + tid + "/schedstat");
+		try {
+			String[] fields = IOUtils.toString(reader).trim().split("\\s+");
+			return new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1]), 
+					Long.parseLong(fields[2])};
+		} finally {
+			reader.close();
+		}
+	}
+
+	public static CPUStats getCPUStats(String vmProcessPid) throws Exception {
+		try {
+			return PROC_STAT_READER.getCPUStats(vmProcessPid);
+		} catch (IOException e) {
+			throw new Exception("Could not retrieve cpu statistics.", e);
 		}
-		long minutes = Long.parseLong(cpuTimeStr.split(":")[0]);
-		long seconds = Long.parseLong(cpuTimeStr.split(":")[1].split("\\.")[0]);
-		long hundredths = Long.parseLong(cpuTimeStr.split(":")[1].split("\\.")[1]);
-		
-		// Changing time unit to ms
-		cpuTime += minutes*60*1000;
-		cpuTime += seconds*1000;
-		cpuTime += hundredths*10; 
-		
-		cpuStats = new CPUStats();
-		cpuStats.setCpuTime(cpuTime);
-		cpuStats.setTimestamp(timestamp);
-		
-		return cpuStats;
 	}
 
 }
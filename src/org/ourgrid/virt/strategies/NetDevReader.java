@@ -0,0 +1,183 @@
+package org.ourgrid.virt.strategies;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.ourgrid.virt.model.NetworkStats;
+
+/**
+ * Reads the counters of every network interface of the host from /proc/net/dev
+ * in a single pass. The counters are kept in reusable arrays and the file is only
+ * read again when the last read is older than the configured maximum age, so that
+ * sampling all the virtual machines of the host costs one read.
+ */
+public class NetDevReader {
+
+	private static final String NET_DEV_FILE = "/proc/net/dev";
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int COUNTERS = 16;
+	private static final int GENERATION = COUNTERS;
+
+	private final long maxAge;
+	private final Map<String, long[]> counters = new HashMap<String, long[]>();
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private long lastRead = -1;
+	private long lastReadTimestamp;
+	private long generation;
+
+	/**
+	 * @param maxAge the time, in ms, during which the last read counters are reused
+	 */
+	public NetDevReader(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @param ifName the exact name of the network interface
+	 * @return the counters of the given interface
+	 * @throws IOException if /proc/net/dev cannot be read or does not list the interface
+	 */
+	public synchronized NetworkStats getNetworkStats(String ifName) throws IOException {
+		refresh();
+
+		long[] ifCounters = counters.get(ifName);
+		if (ifCounters == null) {
+			throw new IOException("Network interface " + ifName + " not found");
+		}
+
+		NetworkStats networkStats = new NetworkStats();
+		networkStats.setDeviceName(ifName);
+		networkStats.setTimestamp(lastReadTimestamp);
+		networkStats.setNanoTime(lastRead);
+		networkStats.setReceivedBytes(ifCounters[0]);
+		networkStats.setReceivedPackets(ifCounters[1]);
+		networkStats.setReceivedErrors(ifCounters[2]);
+		networkStats.setReceivedDropped(ifCounters[3]);
+		networkStats.setReceivedFIFOErrors(ifCounters[4]);
+		networkStats.setReceivedPktFramingErrors(ifCounters[5]);
+		networkStats.setReceivedCompressed(ifCounters[6]);
+		networkStats.setReceivedMulticast(ifCounters[7]);
+
+		networkStats.setTransferredBytes(ifCounters[8]);
+		networkStats.setTransferredPackets(ifCounters[9]);
+		networkStats.setTransferredErrors(ifCounters[10]);
+		networkStats.setTransferredDropped(ifCounters[11]);
+		networkStats.setTransferredFIFOErrors(ifCounters[12]);
+		networkStats.setTransferredCollisions(ifCounters[13]);
+		networkStats.setTransferredCarrierLosses(ifCounters[14]);
+		networkStats.setTransferredCompressed(ifCounters[15]);
+
+		return networkStats;
+	}
+
+	/**
+	 * @return the names of the network interfaces found in the last read
+	 */
+	public synchronized Set<String> getInterfaces() throws IOException {
+		refresh();
+		return new HashSet<String>(counters.keySet());
+	}
+
+	private void refresh() throws IOException {
+		long now = System.nanoTime();
+		if (lastRead >= 0 && now - lastRead < maxAge * 1000000) {
+			return;
+		}
+		int length = read();
+		lastRead = System.nanoTime();
+		lastReadTimestamp = System.currentTimeMillis();
+		parse(length);
+	}
+
+	private int read() throws IOException {
+		FileInputStream in = new FileInputStream(NET_DEV_FILE);
+		try {
+			int length = 0;
+			int read;
+			while ((read = in.read(buffer, length, buffer.length - length)) > 0) {
+				length += read;
+				if (length == buffer.length) {
+					byte[] larger = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, larger, 0, length);
+					buffer = larger;
+				}
+			}
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses lines such as <i>"  eth0: 1234 56 0 0 0 0 0 0 7890 12 0 0 0 0 0 0"</i>.
+	 * The first two lines are headers and have no colon before the counters.
+	 */
+	private void parse(int length) {
+		generation++;
+		int lineStart = 0;
+		while (lineStart < length) {
+			int lineEnd = lineStart;
+			while (lineEnd < length && buffer[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			parseLine(lineStart, lineEnd);
+			lineStart = lineEnd + 1;
+		}
+		// Forgets the interfaces which have been removed, such as the taps of stopped VMs
+		Iterator<long[]> iterator = counters.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next()[GENERATION] != generation) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private void parseLine(int start, int end) {
+		int colon = -1;
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == ':') {
+				colon = i;
+				break;
+			}
+		}
+		if (colon < 0) {
+			return;
+		}
+		int nameStart = start;
+		while (nameStart < colon && buffer[nameStart] == ' ') {
+			nameStart++;
+		}
+		String ifName = new String(buffer, nameStart, colon - nameStart);
+
+		long[] ifCounters = counters.get(ifName);
+		if (ifCounters == null) {
+			ifCounters = new long[COUNTERS + 1];
+			counters.put(ifName, ifCounters);
+		}
+		ifCounters[GENERATION] = generation;
+
+		int counter = -1;
+		boolean inToken = false;
+		for (int i = colon + 1; i < end; i++) {
+			byte b = buffer[i];
+			if (b < '0' || b > '9') {
+				inToken = false;
+				continue;
+			}
+			if (!inToken) {
+				inToken = true;
+				counter++;
+				if (counter >= COUNTERS) {
+					break;
+				}
+				ifCounters[counter] = 0;
+			}
+			ifCounters[counter] = ifCounters[counter] * 10 + (b - '0');
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package org.ourgrid.virt.strategies;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.ThreadCPUStats;
+
+/**
+ * Reads process and thread CPU times straight from /proc/&lt;pid&gt;/stat and
+ * /proc/&lt;pid&gt;/task/&lt;tid&gt;/stat. The files are read into a reusable
+ * buffer and parsed in place, so sampling neither forks nor uses regular expressions.
+ */
+public class ProcStatReader {
+
+	private static final String PROC = "/proc/";
+	private static final int BUFFER_SIZE = 1024;
+
+	// Field numbers as documented in proc(5), starting at 1 for the pid
+	private static final int FIRST_FIELD_AFTER_COMM = 3;
+	private static final int UTIME_FIELD = 14;
+	private static final int STIME_FIELD = 15;
+	private static final int GUEST_TIME_FIELD = 43;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final long[] fields = new long[GUEST_TIME_FIELD + 1];
+	private int length;
+	private int commStart;
+	private int commEnd;
+
+	/**
+	 * Reads the CPU times of the given process and of each of its threads.
+	 * @param pid the process id
+	 * @return the process CPU times, with a per thread breakdown
+	 * @throws IOException if the process does not exist
+	 */
+	public synchronized CPUStats getCPUStats(String pid) throws IOException {
+		String processDir = PROC + pid;
+		long hz = HostCapabilities.getInstance().getClockTicks();
+
+		readStat(processDir + "/stat");
+		long timestamp = System.currentTimeMillis();
+		long nanoTime = System.nanoTime();
+
+		CPUStats cpuStats = new CPUStats();
+		cpuStats.setTimestamp(timestamp);
+		cpuStats.setNanoTime(nanoTime);
+		cpuStats.setUserTime(toMillis(fields[UTIME_FIELD], hz));
+		cpuStats.setSystemTime(toMillis(fields[STIME_FIELD], hz));
+		cpuStats.setGuestTime(toMillis(fields[GUEST_TIME_FIELD], hz));
+		cpuStats.setCpuTime(toMillis(fields[UTIME_FIELD] + fields[STIME_FIELD], hz));
+
+		String[] threadIds = new File(processDir, "task").list();
+		if (threadIds == null) {
+			return cpuStats;
+		}
+
+		List<ThreadCPUStats> threads = new ArrayList<ThreadCPUStats>(threadIds.length);
+		for (String threadId : threadIds) {
+			try {
+				readStat(processDir + "/task/" + threadId + "/stat");
+			} catch (IOException e) {
+				// Thread has exited since the directory was listed
+				continue;
+			}
+			ThreadCPUStats threadStats = new ThreadCPUStats();
+			threadStats.setThreadId(Integer.parseInt(threadId));
+			threadStats.setName(new String(buffer, commStart, commEnd - commStart));
+			threadStats.setUserTime(toMillis(fields[UTIME_FIELD], hz));
+			threadStats.setSystemTime(toMillis(fields[STIME_FIELD], hz));
+			threadStats.setGuestTime(toMillis(fields[GUEST_TIME_FIELD], hz));
+			threads.add(threadStats);
+		}
+		cpuStats.setThreads(threads);
+
+		return cpuStats;
+	}
+
+	private void readStat(String path) throws IOException {
+		FileInputStream in = new FileInputStream(path);
+		try {
+			length = 0;
+			int read;
+			while (length < buffer.length
+					&& (read = in.read(buffer, length, buffer.length - length)) > 0) {
+				length += read;
+			}
+		} finally {
+			in.close();
+		}
+		parseFields();
+	}
+
+	/**
+	 * Parses the numeric fields following the command name. The command name
+	 * is enclosed in parentheses and may itself contain spaces and parentheses,
+	 * so parsing starts after the last closing parenthesis.
+	 */
+	private void parseFields() throws IOException {
+		commStart = -1;
+		commEnd = -1;
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] == '(' && commStart < 0) {
+				commStart = i + 1;
+			} else if (buffer[i] == ')') {
+				commEnd = i;
+			}
+		}
+		if (commStart < 0 || commEnd < commStart) {
+			throw new IOException("Malformed stat file");
+		}
+
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = 0;
+		}
+
+		int field = FIRST_FIELD_AFTER_COMM - 1;
+		boolean inToken = false;
+		long value = 0;
+		for (int i = commEnd + 1; i < length && field < fields.length; i++) {
+			byte b = buffer[i];
+			if (b == ' ' || b == '\n') {
+				if (inToken) {
+					fields[field] = value;
+					inToken = false;
+				}
+				continue;
+			}
+			if (!inToken) {
+				inToken = true;
+				field++;
+				value = 0;
+				if (field >= fields.length) {
+					break;
+				}
+			}
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+			}
+		}
+		if (inToken && field < fields.length) {
+			fields[field] = value;
+		}
+	}
+
+	private static long toMillis(long ticks, long hz) {
+		return ticks * 1000 / hz;
+	}
+}
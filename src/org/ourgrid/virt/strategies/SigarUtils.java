@@ -2,8 +2,10 @@ package org.ourgrid.virt.strategies;
 
 import org.hyperic.sigar.NetInterfaceStat;
 import org.hyperic.sigar.ProcCpu;
+import org.hyperic.sigar.ProcMem;
 import org.hyperic.sigar.Sigar;
 import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.VirtualMachine;
 
@@ -19,6 +21,7 @@ public class SigarUtils {
 		
 		networkStats.setDeviceName(ifName);
 		networkStats.setTimestamp(System.currentTimeMillis());
+		networkStats.setNanoTime(System.nanoTime());
 		networkStats.setReceivedBytes(netInterfaceStat.getRxBytes());
 		networkStats.setReceivedPackets(netInterfaceStat.getRxPackets());
 		networkStats.setReceivedErrors(netInterfaceStat.getRxErrors());
@@ -32,11 +35,23 @@ public class SigarUtils {
 		return networkStats;
 	}
 	
+	public static MemoryStats getMemoryStats(String vmProcessPid) throws Exception {
+		ProcMem procMem = SIGAR.getProcMem(vmProcessPid);
+		MemoryStats memoryStats = new MemoryStats();
+		memoryStats.setResidentMemory(procMem.getResident());
+		memoryStats.setTimestamp(System.currentTimeMillis());
+		memoryStats.setNanoTime(System.nanoTime());
+		return memoryStats;
+	}
+	
 	public static CPUStats getCPUStats(String vmProcessPid) throws Exception {
 		ProcCpu procCpu = SIGAR.getProcCpu(vmProcessPid);
 		CPUStats cpuStats = new CPUStats();
 		cpuStats.setCpuTime(procCpu.getTotal());
+		cpuStats.setUserTime(procCpu.getUser());
+		cpuStats.setSystemTime(procCpu.getSys());
 		cpuStats.setTimestamp(System.currentTimeMillis());
+		cpuStats.setNanoTime(System.nanoTime());
 		return cpuStats;
 	}
 	
@@ -0,0 +1,72 @@
+package org.ourgrid.virt.strategies.fake;
+
+import java.util.Random;
+
+/**
+ * A latency distribution of the simulated operations, in milliseconds. It is
+ * given as "fixed:&lt;ms&gt;", "uniform:&lt;min&gt;-&lt;max&gt;", "exp:&lt;mean&gt;"
+ * or "normal:&lt;mean&gt;,&lt;stddev&gt;". A plain number is a fixed latency.
+ */
+class FakeLatency {
+
+	static final FakeLatency NONE = new FakeLatency(Kind.FIXED, 0, 0);
+
+	private enum Kind {
+		FIXED, UNIFORM, EXP, NORMAL
+	}
+
+	private final Kind kind;
+	private final double first;
+	private final double second;
+
+	private FakeLatency(Kind kind, double first, double second) {
+		this.kind = kind;
+		this.first = first;
+		this.second = second;
+	}
+
+	static FakeLatency parse(String spec) {
+		int separator = spec.indexOf(':');
+		if (separator < 0) {
+			return new FakeLatency(Kind.FIXED, Double.parseDouble(spec.trim()), 0);
+		}
+
+		Kind kind = Kind.valueOf(spec.substring(0, separator).trim().toUpperCase());
+		String parameters = spec.substring(separator + 1).trim();
+
+		switch (kind) {
+		case UNIFORM:
+			String[] range = parameters.split("-");
+			return new FakeLatency(kind, Double.parseDouble(range[0].trim()),
+					Double.parseDouble(range[1].trim()));
+		case NORMAL:
+			String[] moments = parameters.split(",");
+			return new FakeLatency(kind, Double.parseDouble(moments[0].trim()),
+					Double.parseDouble(moments[1].trim()));
+		default:
+			return new FakeLatency(kind, Double.parseDouble(parameters), 0);
+		}
+	}
+
+	/**
+	 * @return a latency drawn from the distribution, never negative
+	 */
+	long sample(Random random) {
+		double latency;
+		switch (kind) {
+		case UNIFORM:
+			latency = first + random.nextDouble() * (second - first);
+			break;
+		case EXP:
+			latency = -first * Math.log(1 - random.nextDouble());
+			break;
+		case NORMAL:
+			latency = first + random.nextGaussian() * second;
+			break;
+		default:
+			latency = first;
+			break;
+		}
+		return Math.max(0, Math.round(latency));
+	}
+}
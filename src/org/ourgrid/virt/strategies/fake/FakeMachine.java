@@ -0,0 +1,182 @@
+package org.ourgrid.virt.strategies.fake;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ourgrid.virt.model.VirtualMachineStatus;
+
+/**
+ * The state of a simulated virtual machine. Its resource usage accumulates
+ * while it runs, at the rates of the resource model, and is only brought up
+ * to date when read or when the machine stops, so idle machines cost nothing.
+ */
+class FakeMachine {
+
+	private static final long MB = 1024 * 1024;
+	private static final long DISK_BLOCK = 4096;
+	private static final long NETWORK_PACKET = 1024;
+	// Rates vary up to this fraction around their mean, at each update
+	private static final double JITTER = 0.2;
+
+	private final String name;
+	private final String ip;
+	private final long memory;
+	private final FakeResourceModel resources;
+
+	private VirtualMachineStatus status = VirtualMachineStatus.POWERED_OFF;
+	private final List<String> snapshots = new ArrayList<String>();
+	private final Map<String, String> sharedFolders = new LinkedHashMap<String, String>();
+	private final Set<String> devices = new LinkedHashSet<String>();
+
+	private long lastUpdate;
+	private double cpuTime;
+	private double diskReadBytes;
+	private double diskWriteBytes;
+	private double receivedBytes;
+	private double transferredBytes;
+
+	/**
+	 * @param memory the memory of the machine, in MB
+	 */
+	FakeMachine(String name, String ip, long memory, FakeResourceModel resources) {
+		this.name = name;
+		this.ip = ip;
+		this.memory = memory;
+		this.resources = resources;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getIp() {
+		return ip;
+	}
+
+	long getMemory() {
+		return memory;
+	}
+
+	synchronized VirtualMachineStatus getStatus() {
+		return status;
+	}
+
+	synchronized void start() {
+		status = VirtualMachineStatus.RUNNING;
+		lastUpdate = System.nanoTime();
+	}
+
+	synchronized void stop(Random random) {
+		update(random);
+		status = VirtualMachineStatus.POWERED_OFF;
+	}
+
+	synchronized List<String> getSnapshots() {
+		return new ArrayList<String>(snapshots);
+	}
+
+	synchronized boolean addSnapshot(String snapshotName) {
+		if (snapshots.contains(snapshotName)) {
+			return false;
+		}
+		return snapshots.add(snapshotName);
+	}
+
+	synchronized boolean hasSnapshot(String snapshotName) {
+		return snapshots.contains(snapshotName);
+	}
+
+	synchronized void putSharedFolder(String shareName, String hostPath) {
+		sharedFolders.put(shareName, hostPath);
+	}
+
+	synchronized String removeSharedFolder(String shareName) {
+		return sharedFolders.remove(shareName);
+	}
+
+	synchronized List<String> getSharedFolders() {
+		return new ArrayList<String>(sharedFolders.keySet());
+	}
+
+	/**
+	 * @return the guest device of the attached host device
+	 */
+	synchronized String attachDevice(String hostDevice) {
+		devices.add(hostDevice);
+		return "/dev/vd" + (char) ('a' + devices.size());
+	}
+
+	synchronized void detachDevice(String hostDevice) {
+		devices.remove(hostDevice);
+	}
+
+	/**
+	 * Accumulates the resources used since the last update, at rates drawn
+	 * around the means of the resource model.
+	 */
+	synchronized void update(Random random) {
+		if (status != VirtualMachineStatus.RUNNING) {
+			return;
+		}
+		long now = System.nanoTime();
+		double elapsed = (now - lastUpdate) / 1e9;
+		lastUpdate = now;
+
+		cpuTime += elapsed * 1000 * resources.getCpuLoad() * jitter(random);
+		diskReadBytes += elapsed * resources.getDiskReadRate() * jitter(random);
+		diskWriteBytes += elapsed * resources.getDiskWriteRate() * jitter(random);
+		receivedBytes += elapsed * resources.getNetworkRate() * jitter(random);
+		transferredBytes += elapsed * resources.getNetworkRate() * jitter(random);
+	}
+
+	private static double jitter(Random random) {
+		return 1 + JITTER * (2 * random.nextDouble() - 1);
+	}
+
+	/**
+	 * @return the cpu time used, in ms
+	 */
+	synchronized long getCpuTime() {
+		return (long) cpuTime;
+	}
+
+	synchronized long getDiskReadBytes() {
+		return (long) diskReadBytes;
+	}
+
+	synchronized long getDiskWriteBytes() {
+		return (long) diskWriteBytes;
+	}
+
+	synchronized long getReceivedBytes() {
+		return (long) receivedBytes;
+	}
+
+	synchronized long getTransferredBytes() {
+		return (long) transferredBytes;
+	}
+
+	static long toDiskOps(long bytes) {
+		return bytes / DISK_BLOCK;
+	}
+
+	static long toPackets(long bytes) {
+		return bytes / NETWORK_PACKET;
+	}
+
+	/**
+	 * @return the memory of the machine used by the guest, in bytes
+	 */
+	long getGuestUsedMemory(Random random) {
+		return (long) (memory * MB * Math.min(1, resources.getMemoryUsage() * jitter(random)));
+	}
+
+	long getMemoryBytes() {
+		return memory * MB;
+	}
+}
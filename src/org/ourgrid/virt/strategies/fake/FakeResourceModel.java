@@ -0,0 +1,65 @@
+package org.ourgrid.virt.strategies.fake;
+
+/**
+ * The mean resource usage of every simulated virtual machine while it runs,
+ * and the capacity of the simulated host, read from system properties:
+ * <ul>
+ * <li>fake.cpu.load, the fraction of a host cpu used (default 0.25)</li>
+ * <li>fake.memory.usage, the fraction of the guest memory in use (default 0.5)</li>
+ * <li>fake.disk.read.rate and fake.disk.write.rate, in bytes per second
+ * (default 1MB and 512KB)</li>
+ * <li>fake.network.rate, received and transferred, in bytes per second
+ * (default 128KB)</li>
+ * <li>fake.host.memory, the memory shared by the running machines, in MB
+ * (default 0, unlimited)</li>
+ * </ul>
+ */
+class FakeResourceModel {
+
+	private final double cpuLoad;
+	private final double memoryUsage;
+	private final double diskReadRate;
+	private final double diskWriteRate;
+	private final double networkRate;
+	private final long hostMemory;
+
+	FakeResourceModel() {
+		this.cpuLoad = getProperty("fake.cpu.load", 0.25);
+		this.memoryUsage = getProperty("fake.memory.usage", 0.5);
+		this.diskReadRate = getProperty("fake.disk.read.rate", 1024 * 1024);
+		this.diskWriteRate = getProperty("fake.disk.write.rate", 512 * 1024);
+		this.networkRate = getProperty("fake.network.rate", 128 * 1024);
+		this.hostMemory = (long) getProperty("fake.host.memory", 0);
+	}
+
+	private static double getProperty(String property, double defaultValue) {
+		return Double.parseDouble(System.getProperty(property, String.valueOf(defaultValue)));
+	}
+
+	double getCpuLoad() {
+		return cpuLoad;
+	}
+
+	double getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	double getDiskReadRate() {
+		return diskReadRate;
+	}
+
+	double getDiskWriteRate() {
+		return diskWriteRate;
+	}
+
+	double getNetworkRate() {
+		return networkRate;
+	}
+
+	/**
+	 * @return the memory of the host, in MB, or 0 if unlimited
+	 */
+	long getHostMemory() {
+		return hostMemory;
+	}
+}
@@ -0,0 +1,423 @@
+package org.ourgrid.virt.strategies.fake;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ourgrid.virt.exception.SnapshotAlreadyExistsException;
+import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.DiskStats;
+import org.ourgrid.virt.model.ExecutionResult;
+import org.ourgrid.virt.model.MemoryStats;
+import org.ourgrid.virt.model.NetworkStats;
+import org.ourgrid.virt.model.VirtualMachine;
+import org.ourgrid.virt.model.VirtualMachineConstants;
+import org.ourgrid.virt.model.VirtualMachineStatus;
+import org.ourgrid.virt.strategies.HypervisorStrategy;
+
+/**
+ * Simulates a hypervisor in memory, to load test the layers above it with
+ * thousands of virtual machines and no real hypervisor. Every operation waits
+ * for a latency drawn from the distribution set with the fake.latency.&lt;operation&gt;
+ * property, or fake.latency for all of them (see {@link FakeLatency}), then
+ * fails with the probability set with fake.failure.&lt;operation&gt; or fake.failure.
+ * The operations are create, start, stop, reboot, exec, snapshot, restore,
+ * destroy, clone, sharedfolder and stats. Resource usage follows a
+ * {@link FakeResourceModel}.
+ * <p>
+ * Commands run with exec only echo their arguments when they are an echo,
+ * and succeed otherwise.
+ */
+public class FakeStrategy implements HypervisorStrategy {
+
+	private static final String CREATE = "create";
+	private static final String START = "start";
+	private static final String STOP = "stop";
+	private static final String REBOOT = "reboot";
+	private static final String EXEC = "exec";
+	private static final String SNAPSHOT = "snapshot";
+	private static final String RESTORE = "restore";
+	private static final String DESTROY = "destroy";
+	private static final String CLONE = "clone";
+	private static final String SHARED_FOLDER = "sharedfolder";
+	private static final String STATS = "stats";
+	private static final List<String> OPERATIONS = Arrays.asList(CREATE, START, STOP,
+			REBOOT, EXEC, SNAPSHOT, RESTORE, DESTROY, CLONE, SHARED_FOLDER, STATS);
+
+	private static final long DEFAULT_MEMORY = 512;
+	private static final long DISK_OP_TIME = 100;
+	private static final String DISK_DEVICE = "vda";
+	private static final String NETWORK_DEVICE = "eth0";
+
+	private final ConcurrentMap<String, FakeMachine> machines =
+			new ConcurrentHashMap<String, FakeMachine>();
+	private final Map<String, FakeLatency> latencies = new HashMap<String, FakeLatency>();
+	private final Map<String, Double> failureRates = new HashMap<String, Double>();
+	private final FakeResourceModel resources = new FakeResourceModel();
+	// One per thread, as a shared one serializes the concurrent operations on its seed
+	private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+	private final AtomicInteger machineCount = new AtomicInteger();
+	// Memory of the running machines, in MB
+	private final AtomicLong usedMemory = new AtomicLong();
+
+	public FakeStrategy() {
+		String latency = System.getProperty("fake.latency");
+		String failureRate = System.getProperty("fake.failure", "0");
+		for (String operation : OPERATIONS) {
+			String operationLatency = System.getProperty("fake.latency." + operation, latency);
+			latencies.put(operation, operationLatency == null ?
+					FakeLatency.NONE : FakeLatency.parse(operationLatency));
+			failureRates.put(operation, Double.parseDouble(
+					System.getProperty("fake.failure." + operation, failureRate)));
+		}
+	}
+
+	/**
+	 * Waits for the latency of the operation, then fails it at the failure rate.
+	 */
+	private void simulate(String operation, String vmName) throws Exception {
+		long latency = latencies.get(operation).sample(random.get());
+		if (latency > 0) {
+			Thread.sleep(latency);
+		}
+		if (random.get().nextDouble() < failureRates.get(operation)) {
+			throw new Exception("Simulated failure of " + operation
+					+ " for virtual machine [ " + vmName + " ].");
+		}
+	}
+
+	private FakeMachine getMachine(VirtualMachine virtualMachine) throws Exception {
+		FakeMachine machine = machines.get(virtualMachine.getName());
+		if (machine == null) {
+			throw new Exception("Virtual machine [ " + virtualMachine.getName()
+					+ " ] does not exist.");
+		}
+		return machine;
+	}
+
+	private FakeMachine getRunningMachine(VirtualMachine virtualMachine,
+			String errorMessage) throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		if (machine.getStatus() != VirtualMachineStatus.RUNNING) {
+			throw new Exception(errorMessage);
+		}
+		return machine;
+	}
+
+	@Override
+	public void create(VirtualMachine virtualMachine) throws Exception {
+		String vmName = virtualMachine.getName();
+		if (machines.containsKey(vmName)) {
+			return;
+		}
+
+		simulate(CREATE, vmName);
+
+		String memory = virtualMachine.getProperty(VirtualMachineConstants.MEMORY);
+		int index = machineCount.incrementAndGet();
+		String ip = "10." + ((index >> 16) & 0xff) + "." + ((index >> 8) & 0xff)
+				+ "." + (index & 0xff);
+		FakeMachine machine = new FakeMachine(vmName, ip,
+				memory == null ? DEFAULT_MEMORY : Long.parseLong(memory), resources);
+
+		machines.putIfAbsent(vmName, machine);
+	}
+
+	@Override
+	public void start(VirtualMachine virtualMachine) throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		if (machine.getStatus() == VirtualMachineStatus.RUNNING) {
+			return;
+		}
+
+		simulate(START, virtualMachine.getName());
+
+		synchronized (machine) {
+			if (machine.getStatus() == VirtualMachineStatus.RUNNING) {
+				return;
+			}
+			long hostMemory = resources.getHostMemory();
+			if (usedMemory.addAndGet(machine.getMemory()) > hostMemory && hostMemory > 0) {
+				usedMemory.addAndGet(-machine.getMemory());
+				throw new Exception("Not enough host memory to start virtual machine [ "
+						+ virtualMachine.getName() + " ].");
+			}
+			machine.start();
+		}
+	}
+
+	@Override
+	public void stop(VirtualMachine virtualMachine) throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		if (machine.getStatus() != VirtualMachineStatus.RUNNING) {
+			return;
+		}
+
+		simulate(STOP, virtualMachine.getName());
+
+		synchronized (machine) {
+			if (machine.getStatus() != VirtualMachineStatus.RUNNING) {
+				return;
+			}
+			machine.stop(random.get());
+			usedMemory.addAndGet(-machine.getMemory());
+		}
+	}
+
+	@Override
+	public void reboot(VirtualMachine virtualMachine) throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		if (machine.getStatus() != VirtualMachineStatus.RUNNING) {
+			return;
+		}
+		simulate(REBOOT, virtualMachine.getName());
+	}
+
+	@Override
+	public VirtualMachineStatus status(VirtualMachine virtualMachine) throws Exception {
+		FakeMachine machine = machines.get(virtualMachine.getName());
+		return machine == null ? VirtualMachineStatus.NOT_CREATED : machine.getStatus();
+	}
+
+	@Override
+	public ExecutionResult exec(VirtualMachine virtualMachine, String command)
+			throws Exception {
+		getRunningMachine(virtualMachine, "Unable to execute command. Machine is not started.");
+
+		simulate(EXEC, virtualMachine.getName());
+
+		List<String> stdOut = new LinkedList<String>();
+		String trimmed = command.trim();
+		if (trimmed.startsWith("echo ") || trimmed.startsWith("/bin/echo ")) {
+			stdOut.add(trimmed.substring(trimmed.indexOf(' ') + 1).trim());
+		}
+
+		ExecutionResult executionResult = new ExecutionResult();
+		executionResult.setReturnValue(ExecutionResult.OK);
+		executionResult.setStdOut(stdOut);
+		executionResult.setStdErr(new LinkedList<String>());
+		return executionResult;
+	}
+
+	@Override
+	public void takeSnapshot(VirtualMachine virtualMachine, String snapshotName)
+			throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		if (machine.hasSnapshot(snapshotName)) {
+			throw new SnapshotAlreadyExistsException("Snapshot [ " + snapshotName + " ] " +
+					"already exists for virtual machine [ " + virtualMachine.getName() + " ].");
+		}
+
+		simulate(SNAPSHOT, virtualMachine.getName());
+
+		if (!machine.addSnapshot(snapshotName)) {
+			throw new SnapshotAlreadyExistsException("Snapshot [ " + snapshotName + " ] " +
+					"already exists for virtual machine [ " + virtualMachine.getName() + " ].");
+		}
+	}
+
+	@Override
+	public void restoreSnapshot(VirtualMachine virtualMachine, String snapshotName)
+			throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		if (!machine.hasSnapshot(snapshotName)) {
+			throw new Exception("Snapshot [ " + snapshotName + " ] does not exist "
+					+ "for virtual machine [ " + virtualMachine.getName() + " ].");
+		}
+
+		stop(virtualMachine);
+		simulate(RESTORE, virtualMachine.getName());
+	}
+
+	@Override
+	public void destroy(VirtualMachine virtualMachine) throws Exception {
+		if (!machines.containsKey(virtualMachine.getName())) {
+			return;
+		}
+
+		stop(virtualMachine);
+		simulate(DESTROY, virtualMachine.getName());
+		machines.remove(virtualMachine.getName());
+	}
+
+	@Override
+	public List<String> listVMs() throws Exception {
+		return new ArrayList<String>(machines.keySet());
+	}
+
+	@Override
+	public List<String> listSnapshots(VirtualMachine virtualMachine) throws Exception {
+		return getMachine(virtualMachine).getSnapshots();
+	}
+
+	@Override
+	public void createSharedFolder(VirtualMachine virtualMachine,
+			String shareName, String hostPath, String guestPath) throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		simulate(SHARED_FOLDER, virtualMachine.getName());
+		machine.putSharedFolder(shareName, hostPath);
+	}
+
+	@Override
+	public void deleteSharedFolder(VirtualMachine virtualMachine, String shareName)
+			throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		simulate(SHARED_FOLDER, virtualMachine.getName());
+		machine.removeSharedFolder(shareName);
+	}
+
+	@Override
+	public List<String> listSharedFolders(VirtualMachine virtualMachine) throws Exception {
+		return getMachine(virtualMachine).getSharedFolders();
+	}
+
+	@Override
+	public void mountSharedFolder(VirtualMachine virtualMachine, String shareName,
+			String hostPath, String guestPath) throws Exception {
+		getRunningMachine(virtualMachine, "Unable to mount shared folder. Machine is not started.");
+		simulate(SHARED_FOLDER, virtualMachine.getName());
+	}
+
+	@Override
+	public void unmountSharedFolder(VirtualMachine virtualMachine, String shareName,
+			String hostPath, String guestPath) throws Exception {
+		getRunningMachine(virtualMachine, "Unable to unmount shared folder. Machine is not started.");
+		simulate(SHARED_FOLDER, virtualMachine.getName());
+	}
+
+	@Override
+	public boolean isSupported() {
+		return true;
+	}
+
+	@Override
+	public void prepareEnvironment(Map<String, String> props) throws Exception {
+		// Nothing to prepare
+	}
+
+	@Override
+	public void clone(String sourceDevice, String destDevice) throws Exception {
+		simulate(CLONE, sourceDevice);
+	}
+
+	@Override
+	public Object getProperty(VirtualMachine registeredVM, String propertyName)
+			throws Exception {
+		Object value = registeredVM.getProperty(propertyName);
+		if (value == null && propertyName.equals(VirtualMachineConstants.IP)) {
+			return getMachine(registeredVM).getIp();
+		}
+		return value;
+	}
+
+	@Override
+	public void setProperty(VirtualMachine registeredVM, String propertyName,
+			Object propertyValue) throws Exception {
+		registeredVM.setProperty(propertyName, propertyValue);
+	}
+
+	@Override
+	public CPUStats getCPUStats(VirtualMachine virtualMachine) throws Exception {
+		FakeMachine machine = getMachine(virtualMachine);
+		simulate(STATS, virtualMachine.getName());
+		machine.update(random.get());
+
+		long cpuTime = machine.getCpuTime();
+		CPUStats cpuStats = new CPUStats();
+		cpuStats.setTimestamp(System.currentTimeMillis());
+		cpuStats.setNanoTime(System.nanoTime());
+		cpuStats.setCpuTime(cpuTime);
+		cpuStats.setUserTime(cpuTime * 4 / 5);
+		cpuStats.setSystemTime(cpuTime - cpuStats.getUserTime());
+		cpuStats.setGuestTime(cpuStats.getUserTime() * 9 / 10);
+		return cpuStats;
+	}
+
+	@Override
+	public MemoryStats getMemoryStats(VirtualMachine registeredVM) throws Exception {
+		FakeMachine machine = getMachine(registeredVM);
+		simulate(STATS, registeredVM.getName());
+
+		MemoryStats memoryStats = new MemoryStats();
+		memoryStats.setTimestamp(System.currentTimeMillis());
+		memoryStats.setNanoTime(System.nanoTime());
+		if (machine.getStatus() != VirtualMachineStatus.RUNNING) {
+			return memoryStats;
+		}
+		long usedMemory = machine.getGuestUsedMemory(random.get());
+		memoryStats.setResidentMemory(usedMemory);
+		memoryStats.setGuestTotalMemory(machine.getMemoryBytes());
+		memoryStats.setGuestFreeMemory(machine.getMemoryBytes() - usedMemory);
+		memoryStats.setGuestAvailableMemory(machine.getMemoryBytes() - usedMemory);
+		return memoryStats;
+	}
+
+	@Override
+	public List<DiskStats> getDiskStats(VirtualMachine registeredVM) throws Exception {
+		FakeMachine machine = getMachine(registeredVM);
+		simulate(STATS, registeredVM.getName());
+		machine.update(random.get());
+
+		DiskStats diskStats = new DiskStats();
+		diskStats.setDeviceName(DISK_DEVICE);
+		diskStats.setTimestamp(System.currentTimeMillis());
+		diskStats.setNanoTime(System.nanoTime());
+		diskStats.setReadBytes(machine.getDiskReadBytes());
+		diskStats.setReadOps(FakeMachine.toDiskOps(diskStats.getReadBytes()));
+		diskStats.setReadTotalTime(diskStats.getReadOps() * DISK_OP_TIME);
+		diskStats.setWriteBytes(machine.getDiskWriteBytes());
+		diskStats.setWriteOps(FakeMachine.toDiskOps(diskStats.getWriteBytes()));
+		diskStats.setWriteTotalTime(diskStats.getWriteOps() * DISK_OP_TIME);
+
+		List<DiskStats> disksStats = new ArrayList<DiskStats>();
+		disksStats.add(diskStats);
+		return disksStats;
+	}
+
+	@Override
+	public NetworkStats getNetworkStats(VirtualMachine registeredVM) throws Exception {
+		FakeMachine machine = getMachine(registeredVM);
+		simulate(STATS, registeredVM.getName());
+		machine.update(random.get());
+
+		NetworkStats networkStats = new NetworkStats();
+		networkStats.setDeviceName(NETWORK_DEVICE);
+		networkStats.setTimestamp(System.currentTimeMillis());
+		networkStats.setNanoTime(System.nanoTime());
+		networkStats.setReceivedBytes(machine.getReceivedBytes());
+		networkStats.setReceivedPackets(FakeMachine.toPackets(networkStats.getReceivedBytes()));
+		networkStats.setTransferredBytes(machine.getTransferredBytes());
+		networkStats.setTransferredPackets(FakeMachine.toPackets(networkStats.getTransferredBytes()));
+		return networkStats;
+	}
+
+	@Override
+	public String attachDevice(VirtualMachine registeredVM, String devicePathInHost)
+			throws Exception {
+		return getMachine(registeredVM).attachDevice(devicePathInHost);
+	}
+
+	@Override
+	public void detachDevice(VirtualMachine registeredVM, String hostDevicePath)
+			throws Exception {
+		getMachine(registeredVM).detachDevice(hostDevicePath);
+	}
+
+	@Override
+	public String getConsoleOuput(VirtualMachine registeredVM) {
+		return "";
+	}
+}
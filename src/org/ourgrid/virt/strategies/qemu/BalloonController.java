@@ -0,0 +1,293 @@
+package org.ourgrid.virt.strategies.qemu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.ourgrid.virt.model.VirtualMachine;
+import org.ourgrid.virt.model.VirtualMachineConstants;
+import org.ourgrid.virt.strategies.LinuxUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Periodically resizes the virtio balloons of the registered QEmu guests.
+ * Guests whose working set is smaller than their current memory are inflated
+ * to give memory back to the host, and the reclaimed memory (plus whatever the
+ * host can spare above its reserve) is handed to the guests which are running
+ * short of memory, busiest first.
+ */
+public class BalloonController {
+
+	private static final Logger LOGGER = Logger.getLogger(BalloonController.class);
+
+	public static final String BALLOON_ID = "balloon0";
+	private static final String BALLOON_PATH = "/machine/peripheral/" + BALLOON_ID;
+
+	private static final long MB = 1024 * 1024;
+	private static final long DEFAULT_PERIOD = 10;
+	private static final long DEFAULT_HOST_RESERVE = 512;
+	private static final long MIN_HEADROOM = 64 * MB;
+	private static final double HEADROOM_RATIO = 0.25;
+	private static final double MAX_STEP_RATIO = 0.1;
+
+	private static final String MEM_AVAILABLE = "MemAvailable";
+	private static final String MEM_FREE = "MemFree";
+	private static final String CACHED = "Cached";
+
+	static final String STAT_TOTAL = "stat-total-memory";
+	static final String STAT_FREE = "stat-free-memory";
+	static final String STAT_AVAILABLE = "stat-available-memory";
+	static final String STAT_CACHES = "stat-disk-caches";
+
+	private final QEmuStrategy strategy;
+	private final long period;
+	private final long hostReserve;
+	private final Map<String, VirtualMachine> virtualMachines =
+			new ConcurrentHashMap<String, VirtualMachine>();
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param strategy the strategy used to reach the guests QMP servers
+	 */
+	public BalloonController(QEmuStrategy strategy) {
+		this.strategy = strategy;
+		this.period = Long.getLong("qemu.balloon.period", DEFAULT_PERIOD);
+		this.hostReserve = Long.getLong("qemu.balloon.hostreserve", DEFAULT_HOST_RESERVE) * MB;
+	}
+
+	/**
+	 * Starts managing the balloon of the given virtual machine.
+	 * @param virtualMachine a running virtual machine with a balloon device
+	 */
+	public synchronized void register(VirtualMachine virtualMachine) {
+		virtualMachines.put(virtualMachine.getName(), virtualMachine);
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "qemu-balloon-controller");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					adjust();
+				}
+			}, period, period, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stops managing the balloon of the given virtual machine.
+	 * @param virtualMachine the related virtual machine
+	 */
+	public void unregister(VirtualMachine virtualMachine) {
+		virtualMachines.remove(virtualMachine.getName());
+	}
+
+	/**
+	 * Makes the balloon driver of the guest report its memory statistics
+	 * periodically, which is required by {@link #queryGuestStats(QmpClient)}.
+	 * @param virtualMachine a running virtual machine with a balloon device
+	 * @throws Exception if the QMP server cannot be reached
+	 */
+	public void enableGuestStats(VirtualMachine virtualMachine) throws Exception {
+		QmpClient qmp = strategy.openQmp(virtualMachine);
+		try {
+			JsonObject args = createQomArgs("guest-stats-polling-interval");
+			args.addProperty("value", period);
+			qmp.execute("qom-set", args);
+		} finally {
+			qmp.close();
+		}
+	}
+
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private void adjust() {
+		if (virtualMachines.isEmpty()) {
+			return;
+		}
+
+		long budget;
+		try {
+			budget = getHostAvailable() - hostReserve;
+		} catch (Exception e) {
+			LOGGER.warn("Could not read host memory information", e);
+			return;
+		}
+
+		List<BalloonState> hungry = new ArrayList<BalloonState>();
+
+		for (VirtualMachine virtualMachine : virtualMachines.values()) {
+			BalloonState state;
+			try {
+				state = readState(virtualMachine);
+			} catch (Exception e) {
+				LOGGER.debug("Could not read balloon state of " + virtualMachine.getName(), e);
+				continue;
+			}
+			if (state == null) {
+				continue;
+			}
+
+			if (state.wanted < state.actual) {
+				long target = Math.max(state.wanted, state.actual - state.maxStep);
+				if (setTarget(state, target)) {
+					budget += state.actual - target;
+				}
+			} else if (state.wanted > state.actual) {
+				hungry.add(state);
+			}
+		}
+
+		Collections.sort(hungry, new Comparator<BalloonState>() {
+			@Override
+			public int compare(BalloonState s1, BalloonState s2) {
+				long d1 = s1.wanted - s1.actual;
+				long d2 = s2.wanted - s2.actual;
+				return d1 > d2 ? -1 : (d1 == d2 ? 0 : 1);
+			}
+		});
+
+		for (BalloonState state : hungry) {
+			long grant = Math.min(Math.min(state.wanted - state.actual, state.maxStep), budget);
+			if (grant <= 0) {
+				break;
+			}
+			if (setTarget(state, state.actual + grant)) {
+				budget -= grant;
+			}
+		}
+	}
+
+	private BalloonState readState(VirtualMachine virtualMachine) throws Exception {
+		QmpClient qmp = strategy.openQmp(virtualMachine);
+		try {
+			long actual = queryBalloonActual(qmp);
+			JsonObject stats = queryGuestStats(qmp);
+
+			long total = getStat(stats, STAT_TOTAL);
+			long available = getGuestAvailable(stats);
+			if (total < 0 || available < 0) {
+				// Guest driver has not reported statistics yet
+				return null;
+			}
+
+			long max = QEmuMemoryBackend.toMegaBytes((String) virtualMachine.getProperty(
+					VirtualMachineConstants.MEMORY)) * MB;
+			String minProperty = virtualMachine.getProperty(
+					VirtualMachineConstants.BALLOON_MIN_MEMORY);
+			long min = minProperty == null ? max / 4 : Long.parseLong(minProperty) * MB;
+
+			long used = total - available;
+			long headroom = Math.max((long) (used * HEADROOM_RATIO), MIN_HEADROOM);
+
+			BalloonState state = new BalloonState();
+			state.virtualMachine = virtualMachine;
+			state.actual = actual;
+			state.wanted = Math.min(max, Math.max(min, used + headroom));
+			state.maxStep = (long) (max * MAX_STEP_RATIO);
+			return state;
+		} finally {
+			qmp.close();
+		}
+	}
+
+	private boolean setTarget(BalloonState state, long target) {
+		QmpClient qmp = null;
+		try {
+			qmp = strategy.openQmp(state.virtualMachine);
+			JsonObject args = new JsonObject();
+			args.addProperty("value", target);
+			qmp.execute("balloon", args);
+			LOGGER.debug("Balloon target of " + state.virtualMachine.getName()
+					+ " set to " + target / MB + "MB (was " + state.actual / MB + "MB)");
+			return true;
+		} catch (Exception e) {
+			LOGGER.warn("Could not resize balloon of " + state.virtualMachine.getName(), e);
+			return false;
+		} finally {
+			if (qmp != null) {
+				qmp.close();
+			}
+		}
+	}
+
+	private long getHostAvailable() throws Exception {
+		Map<String, Long> memInfo = LinuxUtils.getMemInfo();
+		Long available = memInfo.get(MEM_AVAILABLE);
+		if (available == null) {
+			available = memInfo.get(MEM_FREE) + memInfo.get(CACHED);
+		}
+		return available * 1024;
+	}
+
+	/**
+	 * @return the memory currently left to the guest by the balloon, in bytes
+	 */
+	static long queryBalloonActual(QmpClient qmp) throws Exception {
+		JsonObject balloon = qmp.executeAndGetReturn("query-balloon", null).getAsJsonObject();
+		return balloon.get("actual").getAsLong();
+	}
+
+	/**
+	 * @return the latest memory statistics reported by the guest balloon driver,
+	 * whose entries are -1 until the guest reports them
+	 */
+	static JsonObject queryGuestStats(QmpClient qmp) throws Exception {
+		JsonObject guestStats = qmp.executeAndGetReturn(
+				"qom-get", createQomArgs("guest-stats")).getAsJsonObject();
+		return guestStats.get("stats").getAsJsonObject();
+	}
+
+	/**
+	 * @return the memory the guest can use without swapping, in bytes, or -1 if unknown.
+	 * Older guest drivers do not report it, so it is estimated from the free memory and caches.
+	 */
+	static long getGuestAvailable(JsonObject stats) {
+		long available = getStat(stats, STAT_AVAILABLE);
+		if (available < 0) {
+			long free = getStat(stats, STAT_FREE);
+			long caches = getStat(stats, STAT_CACHES);
+			available = free < 0 ? -1 : free + Math.max(caches, 0);
+		}
+		return available;
+	}
+
+	private static JsonObject createQomArgs(String property) {
+		JsonObject args = new JsonObject();
+		args.addProperty("path", BALLOON_PATH);
+		args.addProperty("property", property);
+		return args;
+	}
+
+	static long getStat(JsonObject stats, String name) {
+		JsonElement stat = stats.get(name);
+		return stat == null ? -1 : stat.getAsLong();
+	}
+
+	private static class BalloonState {
+		VirtualMachine virtualMachine;
+		long actual;
+		long wanted;
+		long maxStep;
+	}
+}
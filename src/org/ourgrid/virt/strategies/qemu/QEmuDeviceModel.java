@@ -0,0 +1,231 @@
+package org.ourgrid.virt.strategies.qemu;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.ourgrid.virt.model.VirtualMachine;
+import org.ourgrid.virt.model.VirtualMachineConstants;
+import org.ourgrid.virt.strategies.HostCapabilities;
+import org.ourgrid.virt.strategies.HypervisorUtils;
+
+/**
+ * Device models used to expose the disk image and the network adapter
+ * to a QEmu guest. VIRTIO uses paravirtualized devices and is the default,
+ * LEGACY keeps the emulated IDE disk and e1000 NIC for images which
+ * do not ship virtio drivers.
+ */
+public enum QEmuDeviceModel {
+
+	VIRTIO {
+		@Override
+		public void appendDisk(StringBuilder cmd, VirtualMachine virtualMachine,
+				String diskPath) {
+			String cache = getProperty(virtualMachine,
+					VirtualMachineConstants.DISK_CACHE, DEFAULT_CACHE);
+			boolean direct = cache.equals("none") || cache.equals("directsync");
+			boolean noFlush = cache.equals("unsafe");
+			boolean writeCache = !cache.equals("writethrough") && !cache.equals("directsync");
+
+			String aio = getAio(virtualMachine, direct);
+			String cacheOpts = ",cache.direct=" + onOff(direct) + ",cache.no-flush=" + onOff(noFlush);
+
+			boolean iothread = Boolean.parseBoolean(getProperty(virtualMachine,
+					VirtualMachineConstants.DISK_IOTHREAD, "true"));
+			if (iothread) {
+				cmd.append(" -object iothread,id=").append(IOTHREAD_ID);
+			}
+
+			cmd.append(" -blockdev \"driver=file,node-name=").append(DISK_ID).append("-file")
+				.append(",filename=").append(escape(diskPath))
+				.append(",aio=").append(aio).append(cacheOpts).append("\"");
+			cmd.append(" -blockdev \"driver=").append(getImageFormat(diskPath))
+				.append(",node-name=").append(DISK_ID)
+				.append(",file=").append(DISK_ID).append("-file").append(cacheOpts).append("\"");
+			cmd.append(" -device virtio-blk-pci,id=virtio-").append(DISK_ID)
+				.append(",drive=").append(DISK_ID)
+				.append(",write-cache=").append(onOff(writeCache));
+			if (iothread) {
+				cmd.append(",iothread=").append(IOTHREAD_ID);
+			}
+		}
+
+		@Override
+		public void appendNetwork(StringBuilder cmd, VirtualMachine virtualMachine,
+				String backend, String mac) {
+			if (backend == null) {
+				// A NIC with no peer, as -net nic alone; -net none keeps QEmu
+				// from adding its default user mode NIC
+				cmd.append(" -net none -device virtio-net-pci");
+				if (mac != null) {
+					cmd.append(",mac=").append(mac);
+				}
+				return;
+			}
+
+			boolean tap = backend.startsWith("tap");
+			int queues = tap ? Integer.parseInt(getProperty(virtualMachine,
+					VirtualMachineConstants.NET_QUEUES, "1")) : 1;
+
+			cmd.append(" -netdev ").append(backend).append(",id=").append(NET_ID);
+			if (tap && isVhostAvailable(virtualMachine)) {
+				cmd.append(",vhost=on");
+			}
+			if (queues > 1) {
+				cmd.append(",queues=").append(queues);
+			}
+
+			cmd.append(" -device virtio-net-pci,netdev=").append(NET_ID);
+			if (mac != null) {
+				cmd.append(",mac=").append(mac);
+			}
+			if (queues > 1) {
+				cmd.append(",mq=on,vectors=").append(2 * queues + 2);
+			}
+		}
+	},
+
+	LEGACY {
+		@Override
+		public void appendDisk(StringBuilder cmd, VirtualMachine virtualMachine,
+				String diskPath) {
+			cmd.append(" -hda \"").append(diskPath).append("\"");
+		}
+
+		@Override
+		public void appendNetwork(StringBuilder cmd, VirtualMachine virtualMachine,
+				String backend, String mac) {
+			cmd.append(" -net nic");
+			if (mac != null) {
+				cmd.append(",macaddr=").append(mac);
+			}
+			if (backend != null) {
+				cmd.append(" -net ").append(backend);
+			}
+		}
+	};
+
+	private static final Logger LOGGER = Logger.getLogger(QEmuDeviceModel.class);
+
+	private static final int BLOCKDEV_MAJOR = 2;
+	private static final int BLOCKDEV_MINOR = 9;
+	private static final int IO_URING_MAJOR = 5;
+	private static final int IO_URING_MINOR = 0;
+	private static final String DEFAULT_CACHE = "none";
+	private static final String DISK_ID = "disk0";
+	private static final String IOTHREAD_ID = "iothread0";
+	private static final String NET_ID = "net0";
+	private static final byte[] QCOW_MAGIC = {'Q', 'F', 'I', (byte) 0xfb};
+
+	/**
+	 * Appends the options which attach the given disk image as the boot disk.
+	 * @param cmd the QEmu command line being built
+	 * @param virtualMachine the related virtual machine
+	 * @param diskPath the path of the disk image in the host
+	 */
+	public abstract void appendDisk(StringBuilder cmd, VirtualMachine virtualMachine,
+			String diskPath);
+
+	/**
+	 * Appends the options which create the guest network adapter.
+	 * @param cmd the QEmu command line being built
+	 * @param virtualMachine the related virtual machine
+	 * @param backend the host side network backend (e.g. <i>user,restrict=yes</i>),
+	 * or <b>null</b> if none was configured, in which case the adapter has no peer
+	 * @param mac the MAC address of the adapter, or <b>null</b> to let QEmu pick one
+	 */
+	public abstract void appendNetwork(StringBuilder cmd, VirtualMachine virtualMachine,
+			String backend, String mac);
+
+	/**
+	 * Appends the virtio balloon device, which is enabled by default for VIRTIO guests.
+	 * @param cmd the QEmu command line being built
+	 * @param virtualMachine the related virtual machine
+	 * @return <b><i>true</b></i> if the balloon device was added, <b><i>false</b></i> otherwise.
+	 */
+	public boolean appendBalloon(StringBuilder cmd, VirtualMachine virtualMachine) {
+		String balloon = virtualMachine.getProperty(VirtualMachineConstants.BALLOON);
+		boolean enabled = balloon == null ? this == VIRTIO : Boolean.parseBoolean(balloon);
+		if (enabled) {
+			cmd.append(" -device virtio-balloon-pci,id=").append(BalloonController.BALLOON_ID);
+		}
+		return enabled;
+	}
+
+	/**
+	 * @param virtualMachine the related virtual machine
+	 * @return the device model configured for the virtual machine. If none was configured,
+	 * VIRTIO if the installed QEmu supports it, LEGACY otherwise.
+	 */
+	public static QEmuDeviceModel fromConfiguration(VirtualMachine virtualMachine) {
+		String deviceModel = virtualMachine.getProperty(VirtualMachineConstants.DEVICE_MODEL);
+		if (deviceModel != null) {
+			return valueOf(deviceModel.toUpperCase());
+		}
+		HostCapabilities capabilities = HostCapabilities.getInstance();
+		if (!capabilities.isQemuVersionAtLeast(BLOCKDEV_MAJOR, BLOCKDEV_MINOR)
+				|| !capabilities.supportsQemuDevice("virtio-blk-pci")
+				|| !capabilities.supportsQemuDevice("virtio-net-pci")) {
+			LOGGER.warn("Installed QEmu does not support virtio block devices, using LEGACY for "
+					+ virtualMachine.getName());
+			return LEGACY;
+		}
+		return VIRTIO;
+	}
+
+	private static String getAio(VirtualMachine virtualMachine, boolean direct) {
+		String aio = virtualMachine.getProperty(VirtualMachineConstants.DISK_AIO);
+		if (aio == null) {
+			aio = direct && HypervisorUtils.isLinuxHost() ? "native" : "threads";
+		}
+		// Native AIO is only honored by QEmu on files opened with O_DIRECT
+		if (aio.equals("native") && !direct) {
+			return "threads";
+		}
+		if (aio.equals("io_uring") && (!HypervisorUtils.isLinuxHost()
+				|| !HostCapabilities.getInstance().isQemuVersionAtLeast(IO_URING_MAJOR, IO_URING_MINOR))) {
+			return "threads";
+		}
+		return aio;
+	}
+
+	private static boolean isVhostAvailable(VirtualMachine virtualMachine) {
+		String vhost = virtualMachine.getProperty(VirtualMachineConstants.NET_VHOST);
+		if (vhost != null && !Boolean.parseBoolean(vhost)) {
+			return false;
+		}
+		return HostCapabilities.getInstance().isVhostNetAvailable();
+	}
+
+	private static String getImageFormat(String diskPath) {
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(diskPath);
+			byte[] magic = new byte[QCOW_MAGIC.length];
+			if (fis.read(magic) == magic.length && Arrays.equals(magic, QCOW_MAGIC)) {
+				return "qcow2";
+			}
+		} catch (IOException e) {
+			// Let QEmu report the missing image
+		} finally {
+			IOUtils.closeQuietly(fis);
+		}
+		return "raw";
+	}
+
+	private static String getProperty(VirtualMachine virtualMachine,
+			String property, String defaultValue) {
+		String value = virtualMachine.getProperty(property);
+		return value == null ? defaultValue : value.toLowerCase();
+	}
+
+	private static String escape(String optionValue) {
+		return optionValue.replace(",", ",,");
+	}
+
+	private static String onOff(boolean value) {
+		return value ? "on" : "off";
+	}
+}
@@ -0,0 +1,211 @@
+package org.ourgrid.virt.strategies.qemu;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.ourgrid.virt.model.VirtualMachine;
+import org.ourgrid.virt.model.VirtualMachineConstants;
+import org.ourgrid.virt.strategies.HostCapabilities;
+import org.ourgrid.virt.strategies.HypervisorUtils;
+import org.ourgrid.virt.strategies.LinuxUtils;
+
+/**
+ * Memory backends used to provide guest RAM to a QEmu guest.
+ * RAM is the anonymous memory QEmu allocates by default, HUGEPAGES maps the guest
+ * memory from a hugetlbfs mount and MEMFD uses an anonymous memory file which
+ * can be shared with other processes.
+ */
+public enum QEmuMemoryBackend {
+
+	RAM {
+		@Override
+		public void appendMemory(StringBuilder cmd, VirtualMachine virtualMachine,
+				long memory) {
+			cmd.append(" -m ").append(memory);
+			if (isEnabled(virtualMachine, VirtualMachineConstants.MEMORY_PREALLOC)) {
+				cmd.append(" -mem-prealloc");
+			}
+		}
+	},
+
+	HUGEPAGES {
+		@Override
+		public void appendMemory(StringBuilder cmd, VirtualMachine virtualMachine,
+				long memory) {
+			cmd.append(" -m ").append(memory);
+			cmd.append(" -object memory-backend-file,id=").append(MEMORY_ID)
+				.append(",size=").append(memory).append("M")
+				.append(",mem-path=").append(getHugePagesPath(virtualMachine));
+			appendBackendOptions(cmd, virtualMachine);
+		}
+	},
+
+	MEMFD {
+		@Override
+		public void appendMemory(StringBuilder cmd, VirtualMachine virtualMachine,
+				long memory) {
+			cmd.append(" -m ").append(memory);
+			cmd.append(" -object memory-backend-memfd,id=").append(MEMORY_ID)
+				.append(",size=").append(memory).append("M");
+			appendBackendOptions(cmd, virtualMachine);
+		}
+	};
+
+	private static final Logger LOGGER = Logger.getLogger(QEmuMemoryBackend.class);
+
+	private static final int MEMFD_MAJOR = 2;
+	private static final int MEMFD_MINOR = 12;
+	private static final String MEMORY_ID = "mem0";
+	private static final String DEFAULT_HUGEPAGES_PATH = "/dev/hugepages";
+	private static final String HUGEPAGES_FREE = "HugePages_Free";
+	private static final String HUGEPAGES_RESERVED = "HugePages_Rsvd";
+	private static final String HUGEPAGE_SIZE = "Hugepagesize";
+	private static final Pattern MEMORY_SIZE = Pattern.compile("(\\d{1,12})\\s*([kKmMgGtT]?)[bB]?");
+
+	// Hugepages, in KB, promised to virtual machines whose QEmu is still starting
+	private static final Map<String, Long> RESERVED_HUGEPAGES = new HashMap<String, Long>();
+
+	/**
+	 * Appends the options which define the guest memory.
+	 * @param cmd the QEmu command line being built
+	 * @param virtualMachine the related virtual machine
+	 * @param memory the guest memory size, in MB
+	 */
+	public abstract void appendMemory(StringBuilder cmd, VirtualMachine virtualMachine,
+			long memory);
+
+	/**
+	 * Parses a memory size as accepted by the QEmu -m option, in MB unless
+	 * suffixed with K, M, G or T.
+	 * @param memory the memory size
+	 * @return the memory size, in MB
+	 * @throws Exception if the memory size is missing, malformed or not a whole number of MB
+	 */
+	public static long toMegaBytes(String memory) throws Exception {
+		Matcher matcher = memory == null ? null : MEMORY_SIZE.matcher(memory.trim());
+		if (matcher == null || !matcher.matches()) {
+			throw new Exception("Invalid memory size [ " + memory
+					+ " ], expected a number of MB optionally suffixed with K, M, G or T.");
+		}
+		long value = Long.parseLong(matcher.group(1));
+		String unit = matcher.group(2).toUpperCase();
+		if (unit.equals("K")) {
+			if (value % 1024 != 0) {
+				throw new Exception("Invalid memory size [ " + memory
+						+ " ], it is not a whole number of MB.");
+			}
+			value /= 1024;
+		} else if (unit.equals("G")) {
+			value *= 1024;
+		} else if (unit.equals("T")) {
+			value *= 1024 * 1024;
+		}
+		if (value <= 0) {
+			throw new Exception("Invalid memory size [ " + memory + " ].");
+		}
+		return value;
+	}
+
+	/**
+	 * Picks the memory backend configured for the virtual machine, falling back to
+	 * RAM when the host cannot provide it. The hugepages of the HUGEPAGES backend
+	 * stay reserved for the virtual machine until {@link #release(VirtualMachine)}.
+	 * @param virtualMachine the related virtual machine
+	 * @param memory the guest memory size, in MB
+	 * @return the memory backend to be used
+	 */
+	public static QEmuMemoryBackend select(VirtualMachine virtualMachine, long memory) {
+		String backendName = virtualMachine.getProperty(VirtualMachineConstants.MEMORY_BACKEND);
+		if (backendName == null) {
+			return RAM;
+		}
+
+		QEmuMemoryBackend backend = valueOf(backendName.toUpperCase());
+		if (backend != RAM && !HypervisorUtils.isLinuxHost()) {
+			LOGGER.warn("Memory backend " + backend + " requires a linux host, using RAM");
+			return RAM;
+		}
+		if (backend == MEMFD && !HostCapabilities.getInstance().isQemuVersionAtLeast(
+				MEMFD_MAJOR, MEMFD_MINOR)) {
+			LOGGER.warn("Installed QEmu does not support memfd memory, using RAM");
+			return RAM;
+		}
+		if (backend == HUGEPAGES && !reserveHugePages(virtualMachine, memory)) {
+			LOGGER.warn("Not enough free hugepages for " + virtualMachine.getName()
+					+ ", using RAM");
+			return RAM;
+		}
+		return backend;
+	}
+
+	/**
+	 * Reserves the hugepages of a virtual machine if enough of them are free, after
+	 * those reserved for other virtual machines whose QEmu is still starting.
+	 */
+	private static boolean reserveHugePages(VirtualMachine virtualMachine, long memoryMB) {
+		if (!HostCapabilities.getInstance().isHugePagesSupported()
+				|| !new File(getHugePagesPath(virtualMachine)).isDirectory()) {
+			return false;
+		}
+		Map<String, Long> memInfo;
+		try {
+			memInfo = LinuxUtils.getMemInfo();
+		} catch (Exception e) {
+			LOGGER.debug("Could not read hugepages information", e);
+			return false;
+		}
+		Long freePages = memInfo.get(HUGEPAGES_FREE);
+		Long reservedPages = memInfo.get(HUGEPAGES_RESERVED);
+		Long pageSizeKB = memInfo.get(HUGEPAGE_SIZE);
+		if (freePages == null || pageSizeKB == null) {
+			return false;
+		}
+		// Pages mapped but not yet touched by running guests are free, but reserved
+		long availableKB = (freePages - (reservedPages == null ? 0 : reservedPages)) * pageSizeKB;
+
+		synchronized (RESERVED_HUGEPAGES) {
+			RESERVED_HUGEPAGES.remove(virtualMachine.getName());
+			for (Long promisedKB : RESERVED_HUGEPAGES.values()) {
+				availableKB -= promisedKB;
+			}
+			if (availableKB < memoryMB * 1024) {
+				return false;
+			}
+			RESERVED_HUGEPAGES.put(virtualMachine.getName(), memoryMB * 1024);
+			return true;
+		}
+	}
+
+	/**
+	 * Releases the hugepages reserved for a virtual machine by {@link #select(VirtualMachine, long)},
+	 * once its QEmu has mapped them or has exited.
+	 * @param virtualMachine the related virtual machine
+	 */
+	public static void release(VirtualMachine virtualMachine) {
+		synchronized (RESERVED_HUGEPAGES) {
+			RESERVED_HUGEPAGES.remove(virtualMachine.getName());
+		}
+	}
+
+	private static void appendBackendOptions(StringBuilder cmd, VirtualMachine virtualMachine) {
+		cmd.append(",prealloc=").append(
+				isEnabled(virtualMachine, VirtualMachineConstants.MEMORY_PREALLOC) ? "on" : "off");
+		cmd.append(",share=").append(
+				isEnabled(virtualMachine, VirtualMachineConstants.MEMORY_SHARE) ? "on" : "off");
+		cmd.append(" -numa node,memdev=").append(MEMORY_ID);
+	}
+
+	private static String getHugePagesPath(VirtualMachine virtualMachine) {
+		String path = virtualMachine.getProperty(VirtualMachineConstants.HUGEPAGES_PATH);
+		return path == null ? DEFAULT_HUGEPAGES_PATH : path;
+	}
+
+	private static boolean isEnabled(VirtualMachine virtualMachine, String property) {
+		String value = virtualMachine.getProperty(property);
+		return value != null && Boolean.parseBoolean(value);
+	}
+}
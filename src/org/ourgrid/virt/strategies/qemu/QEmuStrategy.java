@@ -1,20 +1,17 @@
 package org.ourgrid.virt.strategies.qemu;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.naming.OperationNotSupportedException;
@@ -33,11 +30,14 @@ import org.apache.log4j.Logger;
 import org.ourgrid.virt.model.CPUStats;
 import org.ourgrid.virt.model.DiskStats;
 import org.ourgrid.virt.model.ExecutionResult;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.SharedFolder;
+import org.ourgrid.virt.model.VCpuStats;
 import org.ourgrid.virt.model.VirtualMachine;
 import org.ourgrid.virt.model.VirtualMachineConstants;
 import org.ourgrid.virt.model.VirtualMachineStatus;
+import org.ourgrid.virt.strategies.HostCapabilities;
 import org.ourgrid.virt.strategies.HypervisorStrategy;
 import org.ourgrid.virt.strategies.HypervisorUtils;
 import org.ourgrid.virt.strategies.LinuxUtils;
@@ -67,6 +67,8 @@ public class QEmuStrategy implements HypervisorStrategy {
 	private static final String CURRENT_DEVICE_IDX = "CURRENT_DEVICE_IDX";
 	private static final String DEVICES_ATTACHED = "DEVICES_ATTACHED";
 	private static final String TAP_WINDOWS_DEV = "TAP_WINDOWS_DEV";
+	private static final String BALLOON_DEVICE = "BALLOON_DEVICE";
+	private static final String VCPU_THREADS = "VCPU_THREADS";
 	
 	private static final String CIFS_DEVICE = "10.0.2.100";
 	private static final String CIFS_PORT_GUEST = "9999";
@@ -76,12 +78,15 @@ public class QEmuStrategy implements HypervisorStrategy {
 	private static final int DEF_CONNECTION_TIMEOUT = 180;
 
 	private String qemuLocation = System.getProperty("qemu.home");
+	private final BalloonController balloonController = new BalloonController(this);
 	
 	public enum QmpCmd {
 		STOP("quit"),
 		REBOOT("system_reset"),
 		CAPABILITIES("qmp_capabilities"),
-		BLOCKSTATS("query-blockstats");
+		BLOCKSTATS("query-blockstats"),
+		QUERY_CPUS_FAST("query-cpus-fast"),
+		QUERY_CPUS("query-cpus");
 		
 		private String cmd;
 		QmpCmd(String cmd) {
@@ -102,7 +107,12 @@ public class QEmuStrategy implements HypervisorStrategy {
 		READ_TOTAL_TIME_NS("rd_total_time_ns"),
 		WRITE_BYTES("wr_bytes"),
 		WRITE_OPS("wr_operations"),
-		WRITE_TOTAL_TIME_NS("wr_total_time_ns"); 
+		WRITE_TOTAL_TIME_NS("wr_total_time_ns"),
+		NODE_NAME("node-name"),
+		CPU_INDEX("cpu-index"),
+		THREAD_ID("thread-id"),
+		LEGACY_CPU_INDEX("CPU"),
+		LEGACY_THREAD_ID("thread_id");
 		
 		private String tag;
 		QmpJsonTag(String tag) {
@@ -117,38 +127,74 @@ public class QEmuStrategy implements HypervisorStrategy {
 
 	@Override
 	public void start(final VirtualMachine virtualMachine) throws Exception {
+		try {
+			launch(virtualMachine);
+		} finally {
+			// QEmu has either mapped its hugepages or exited by now
+			QEmuMemoryBackend.release(virtualMachine);
+		}
+		
+		String balloonAuto = virtualMachine.getProperty(VirtualMachineConstants.BALLOON_AUTO);
+		if (hasBalloon(virtualMachine)) {
+			try {
+				balloonController.enableGuestStats(virtualMachine);
+			} catch (Exception e) {
+				LOGGER.warn("Could not enable guest memory statistics of " 
+						+ virtualMachine.getName(), e);
+			}
+			if (balloonAuto != null && Boolean.parseBoolean(balloonAuto)) {
+				balloonController.register(virtualMachine);
+			}
+		}
+	}
+	
+	private void launch(final VirtualMachine virtualMachine) throws Exception {
 		String hda = virtualMachine
 				.getProperty(VirtualMachineConstants.DISK_IMAGE_PATH);
-		String memory = virtualMachine
-				.getProperty(VirtualMachineConstants.MEMORY);
+		long memory = QEmuMemoryBackend.toMegaBytes((String) virtualMachine
+				.getProperty(VirtualMachineConstants.MEMORY));
 
+		QEmuDeviceModel deviceModel = QEmuDeviceModel.fromConfiguration(virtualMachine);
+		
 		StringBuilder strBuilder = new StringBuilder();
-		strBuilder.append("-net nic");
+		StringBuilder netBuilder = new StringBuilder();
 
 		String netType = virtualMachine
 				.getProperty(VirtualMachineConstants.NETWORK_TYPE);
 		if (netType != null) {
 			if (netType.equals("nat")) {
-				configureNat(virtualMachine, strBuilder);
+				configureNat(virtualMachine, netBuilder);
 			} else if (netType.equals("host-only")) {
-				configureHostOnly(virtualMachine, strBuilder);
+				configureHostOnly(virtualMachine, netBuilder);
 			} else if (netType.equals("bridged")) {
-				configureBridged(virtualMachine, strBuilder);
+				configureBridged(virtualMachine, netBuilder);
 			} else if (netType.equals("internal")) {
-				configureInternal(virtualMachine, strBuilder);
+				configureInternal(virtualMachine, netBuilder);
 			}
 		}
 		
 		if (virtualMachine.getProperty(SHARED_FOLDERS) != null) {
 			Integer cifsPort = randomPort();
-			strBuilder.append(",guestfwd=tcp:").append(CIFS_DEVICE).append(":")
+			netBuilder.append(",guestfwd=tcp:").append(CIFS_DEVICE).append(":")
 					.append(CIFS_PORT_GUEST).append("-tcp:127.0.0.1:")
 					.append(cifsPort);
 			createSMBServer(virtualMachine, cifsPort);
 		}
-
-		strBuilder.append(" -m ").append(memory);
+		
+		deviceModel.appendNetwork(strBuilder, virtualMachine, 
+				netBuilder.length() == 0 ? null : netBuilder.toString(),
+				(String) virtualMachine.getProperty(VirtualMachineConstants.MAC));
+
+		QEmuMemoryBackend.select(virtualMachine, memory).appendMemory(
+				strBuilder, virtualMachine, memory);
+		virtualMachine.setProperty(BALLOON_DEVICE, 
+				deviceModel.appendBalloon(strBuilder, virtualMachine));
 		strBuilder.append(" -nodefconfig");
+		if (HostCapabilities.getInstance().isQemuVersionAtLeast(2, 0)) {
+			// Names vCPU threads as "CPU n/KVM", so their cpu time can be told apart
+			strBuilder.append(" -name ").append(virtualMachine.getName().replace(",", ",,"))
+				.append(",debug-threads=on");
+		}
 		Integer qmpPort = randomPort();
 		strBuilder.append(" -qmp tcp:127.0.0.1:").append(qmpPort)
 				.append(",server,nowait,nodelay");
@@ -183,15 +229,15 @@ public class QEmuStrategy implements HypervisorStrategy {
 				CURRENT_SNAPSHOT);
 
 		if (snapshot != null && new File(snapshotLocation).exists()) {
-			strBuilder.append(" -hda \"").append(snapshotLocation).append("\"");
+			deviceModel.appendDisk(strBuilder, virtualMachine, snapshotLocation);
 			virtualMachine.setProperty(HDA_FILE, snapshotLocation);
 		} else {
-			strBuilder.append(" -hda \"").append(hda).append("\"");
+			deviceModel.appendDisk(strBuilder, virtualMachine, hda);
 			virtualMachine.setProperty(HDA_FILE, hda);
 		}
 
 		
-		if (checkKVM()) {
+		if (HostCapabilities.getInstance().isKvmAvailable()) {
 			strBuilder.append(" -enable-kvm"); 
 		}
 
@@ -236,6 +282,11 @@ public class QEmuStrategy implements HypervisorStrategy {
 		
 		checkOSStarted(virtualMachine);
 	}
+	
+	private boolean hasBalloon(VirtualMachine virtualMachine) {
+		Boolean balloon = virtualMachine.getProperty(BALLOON_DEVICE);
+		return balloon != null && balloon;
+	}
 
 	private void configureInternal(VirtualMachine virtualMachine,
 			StringBuilder strBuilder) {
@@ -266,11 +317,7 @@ public class QEmuStrategy implements HypervisorStrategy {
 			throw new OperationNotSupportedException();
 		}
 
-		String macAddr = virtualMachine.getProperty(VirtualMachineConstants.MAC);
-		if (macAddr != null) {
-			strBuilder.append(",macaddr=").append(macAddr);
-		}
-		strBuilder.append(" -net tap,ifname=").append(tapIf).append(",script=no,downscript=no");
+		strBuilder.append("tap,ifname=").append(tapIf).append(",script=no,downscript=no");
 	}
 
 	private synchronized void configureBridgedOnWindows(VirtualMachine vm, String tapIf, String brName) throws Exception {
@@ -314,7 +361,7 @@ public class QEmuStrategy implements HypervisorStrategy {
 	private void configureHostOnly(VirtualMachine virtualMachine,
 			StringBuilder strBuilder) {
 		Integer sshPort = randomPort();
-		strBuilder.append(" -net user");
+		strBuilder.append("user");
 		strBuilder.append(",restrict=yes,hostfwd=tcp:127.0.0.1:").append(
 				sshPort).append("-:22");
 		virtualMachine.setProperty(VirtualMachineConstants.IP, "localhost");
@@ -324,7 +371,7 @@ public class QEmuStrategy implements HypervisorStrategy {
 
 	private void configureNat(VirtualMachine virtualMachine,
 			StringBuilder strBuilder) {
-		strBuilder.append(" -net user");
+		strBuilder.append("user");
 	}
 
 	private void startQEmuProcess(final VirtualMachine virtualMachine,
@@ -346,29 +393,6 @@ public class QEmuStrategy implements HypervisorStrategy {
 		Runtime.getRuntime().addShutdownHook(new Thread(runnable));
 	}
 
-	private boolean checkKVM() {
-		if (!HypervisorUtils.isLinuxHost()) {
-			LOGGER.debug("It is not a linux host");
-			return false;
-		}
-		if (!new File("/dev/kvm").exists()) {
-			LOGGER.debug("/dev/kvm does not exist");
-			return false;
-		}
-		
-		if (!new File("/dev/kvm").canRead() || !new File("/dev/kvm").canWrite()) {
-			LOGGER.debug("No permission to access /dev/kvm");
-			return false;
-		}
-		
-		try {
-			return new ProcessBuilder("kvm-ok").start().waitFor() == 0;
-		} catch (Exception e) {
-			LOGGER.debug("kvm-ok failed");
-			return false;
-		}
-	}
-
 	private void createSMBServer(VirtualMachine virtualMachine, Integer smbPort)
 			throws Exception {
 		Map<String, SharedFolder> sharedFolders = virtualMachine
@@ -510,6 +534,7 @@ public class QEmuStrategy implements HypervisorStrategy {
 
 	@Override
 	public void stop(VirtualMachine virtualMachine) throws Exception {
+		balloonController.unregister(virtualMachine);
 		stopCIFS(virtualMachine);
 		
 		runQMPCommand(virtualMachine, QmpCmd.STOP.getCmd());
@@ -906,41 +931,23 @@ public class QEmuStrategy implements HypervisorStrategy {
 	
 	private JsonElement runQMPCommand(VirtualMachine virtualMachine,
 			String command, String arguments) throws Exception {
-		Socket s = new Socket("127.0.0.1",
-				(Integer) virtualMachine.getProperty(QMP_PORT));
-		PrintStream ps = new PrintStream(s.getOutputStream());
-		BufferedReader in = new BufferedReader(
-				new InputStreamReader(s.getInputStream()));
-		
-		ps.println("{\"execute\":\"" + QmpCmd.CAPABILITIES.getCmd() + "\"}");
-		ps.flush();
-		Thread.sleep(QMP_CAPABILITY_WAIT);
-		
-		if (arguments == null) {
-			ps.println("{\"execute\":\"" + command + "\"}");
-		} else {
-			String jsonCommand = "{\"execute\":\"" + command + "\", \"arguments\":" + arguments + "}";
-			ps.println(jsonCommand);
+		QmpClient qmpClient = openQmp(virtualMachine);
+		try {
+			JsonObject jsonArguments = arguments == null ? null 
+					: new JsonParser().parse(arguments).getAsJsonObject();
+			return qmpClient.execute(command, jsonArguments);
+		} finally {
+			qmpClient.close();
 		}
-		
-		ps.flush();
-		Thread.sleep(QMP_CAPABILITY_WAIT);
-		
-		StringBuilder sb = new StringBuilder();
-		
-		while (in.ready()) {
-			sb.append(in.readLine());
-			sb.append("\n");
+	}
+	
+	QmpClient openQmp(VirtualMachine virtualMachine) throws Exception {
+		Integer qmpPort = virtualMachine.getProperty(QMP_PORT);
+		if (qmpPort == null) {
+			throw new Exception("Virtual machine [ " + virtualMachine.getName() 
+					+ " ] has no QMP server.");
 		}
-		
-		String cmdResp = sb.toString().split("\n")[2];
-		
-		JsonParser jParser = new JsonParser();
-		JsonElement response = jParser.parse(cmdResp);
-		
-		s.close();
-		
-		return response;
+		return new QmpClient(qmpPort);
 	}
 	
 	@SuppressWarnings("unused")
@@ -962,7 +969,71 @@ public class QEmuStrategy implements HypervisorStrategy {
 		if (HypervisorUtils.isWindowsHost()) {
 			return SigarUtils.getCPUStats(getPid(virtualMachine));
 		}
-		return LinuxUtils.getCPUStats(getPid(virtualMachine));
+		String pid = getPid(virtualMachine);
+		CPUStats cpuStats = LinuxUtils.getCPUStats(pid);
+		try {
+			cpuStats.setVcpus(getVCpuStats(virtualMachine, pid));
+		} catch (Exception e) {
+			LOGGER.debug("Could not get vCPU statistics of " + virtualMachine.getName(), e);
+		}
+		return cpuStats;
+	}
+	
+	/**
+	 * Reads the host scheduler statistics of each vCPU thread. The thread ids
+	 * are queried through QMP once and then cached, until a thread is not found,
+	 * as happens after a restart or a vCPU hot(un)plug.
+	 */
+	private List<VCpuStats> getVCpuStats(VirtualMachine virtualMachine, String pid) 
+			throws Exception {
+		Map<Integer, Integer> vcpuThreads = virtualMachine.getProperty(VCPU_THREADS);
+		if (vcpuThreads == null) {
+			vcpuThreads = queryVCpuThreads(virtualMachine);
+			virtualMachine.setProperty(VCPU_THREADS, vcpuThreads);
+		}
+		
+		List<VCpuStats> vcpus = new ArrayList<VCpuStats>(vcpuThreads.size());
+		for (Map.Entry<Integer, Integer> vcpuThread : vcpuThreads.entrySet()) {
+			long[] schedStat;
+			try {
+				schedStat = LinuxUtils.getSchedStat(pid, vcpuThread.getValue());
+			} catch (IOException e) {
+				virtualMachine.setProperty(VCPU_THREADS, null);
+				throw e;
+			}
+			VCpuStats vcpu = new VCpuStats();
+			vcpu.setCpuIndex(vcpuThread.getKey());
+			vcpu.setThreadId(vcpuThread.getValue());
+			vcpu.setCpuTime(schedStat[0] / 1000000);
+			vcpu.setRunDelay(schedStat[1] / 1000000);
+			vcpu.setTimeslices(schedStat[2]);
+			vcpus.add(vcpu);
+		}
+		return vcpus;
+	}
+	
+	/**
+	 * @return the host thread id of each vCPU, by cpu index
+	 */
+	private Map<Integer, Integer> queryVCpuThreads(VirtualMachine virtualMachine) 
+			throws Exception {
+		// query-cpus-fast does not interrupt the vCPUs, but is only available since 2.12
+		boolean fast = HostCapabilities.getInstance().isQemuVersionAtLeast(2, 12);
+		JsonElement cpus = runQMPCommand(virtualMachine, fast ? 
+				QmpCmd.QUERY_CPUS_FAST.getCmd() : QmpCmd.QUERY_CPUS.getCmd());
+		String indexTag = fast ? 
+				QmpJsonTag.CPU_INDEX.getTag() : QmpJsonTag.LEGACY_CPU_INDEX.getTag();
+		String threadTag = fast ? 
+				QmpJsonTag.THREAD_ID.getTag() : QmpJsonTag.LEGACY_THREAD_ID.getTag();
+		
+		Map<Integer, Integer> vcpuThreads = new TreeMap<Integer, Integer>();
+		JsonArray cpuArray = cpus.getAsJsonObject().get(
+				QmpJsonTag.RETURN.getTag()).getAsJsonArray();
+		for (JsonElement cpu : cpuArray) {
+			JsonObject cpuObj = cpu.getAsJsonObject();
+			vcpuThreads.put(cpuObj.get(indexTag).getAsInt(), cpuObj.get(threadTag).getAsInt());
+		}
+		return vcpuThreads;
 	}
 
 	@Override
@@ -974,14 +1045,51 @@ public class QEmuStrategy implements HypervisorStrategy {
 		return LinuxUtils.getNetworkStats(registeredVM, ifName);
 	}
 	
+	@Override
+	public MemoryStats getMemoryStats(VirtualMachine virtualMachine) throws Exception {
+		MemoryStats memoryStats;
+		if (HypervisorUtils.isWindowsHost()) {
+			memoryStats = SigarUtils.getMemoryStats(getPid(virtualMachine));
+		} else {
+			memoryStats = LinuxUtils.getMemoryStats(getPid(virtualMachine));
+		}
+		
+		if (hasBalloon(virtualMachine)) {
+			QmpClient qmp = openQmp(virtualMachine);
+			try {
+				memoryStats.setBalloonActual(BalloonController.queryBalloonActual(qmp));
+				JsonObject stats = BalloonController.queryGuestStats(qmp);
+				memoryStats.setGuestTotalMemory(toMemoryStat(
+						BalloonController.getStat(stats, BalloonController.STAT_TOTAL)));
+				memoryStats.setGuestFreeMemory(toMemoryStat(
+						BalloonController.getStat(stats, BalloonController.STAT_FREE)));
+				memoryStats.setGuestAvailableMemory(toMemoryStat(
+						BalloonController.getGuestAvailable(stats)));
+				memoryStats.setGuestCachedMemory(toMemoryStat(
+						BalloonController.getStat(stats, BalloonController.STAT_CACHES)));
+			} catch (Exception e) {
+				LOGGER.debug("Could not get guest memory statistics of " 
+						+ virtualMachine.getName(), e);
+			} finally {
+				qmp.close();
+			}
+		}
+		
+		return memoryStats;
+	}
+	
+	private static long toMemoryStat(long guestStat) {
+		return guestStat < 0 ? MemoryStats.NOT_AVAILABLE : guestStat;
+	}
+	
 	@Override
 	public List<DiskStats> getDiskStats(VirtualMachine virtualMachine) throws Exception {
 		
 		List<DiskStats> disksStats = new ArrayList<DiskStats>();
 		
 		JsonElement bStats = runQMPCommand(virtualMachine, QmpCmd.BLOCKSTATS.getCmd());
-		//get timestamp subtracting qmp_capabilities command waited time
-		long timestamp = System.currentTimeMillis() - QMP_CAPABILITY_WAIT;
+		long timestamp = System.currentTimeMillis();
+		long nanoTime = System.nanoTime();
 		JsonObject ret = bStats.getAsJsonObject();
 		JsonArray devices = ret.get(QmpJsonTag.RETURN.getTag()).getAsJsonArray();
 		
@@ -990,8 +1098,9 @@ public class QEmuStrategy implements HypervisorStrategy {
 			JsonObject deviceStats = deviceObj.get(QmpJsonTag.STATS.getTag()).getAsJsonObject();
 			
 			DiskStats diskStats = new DiskStats();
-			diskStats.setDeviceName(deviceObj.get(QmpJsonTag.DEVICE.getTag()).getAsString());
+			diskStats.setDeviceName(getBlockDeviceName(deviceObj));
 			diskStats.setTimestamp(timestamp);
+			diskStats.setNanoTime(nanoTime);
 			diskStats.setReadBytes(deviceStats.get(QmpJsonTag.READ_BYTES.getTag()).getAsLong());
 			diskStats.setReadOps(deviceStats.get(QmpJsonTag.READ_OPS.getTag()).getAsLong());
 			diskStats.setReadTotalTime(deviceStats.get(QmpJsonTag.READ_TOTAL_TIME_NS.getTag()).getAsLong()/1000);
@@ -1005,6 +1114,16 @@ public class QEmuStrategy implements HypervisorStrategy {
 		return disksStats;
 	}
 
+	private static String getBlockDeviceName(JsonObject deviceObj) {
+		JsonElement device = deviceObj.get(QmpJsonTag.DEVICE.getTag());
+		if (device != null && device.getAsString().length() > 0) {
+			return device.getAsString();
+		}
+		// Drives defined through -blockdev have no legacy device name
+		JsonElement nodeName = deviceObj.get(QmpJsonTag.NODE_NAME.getTag());
+		return nodeName == null ? null : nodeName.getAsString();
+	}
+
 	@Override
 	public String attachDevice(VirtualMachine registeredVM, String hostDevicePath) throws Exception {
 		Integer currentDeviceIdx = registeredVM.getProperty(CURRENT_DEVICE_IDX);
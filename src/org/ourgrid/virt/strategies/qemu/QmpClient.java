@@ -0,0 +1,107 @@
+package org.ourgrid.virt.strategies.qemu;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.Socket;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Minimal client for the QEmu Machine Protocol. It negotiates the capabilities
+ * when connecting and then reads each response as soon as it arrives, skipping
+ * the asynchronous events QEmu may interleave with it.
+ */
+public class QmpClient {
+
+	private static final int QMP_TIMEOUT = 30000;
+
+	private static final String RETURN = "return";
+	private static final String ERROR = "error";
+	private static final String ERROR_DESC = "desc";
+
+	private final Socket socket;
+	private final PrintStream out;
+	private final BufferedReader in;
+	private final JsonParser parser = new JsonParser();
+
+	/**
+	 * Connects to the QMP server listening on the given local port.
+	 * @param port the QMP port of the virtual machine
+	 * @throws Exception if the connection or the capabilities negotiation fail
+	 */
+	public QmpClient(int port) throws Exception {
+		this.socket = new Socket("127.0.0.1", port);
+		this.socket.setSoTimeout(QMP_TIMEOUT);
+		this.socket.setTcpNoDelay(true);
+		this.out = new PrintStream(socket.getOutputStream());
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+		try {
+			// Greeting
+			readMessage();
+			execute(QEmuStrategy.QmpCmd.CAPABILITIES.getCmd(), null);
+		} catch (Exception e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Executes the given QMP command and waits for its response.
+	 * @param command the QMP command name
+	 * @param arguments the command arguments, or <b>null</b> if there are none
+	 * @return the whole response object, whose <i>return</i> member holds the result
+	 * @throws Exception if QEmu reports an error or the connection fails
+	 */
+	public JsonObject execute(String command, JsonObject arguments) throws Exception {
+		JsonObject request = new JsonObject();
+		request.addProperty("execute", command);
+		if (arguments != null) {
+			request.add("arguments", arguments);
+		}
+		out.println(request.toString());
+		out.flush();
+
+		while (true) {
+			JsonObject response = readMessage();
+			if (response.has(RETURN)) {
+				return response;
+			}
+			if (response.has(ERROR)) {
+				JsonObject error = response.get(ERROR).getAsJsonObject();
+				throw new Exception("QMP command " + command + " failed: "
+						+ error.get(ERROR_DESC).getAsString());
+			}
+			// Asynchronous event, keep waiting for the response
+		}
+	}
+
+	/**
+	 * Executes the given QMP command and returns its result.
+	 * @see QmpClient#execute(String, JsonObject)
+	 */
+	public JsonElement executeAndGetReturn(String command, JsonObject arguments)
+			throws Exception {
+		return execute(command, arguments).get(RETURN);
+	}
+
+	private JsonObject readMessage() throws IOException {
+		String line = in.readLine();
+		if (line == null) {
+			throw new IOException("QMP connection closed by QEmu");
+		}
+		return parser.parse(line).getAsJsonObject();
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Best effort
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package org.ourgrid.virt.strategies.vbox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.virtualbox_4_2.IEvent;
+import org.virtualbox_4_2.IEventListener;
+import org.virtualbox_4_2.IEventSource;
+import org.virtualbox_4_2.IGuestPropertyChangedEvent;
+import org.virtualbox_4_2.IMachine;
+import org.virtualbox_4_2.IMachineEvent;
+import org.virtualbox_4_2.IMachineRegisteredEvent;
+import org.virtualbox_4_2.IMachineStateChangedEvent;
+import org.virtualbox_4_2.ISessionStateChangedEvent;
+import org.virtualbox_4_2.IVirtualBox;
+import org.virtualbox_4_2.MachineState;
+import org.virtualbox_4_2.SessionState;
+import org.virtualbox_4_2.VBoxEventType;
+
+/**
+ * Tracks the state of every virtual machine registered in VirtualBox from its
+ * events, so queries are answered from memory. A passive listener is registered
+ * on the VirtualBox event source and drained at every turn of the
+ * {@link VBoxWorker} owner thread, which also completes the futures of callers
+ * waiting for a transition. Except for the queries answered from memory, the
+ * methods must be called on the owner thread.
+ */
+class VBoxEventTracker {
+
+	private static final Logger LOGGER = Logger.getLogger(VBoxEventTracker.class);
+	private static final List<MachineState> STOPPED_STATES = Arrays.asList(null,
+			MachineState.PoweredOff, MachineState.Aborted, MachineState.Saved);
+
+	private final IVirtualBox vbox;
+	private final IEventSource eventSource;
+	private final IEventListener listener;
+
+	private final Map<String, String> namesById = new HashMap<String, String>();
+	private final Map<String, MachineState> states = new HashMap<String, MachineState>();
+	// Guest properties set since the machine was started, as seen in the events
+	private final Map<String, Map<String, String>> guestProperties =
+			new HashMap<String, Map<String, String>>();
+	private final List<Waiter<?>> waiters = new LinkedList<Waiter<?>>();
+
+	VBoxEventTracker(IVirtualBox vbox) {
+		this.vbox = vbox;
+		this.eventSource = vbox.getEventSource();
+		this.listener = eventSource.createListener();
+		// Registered before reading the machines, so no transition is missed
+		eventSource.registerListener(listener, Arrays.asList(
+				VBoxEventType.OnMachineStateChanged, VBoxEventType.OnMachineRegistered,
+				VBoxEventType.OnMachineDataChanged, VBoxEventType.OnSessionStateChanged,
+				VBoxEventType.OnGuestPropertyChanged), false);
+
+		synchronized (this) {
+			for (IMachine machine : vbox.getMachines()) {
+				if (machine.getAccessible()) {
+					namesById.put(machine.getId(), machine.getName());
+					states.put(machine.getName(), machine.getState());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the last known state of the machine, or <b>null</b> if it is not registered
+	 */
+	synchronized MachineState getState(String vmName) {
+		return states.get(vmName);
+	}
+
+	/**
+	 * @return the names of the registered machines, or only of the running ones
+	 */
+	synchronized List<String> list(boolean onlyRunning) {
+		List<String> vms = new LinkedList<String>();
+		for (Map.Entry<String, MachineState> state : states.entrySet()) {
+			if (!onlyRunning || state.getValue() == MachineState.Running) {
+				vms.add(state.getKey());
+			}
+		}
+		return vms;
+	}
+
+	/**
+	 * @return a future completed with the state of the machine once it reaches
+	 * any of the given states, or failed if the machine is unregistered
+	 */
+	synchronized Future<MachineState> waitForState(String vmName,
+			final MachineState... targetStates) {
+		Waiter<MachineState> waiter = new Waiter<MachineState>(vmName) {
+			@Override
+			boolean stateChanged(MachineState state) {
+				if (state == null) {
+					return future.fail(new Exception("Virtual machine [ "
+							+ vmName + " ] is not registered."));
+				}
+				return Arrays.asList(targetStates).contains(state) && future.set(state);
+			}
+		};
+		if (!waiter.stateChanged(states.get(vmName))) {
+			waiters.add(waiter);
+		}
+		return waiter.future;
+	}
+
+	/**
+	 * @return a future completed with the name of the next guest property set
+	 * by the machine, or failed if the machine is powered off meanwhile
+	 */
+	synchronized Future<String> waitForGuestPropertyChange(String vmName) {
+		Waiter<String> waiter = new Waiter<String>(vmName) {
+			@Override
+			boolean stateChanged(MachineState state) {
+				if (!STOPPED_STATES.contains(state)) {
+					return false;
+				}
+				return future.fail(new Exception("Virtual machine [ "
+						+ vmName + " ] is not running."));
+			}
+
+			@Override
+			boolean guestPropertyChanged(String name, String value) {
+				return future.set(name);
+			}
+		};
+		if (!waiter.stateChanged(states.get(vmName))) {
+			waiters.add(waiter);
+		}
+		return waiter.future;
+	}
+
+	/**
+	 * @return the value of a guest property set since the machine was started,
+	 * or <b>null</b> if no event about it was received
+	 */
+	synchronized String getGuestProperty(String vmName, String name) {
+		Map<String, String> properties = guestProperties.get(vmName);
+		return properties == null ? null : properties.get(name);
+	}
+
+	/**
+	 * @return a future completed with the value of the guest property once the
+	 * machine sets it, or failed if the machine is powered off meanwhile
+	 */
+	synchronized Future<String> waitForGuestProperty(String vmName, final String propertyName) {
+		Waiter<String> waiter = new Waiter<String>(vmName) {
+			@Override
+			boolean stateChanged(MachineState state) {
+				if (!STOPPED_STATES.contains(state)) {
+					return false;
+				}
+				return future.fail(new Exception("Virtual machine [ "
+						+ vmName + " ] is not running."));
+			}
+
+			@Override
+			boolean guestPropertyChanged(String name, String value) {
+				return name.equals(propertyName) && value.length() > 0 && future.set(value);
+			}
+		};
+		String value = getGuestProperty(vmName, propertyName);
+		if (value != null && value.length() > 0) {
+			waiter.future.set(value);
+		} else if (!waiter.stateChanged(states.get(vmName))) {
+			waiters.add(waiter);
+		}
+		return waiter.future;
+	}
+
+	/**
+	 * Handles the events received since the last call, without waiting for new ones.
+	 */
+	void drainEvents() {
+		IEvent event;
+		while ((event = eventSource.getEvent(listener, 0)) != null) {
+			try {
+				handle(event);
+			} catch (Exception e) {
+				LOGGER.warn("Could not handle VirtualBox event", e);
+			} finally {
+				eventSource.eventProcessed(listener, event);
+			}
+		}
+	}
+
+	private void handle(IEvent event) {
+		String machineId = IMachineEvent.queryInterface(event).getMachineId();
+
+		switch (event.getType()) {
+		case OnMachineStateChanged:
+			stateChanged(machineId, IMachineStateChangedEvent.queryInterface(event).getState());
+			break;
+		case OnMachineRegistered:
+			if (IMachineRegisteredEvent.queryInterface(event).getRegistered()) {
+				refresh(machineId);
+			} else {
+				stateChanged(machineId, null);
+			}
+			break;
+		case OnMachineDataChanged:
+			// The machine may have been renamed
+			refresh(machineId);
+			break;
+		case OnSessionStateChanged:
+			// A machine process which dies unlocks its session
+			if (ISessionStateChangedEvent.queryInterface(event).getState() == SessionState.Unlocked) {
+				refresh(machineId);
+			}
+			break;
+		case OnGuestPropertyChanged:
+			IGuestPropertyChangedEvent propertyEvent =
+					IGuestPropertyChangedEvent.queryInterface(event);
+			guestPropertyChanged(machineId, propertyEvent.getName(), propertyEvent.getValue());
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void refresh(String machineId) {
+		refresh(vbox.findMachine(machineId));
+	}
+
+	/**
+	 * Reads the state of a machine right away, so the changes made by the caller
+	 * are seen before their events are drained.
+	 */
+	void refresh(IMachine machine) {
+		if (!machine.getAccessible()) {
+			return;
+		}
+		String machineId = machine.getId();
+		String vmName = machine.getName();
+		MachineState state = machine.getState();
+		synchronized (this) {
+			String oldName = namesById.put(machineId, vmName);
+			if (oldName != null && !oldName.equals(vmName)) {
+				states.remove(oldName);
+				guestProperties.remove(oldName);
+			}
+			stateChanged(machineId, state);
+		}
+	}
+
+	/**
+	 * Forgets a machine unregistered by the caller.
+	 */
+	void unregistered(String machineId) {
+		stateChanged(machineId, null);
+	}
+
+	private synchronized void stateChanged(String machineId, MachineState state) {
+		String vmName = namesById.get(machineId);
+		if (vmName == null) {
+			return;
+		}
+		if (state == null) {
+			namesById.remove(machineId);
+			states.remove(vmName);
+		} else {
+			states.put(vmName, state);
+		}
+		if (STOPPED_STATES.contains(state)) {
+			// Guest properties are reset when the machine is powered off
+			guestProperties.remove(vmName);
+		}
+
+		Iterator<Waiter<?>> iterator = waiters.iterator();
+		while (iterator.hasNext()) {
+			Waiter<?> waiter = iterator.next();
+			if (waiter.future.isCancelled() ||
+					(waiter.vmName.equals(vmName) && waiter.stateChanged(state))) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private synchronized void guestPropertyChanged(String machineId, String name, String value) {
+		String vmName = namesById.get(machineId);
+		if (vmName == null) {
+			return;
+		}
+		Map<String, String> properties = guestProperties.get(vmName);
+		if (properties == null) {
+			properties = new HashMap<String, String>();
+			guestProperties.put(vmName, properties);
+		}
+		properties.put(name, value);
+
+		Iterator<Waiter<?>> iterator = waiters.iterator();
+		while (iterator.hasNext()) {
+			Waiter<?> waiter = iterator.next();
+			if (waiter.future.isCancelled() ||
+					(waiter.vmName.equals(vmName) && waiter.guestPropertyChanged(name, value))) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Unregisters the listener.
+	 */
+	void close() {
+		eventSource.unregisterListener(listener);
+	}
+
+	/**
+	 * A caller waiting for the events of a machine.
+	 */
+	private abstract static class Waiter<T> {
+
+		final String vmName;
+		final VBoxFuture<T> future = new VBoxFuture<T>();
+
+		Waiter(String vmName) {
+			this.vmName = vmName;
+		}
+
+		/**
+		 * @param state the new state, <b>null</b> if the machine was unregistered
+		 * @return <b><i>true</b></i> once the waiter is done
+		 */
+		boolean stateChanged(MachineState state) {
+			return false;
+		}
+
+		/**
+		 * @return <b><i>true</b></i> once the waiter is done
+		 */
+		boolean guestPropertyChanged(String name, String value) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.ourgrid.virt.strategies.vbox;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} completed by whichever thread learns the outcome of an
+ * operation, such as the thread draining the VirtualBox events. Only the first
+ * of {@link #set}, {@link #fail} and {@link #cancel} has any effect.
+ */
+class VBoxFuture<T> implements Future<T> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private T value;
+	private Throwable failure;
+	private boolean cancelled;
+
+	/**
+	 * @return <b><i>true</b></i> if the future was completed by this call
+	 */
+	synchronized boolean set(T value) {
+		if (isDone()) {
+			return false;
+		}
+		this.value = value;
+		done.countDown();
+		return true;
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if the future was completed by this call
+	 */
+	synchronized boolean fail(Throwable failure) {
+		if (isDone()) {
+			return false;
+		}
+		this.failure = failure;
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone()) {
+			return false;
+		}
+		cancelled = true;
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private synchronized T getResult() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,202 @@
+package org.ourgrid.virt.strategies.vbox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.MemoryStats;
+import org.ourgrid.virt.model.NetworkStats;
+
+/**
+ * Turns the VirtualBox performance metrics of every virtual machine into the
+ * cumulative statistics of the OurVirt model. VirtualBox reports loads and rates
+ * averaged over its collection period, so they are integrated over the time
+ * elapsed between queries. The metrics of all virtual machines are refreshed at
+ * once, at most every {@link #MAX_AGE} ms, and served from memory in between.
+ */
+public class VBoxMetricsAccumulator {
+
+	public static final String CPU_LOAD_USER = "CPU/Load/User";
+	public static final String CPU_LOAD_KERNEL = "CPU/Load/Kernel";
+	public static final String RAM_USAGE_USED = "RAM/Usage/Used";
+	public static final String NET_RATE_RX = "Net/Rate/Rx";
+	public static final String NET_RATE_TX = "Net/Rate/Tx";
+	public static final String GUEST_RAM_TOTAL = "Guest/RAM/Usage/Total";
+	public static final String GUEST_RAM_FREE = "Guest/RAM/Usage/Free";
+	public static final String GUEST_RAM_BALLOON = "Guest/RAM/Usage/Balloon";
+	public static final String GUEST_RAM_CACHE = "Guest/RAM/Usage/Cache";
+
+	/**
+	 * Names of the metrics collected for each virtual machine. Loads are percentages
+	 * of the whole host, memory sizes are in kB and rates in bytes per second.
+	 */
+	public static final String[] METRICS = {CPU_LOAD_USER, CPU_LOAD_KERNEL,
+		RAM_USAGE_USED, NET_RATE_RX, NET_RATE_TX, GUEST_RAM_TOTAL,
+		GUEST_RAM_FREE, GUEST_RAM_BALLOON, GUEST_RAM_CACHE};
+
+	public static final long MAX_AGE = 1000;
+
+	private final int hostProcessors;
+	private final Map<String, VmMetrics> vmMetrics = new HashMap<String, VmMetrics>();
+	private long lastRefresh = -1;
+
+	/**
+	 * @param hostProcessors the number of host processors, as VirtualBox
+	 * reports loads relative to the whole host
+	 */
+	public VBoxMetricsAccumulator(int hostProcessors) {
+		this.hostProcessors = hostProcessors;
+	}
+
+	/**
+	 * @return <b><i>true</b></i> if the metrics are older than {@link #MAX_AGE}
+	 * and should be queried again, <b><i>false</b></i> otherwise.
+	 */
+	public synchronized boolean needsRefresh() {
+		return lastRefresh < 0 || System.nanoTime() - lastRefresh > MAX_AGE * 1000000;
+	}
+
+	/**
+	 * Marks the end of a query round. Virtual machines which were not updated
+	 * in the round are forgotten, so their counters restart if they come back.
+	 */
+	public synchronized void refreshed() {
+		lastRefresh = System.nanoTime();
+		for (VmMetrics metrics : vmMetrics.values()) {
+			if (!metrics.updated) {
+				metrics.reset();
+			}
+			metrics.updated = false;
+		}
+	}
+
+	/**
+	 * Updates the metrics of a virtual machine with the latest queried values.
+	 * @param vmName the name of the virtual machine
+	 * @param values the latest value of each metric listed in {@link #METRICS}
+	 */
+	public synchronized void update(String vmName, Map<String, Double> values) {
+		VmMetrics metrics = vmMetrics.get(vmName);
+		if (metrics == null) {
+			metrics = new VmMetrics();
+			vmMetrics.put(vmName, metrics);
+		}
+
+		long nanoTime = System.nanoTime();
+		metrics.updated = true;
+		if (metrics.nanoTime != 0) {
+			double elapsedMillis = (nanoTime - metrics.nanoTime) / 1e6;
+			metrics.userTime += getValue(values, CPU_LOAD_USER) / 100
+					* hostProcessors * elapsedMillis;
+			metrics.systemTime += getValue(values, CPU_LOAD_KERNEL) / 100
+					* hostProcessors * elapsedMillis;
+			metrics.receivedBytes += getValue(values, NET_RATE_RX) * elapsedMillis / 1000;
+			metrics.transferredBytes += getValue(values, NET_RATE_TX) * elapsedMillis / 1000;
+		}
+		metrics.timestamp = System.currentTimeMillis();
+		metrics.nanoTime = nanoTime;
+		metrics.gauges.clear();
+		metrics.gauges.putAll(values);
+	}
+
+	/**
+	 * @return the cpu times of the virtual machine process,
+	 * accumulated since the metrics of the virtual machine were first seen
+	 */
+	public synchronized CPUStats getCPUStats(String vmName) throws Exception {
+		VmMetrics metrics = getVmMetrics(vmName);
+		CPUStats cpuStats = new CPUStats();
+		cpuStats.setTimestamp(metrics.timestamp);
+		cpuStats.setNanoTime(metrics.nanoTime);
+		cpuStats.setUserTime((long) metrics.userTime);
+		cpuStats.setSystemTime((long) metrics.systemTime);
+		cpuStats.setCpuTime((long) (metrics.userTime + metrics.systemTime));
+		return cpuStats;
+	}
+
+	/**
+	 * @return the traffic of the virtual machine network adapters,
+	 * accumulated since the metrics of the virtual machine were first seen
+	 */
+	public synchronized NetworkStats getNetworkStats(String vmName) throws Exception {
+		VmMetrics metrics = getVmMetrics(vmName);
+		NetworkStats networkStats = new NetworkStats();
+		networkStats.setDeviceName(vmName);
+		networkStats.setTimestamp(metrics.timestamp);
+		networkStats.setNanoTime(metrics.nanoTime);
+		networkStats.setReceivedBytes((long) metrics.receivedBytes);
+		networkStats.setTransferredBytes((long) metrics.transferredBytes);
+		return networkStats;
+	}
+
+	/**
+	 * @return the memory used by the virtual machine process and,
+	 * if the guest additions are running, reported by the guest
+	 */
+	public synchronized MemoryStats getMemoryStats(String vmName) throws Exception {
+		VmMetrics metrics = getVmMetrics(vmName);
+		MemoryStats memoryStats = new MemoryStats();
+		memoryStats.setTimestamp(metrics.timestamp);
+		memoryStats.setNanoTime(metrics.nanoTime);
+		memoryStats.setResidentMemory(kiloBytesToBytes(metrics, RAM_USAGE_USED));
+		long total = kiloBytesToBytes(metrics, GUEST_RAM_TOTAL);
+		long free = kiloBytesToBytes(metrics, GUEST_RAM_FREE);
+		long cache = kiloBytesToBytes(metrics, GUEST_RAM_CACHE);
+		long balloon = kiloBytesToBytes(metrics, GUEST_RAM_BALLOON);
+		// Guest metrics are zero until the guest additions report them
+		if (total > 0) {
+			memoryStats.setGuestTotalMemory(total);
+			memoryStats.setGuestFreeMemory(free);
+			memoryStats.setGuestCachedMemory(cache);
+			memoryStats.setGuestAvailableMemory(free + cache);
+			if (balloon >= 0) {
+				memoryStats.setBalloonActual(total - balloon);
+			}
+		}
+		return memoryStats;
+	}
+
+	private VmMetrics getVmMetrics(String vmName) throws Exception {
+		VmMetrics metrics = vmMetrics.get(vmName);
+		if (metrics == null || metrics.nanoTime == 0) {
+			throw new Exception("No performance metrics for " + vmName
+					+ ", the virtual machine may not be running.");
+		}
+		return metrics;
+	}
+
+	private static double getValue(Map<String, Double> values, String metric) {
+		Double value = values.get(metric);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * @return the gauge, which VirtualBox reports in kB, in bytes
+	 */
+	private static long kiloBytesToBytes(VmMetrics metrics, String metric) {
+		Double value = metrics.gauges.get(metric);
+		return value == null ? MemoryStats.NOT_AVAILABLE : (long) (value * 1024);
+	}
+
+	private static class VmMetrics {
+
+		boolean updated;
+		long timestamp;
+		long nanoTime;
+		double userTime;
+		double systemTime;
+		double receivedBytes;
+		double transferredBytes;
+		final Map<String, Double> gauges = new HashMap<String, Double>();
+
+		void reset() {
+			timestamp = 0;
+			nanoTime = 0;
+			userTime = 0;
+			systemTime = 0;
+			receivedBytes = 0;
+			transferredBytes = 0;
+			gauges.clear();
+		}
+	}
+}
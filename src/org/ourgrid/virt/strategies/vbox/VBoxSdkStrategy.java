@@ -1,12 +1,26 @@
 package org.ourgrid.virt.strategies.vbox;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.connection.channel.direct.Session;
@@ -18,6 +32,7 @@ import org.ourgrid.virt.exception.SnapshotAlreadyExistsException;
 import org.ourgrid.virt.model.CPUStats;
 import org.ourgrid.virt.model.DiskStats;
 import org.ourgrid.virt.model.ExecutionResult;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.VirtualMachine;
 import org.ourgrid.virt.model.VirtualMachineConstants;
@@ -28,22 +43,32 @@ import org.ourgrid.virt.strategies.LinuxUtils;
 import org.virtualbox_4_2.AccessMode;
 import org.virtualbox_4_2.CPUPropertyType;
 import org.virtualbox_4_2.CleanupMode;
+import org.virtualbox_4_2.CloneMode;
+import org.virtualbox_4_2.CloneOptions;
 import org.virtualbox_4_2.DeviceType;
+import org.virtualbox_4_2.Holder;
 import org.virtualbox_4_2.IConsole;
+import org.virtualbox_4_2.IGuestProcess;
+import org.virtualbox_4_2.IGuestSession;
 import org.virtualbox_4_2.IMachine;
+import org.virtualbox_4_2.IMachineDebugger;
 import org.virtualbox_4_2.IMedium;
 import org.virtualbox_4_2.INetworkAdapter;
+import org.virtualbox_4_2.IPerformanceCollector;
 import org.virtualbox_4_2.IProgress;
 import org.virtualbox_4_2.ISession;
 import org.virtualbox_4_2.ISharedFolder;
+import org.virtualbox_4_2.ISnapshot;
 import org.virtualbox_4_2.IVirtualBox;
 import org.virtualbox_4_2.LockType;
 import org.virtualbox_4_2.MachineState;
 import org.virtualbox_4_2.NetworkAttachmentType;
+import org.virtualbox_4_2.ProcessCreateFlag;
+import org.virtualbox_4_2.ProcessStatus;
 import org.virtualbox_4_2.SessionState;
 import org.virtualbox_4_2.StorageBus;
 import org.virtualbox_4_2.VBoxException;
-import org.virtualbox_4_2.VirtualBoxManager;
+import org.virtualbox_4_2.xpcom.IUnknown;
 
 
 public class VBoxSdkStrategy implements HypervisorStrategy {
@@ -51,27 +76,152 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 	private static final String VM_BLANK_FLAGS = "forceOverwrite=1,UUID=00000000-0000-0000-0000-000000000000";
 	private static final String IP_GUEST_PROPERTY = "/VirtualBox/GuestInfo/Net/0/V4/IP";
 	private static final String SESSION = "VBOX_SESSION";
+	private static final String STATS_SESSION = "VBOX_STATS_SESSION";
+	private static final String GUEST_SESSION = "VBOX_GUEST_SESSION";
+	private static final String GUEST_CONSOLE_SESSION = "VBOX_GUEST_CONSOLE_SESSION";
+	private static final String GUEST_CONTROL_EXEC_MODE = "guestcontrol";
+	private static final String GUEST_SHELL = "/bin/sh";
+	private static final long STDOUT_HANDLE = 1;
+	private static final long STDERR_HANDLE = 2;
+	private static final long GUEST_OUTPUT_CHUNK = 64 * 1024;
+	private static final long GUEST_POLL_INTERVAL = 50;
+	private static final List<ProcessStatus> GUEST_PROCESS_RUNNING = Arrays.asList(
+			ProcessStatus.Undefined, ProcessStatus.Starting, ProcessStatus.Started,
+			ProcessStatus.Paused, ProcessStatus.Terminating);
+	private static final String DISK_STATS_PATTERN = "/Devices/*/ReadBytes|/Devices/*/WrittenBytes";
+	private static final Pattern STAT_PATTERN = Pattern.compile(
+			"<\\w+ [^>]*?\\b(?:c|val)=\"(\\d+)\"[^>]*?\\bname=\"([^\"]+)\"");
 	private static final String DISK_CONTROLLER_NAME = "Disk Controller";
 	private final int START_RECHECK_DELAY = 10;
-	private final VirtualBoxManager vboxm = VirtualBoxManager.createInstance(
-			System.getProperty("vbox.home"));
-	private IVirtualBox vbox;
+	// All the XPCOM calls are made by the owner thread of the worker
+	private final VBoxWorker worker;
+	private final IVirtualBox vbox;
+	private final VBoxEventTracker events;
+	private VBoxMetricsAccumulator metrics;
+	private final Set<String> metricsSetUp = new HashSet<String>();
 	
 	public VBoxSdkStrategy(){
-		this.vbox = this.vboxm.getVBox();
+		try {
+			this.worker = new VBoxWorker(System.getProperty("vbox.home"));
+			this.vbox = worker.getVBox();
+			this.events = worker.call(new Callable<VBoxEventTracker>() {
+				@Override
+				public VBoxEventTracker call() throws Exception {
+					return new VBoxEventTracker(vbox);
+				}
+			});
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not connect to VirtualBox", e);
+		}
+		worker.addTurnTask(new Runnable() {
+			@Override
+			public void run() {
+				events.drainEvents();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}));
 	}
 
-	private ISession getSession(VirtualMachine virtualMachine) {
-		ISession session = virtualMachine.getProperty(SESSION);
-		if (session == null) {
-			session = vboxm.getSessionObject();
-			virtualMachine.setProperty(SESSION, session);
+	/**
+	 * Unregisters the event listener and disconnects from VirtualBox, 
+	 * cancelling the calls still queued.
+	 */
+	private void close() {
+		try {
+			worker.call(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					events.close();
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			// Best effort, the worker is closed anyway
 		}
-		return session;
+		worker.close();
+	}
+
+	private ISession getSession(final VirtualMachine virtualMachine) throws Exception {
+		return worker.call(new Callable<ISession>() {
+			@Override
+			public ISession call() throws Exception {
+				ISession session = virtualMachine.getProperty(SESSION);
+				if (session == null) {
+					session = worker.getManager().getSessionObject();
+					virtualMachine.setProperty(SESSION, session);
+				}
+				return session;
+			}
+		});
+	}
+
+	private ISession getStatsSession(final VirtualMachine virtualMachine) throws Exception {
+		// Kept apart from the main session, as stats are sampled by another thread
+		return worker.call(new Callable<ISession>() {
+			@Override
+			public ISession call() throws Exception {
+				ISession session = virtualMachine.getProperty(STATS_SESSION);
+				if (session == null) {
+					session = worker.getManager().getSessionObject();
+					virtualMachine.setProperty(STATS_SESSION, session);
+				}
+				return session;
+			}
+		});
+	}
+
+	/**
+	 * Waits for a VirtualBox operation without blocking the owner thread,
+	 * then checks its result and unlocks the session.
+	 */
+	private void complete(IProgress progress, ISession session,
+			String errorMessage) throws Exception {
+		worker.get(watch(null, progress, session, errorMessage, 0));
+	}
+
+	/**
+	 * Watches a VirtualBox operation from the owner thread. Once it completes or
+	 * times out, its result is checked, the session is unlocked and the state of
+	 * the machine is read again.
+	 * @param vmName the machine whose state is changed, or <b>null</b>
+	 * @param timeout in milliseconds, or 0 to wait for the operation indefinitely
+	 */
+	private Future<Void> watch(final String vmName, final IProgress progress,
+			final ISession session, final String errorMessage, long timeout) throws Exception {
+		return worker.watch(progress, timeout, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					if (progress.getCompleted() && progress.getResultCode() != 0) {
+						throw new Exception(errorMessage + " " + progress.getErrorInfo().getText());
+					}
+				} finally {
+					unlock(session);
+				}
+				if (vmName != null) {
+					events.refresh(vbox.findMachine(vmName));
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return the timeout set in seconds by the property, in milliseconds,
+	 * or 0 if it is not set
+	 */
+	private static long getTimeout(VirtualMachine virtualMachine, String property) {
+		String timeout = virtualMachine.getProperty(property);
+		return timeout == null ? 0 : 1000 * Long.parseLong(timeout);
 	}
 	
 	@Override
-	public void create(VirtualMachine virtualMachine) throws Exception {
+	public void create(final VirtualMachine virtualMachine) throws Exception {
 
 		VirtualMachineStatus status = status(virtualMachine);
 		
@@ -79,12 +229,33 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 			return;
 		}
 		
-		register(virtualMachine);
-		define(virtualMachine);
-
-		String imagePath = virtualMachine.getProperty(
-				VirtualMachineConstants.DISK_IMAGE_PATH);
-		attachDisk(virtualMachine, imagePath);
+		String template = virtualMachine.getProperty(VirtualMachineConstants.TEMPLATE);
+		if (template != null) {
+			if (status.equals(VirtualMachineStatus.NOT_CREATED)) {
+				linkedClone(virtualMachine, template);
+			}
+			// The clone shares the disks of the template, only its settings are defined
+			worker.call(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return define(virtualMachine);
+				}
+			});
+			return;
+		}
+		
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				register(virtualMachine);
+				define(virtualMachine);
+
+				String imagePath = virtualMachine.getProperty(
+						VirtualMachineConstants.DISK_IMAGE_PATH);
+				attachDisk(virtualMachine, imagePath);
+				return null;
+			}
+		});
 	}
 
 	/**
@@ -206,6 +377,58 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 		return null;
 	}
 
+	/**
+	 * Creates and registers the virtual machine as a linked clone of a snapshot
+	 * of the template. The clone disks are differencing images on top of the
+	 * template disks, so they are created instantly and only hold the changes.
+	 * 
+	 * @param virtualMachine
+	 * @param template the name of the template virtual machine
+	 * @throws Exception if the template has no snapshot or could not be cloned
+	 */
+	private void linkedClone(final VirtualMachine virtualMachine, final String template)
+			throws Exception {
+
+		final String snapshotName = virtualMachine.getProperty(
+				VirtualMachineConstants.TEMPLATE_SNAPSHOT);
+		final IMachine machine = worker.call(new Callable<IMachine>() {
+			@Override
+			public IMachine call() throws Exception {
+				IMachine templateMachine = vbox.findMachine(template);
+				if (snapshotName == null ? templateMachine.getCurrentSnapshot() == null
+						: templateMachine.findSnapshot(snapshotName) == null) {
+					throw new Exception("Template [ " + template + " ] has no snapshot to link to.");
+				}
+				return vbox.createMachine("", virtualMachine.getName(),
+						new LinkedList<String>(), templateMachine.getOSTypeId(), VM_BLANK_FLAGS);
+			}
+		});
+
+		final IProgress cloneProg = worker.call(new Callable<IProgress>() {
+			@Override
+			public IProgress call() throws Exception {
+				IMachine templateMachine = vbox.findMachine(template);
+				ISnapshot snapshot = snapshotName == null ? templateMachine.getCurrentSnapshot()
+						: templateMachine.findSnapshot(snapshotName);
+				return snapshot.getMachine().cloneTo(machine,
+						CloneMode.MachineState, Arrays.asList(CloneOptions.Link));
+			}
+		});
+		worker.waitForCompletion(cloneProg);
+
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				if (cloneProg.getResultCode() != 0) {
+					throw new Exception("Cannot clone template. " + cloneProg.getErrorInfo().getText());
+				}
+				vbox.registerMachine(machine);
+				events.refresh(machine);
+				return null;
+			}
+		});
+	}
+
 	private void register(VirtualMachine virtualMachine)
 			throws Exception {
 
@@ -215,6 +438,7 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 		machine.saveSettings();
 
 		this.vbox.registerMachine(machine);
+		events.refresh(machine);
 	}
 
 	@Override
@@ -234,9 +458,9 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 				VirtualMachineConstants.START_TIMEOUT);
 		boolean checkTimeout = startTimeout != null;
 		
-		int remainingTries = 0;
+		long deadline = 0;
 		if (checkTimeout) {
-			remainingTries = Integer.parseInt(startTimeout) / START_RECHECK_DELAY;
+			deadline = System.currentTimeMillis() + 1000 * Long.parseLong(startTimeout);
 		}
 		
 		while (true) {
@@ -246,14 +470,19 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 			try {
 
 				if (HypervisorUtils.isLinuxGuest(virtualMachine)) {
-					createSSHClient(virtualMachine).disconnect();
+					if (isGuestControlExec(virtualMachine)) {
+						HypervisorUtils.checkReturnValue(execGuestControl(
+								virtualMachine, "/bin/echo check-started"));
+					} else {
+						createSSHClient(virtualMachine).disconnect();
+					}
 					break;
 				} else {
 					ex = new Exception("Guest OS not supported");
 				}
 				
 			} catch (Exception e) {
-				if (checkTimeout && remainingTries-- == 0) {
+				if (checkTimeout && System.currentTimeMillis() > deadline) {
 					ex = new Exception("Virtual Machine OS was not [re]started. " +
 							"Please check you credentials.");
 				}
@@ -263,12 +492,50 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 				throw ex;
 			}
 			
-			Thread.sleep(1000 * START_RECHECK_DELAY);
+			// The guest additions set guest properties as the guest boots,
+			// so the guest is checked again as soon as its IP, or any other
+			// property once the IP is known, changes
+			Future<String> guestPropertyChange = getGuestIp(virtualMachine) == null ?
+					events.waitForGuestProperty(virtualMachine.getName(), IP_GUEST_PROPERTY) :
+					events.waitForGuestPropertyChange(virtualMachine.getName());
+			try {
+				guestPropertyChange.get(START_RECHECK_DELAY, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				guestPropertyChange.cancel(false);
+			} catch (ExecutionException e) {
+				throw new Exception("Virtual Machine OS was not [re]started. " 
+						+ e.getCause().getMessage());
+			}
 		}
 	}
 	
-	private SSHClient createSSHClient(VirtualMachine virtualMachine) throws Exception {
+	/**
+	 * Learns the IP of the guest from the property set by the guest additions,
+	 * unless a static IP is configured. The machine is only queried while no
+	 * event about the property was received since the machine was started.
+	 * 
+	 * @return the IP, or <b>null</b> if the guest has not reported it yet
+	 */
+	private String getGuestIp(final VirtualMachine virtualMachine) throws Exception {
 		String ip = virtualMachine.getProperty(VirtualMachineConstants.IP);
+		if (ip != null) {
+			return ip;
+		}
+		ip = events.getGuestProperty(virtualMachine.getName(), IP_GUEST_PROPERTY);
+		if (ip == null) {
+			ip = worker.call(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					IMachine machine = vbox.findMachine(virtualMachine.getName());
+					return machine.getGuestPropertyValue(IP_GUEST_PROPERTY);
+				}
+			});
+		}
+		return ip == null || ip.length() == 0 ? null : ip;
+	}
+
+	private SSHClient createSSHClient(VirtualMachine virtualMachine) throws Exception {
+		String ip = getGuestIp(virtualMachine);
 		if (ip == null) {
 			throw new Exception("Could not acquire IP.");
 		}
@@ -317,28 +584,84 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 		}
 	}
 
-	private void startVirtualMachine(VirtualMachine virtualMachine)
+	private void startVirtualMachine(final VirtualMachine virtualMachine)
 			throws IOException, Exception {
-		
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		ISession session = getSession(virtualMachine);
-		IProgress prog = machine.launchVMProcess(session, "headless", "");
-		try {
-			prog.waitForCompletion(-1);
-			if (prog.getResultCode() != 0) {
-				throw new Exception("Could not start VM. " + prog.getErrorInfo().getText());
+		worker.get(launch(virtualMachine));
+	}
+
+	/**
+	 * Launches the process of the virtual machine without waiting for it, so
+	 * many machines can be launched at once. The operations of all of them are
+	 * polled by the VirtualBox owner thread, rather than by a thread each.
+	 * Unlike {@link #start(VirtualMachine)}, it does not wait for the guest OS.
+	 * @return a future completed once the machine is running, or failed if it
+	 * could not be launched before the start timeout
+	 */
+	public Future<Void> launch(final VirtualMachine virtualMachine) throws Exception {
+		final ISession session = getSession(virtualMachine);
+		IProgress prog = worker.call(new Callable<IProgress>() {
+			@Override
+			public IProgress call() throws Exception {
+				IMachine machine = vbox.findMachine(virtualMachine.getName());
+				return machine.launchVMProcess(session, "headless", "");
 			}
-		} catch (Exception e) {
-			throw e;
-		} finally {
-			unlock(session);
-		}
+		});
+		return watch(virtualMachine.getName(), prog, session, "Could not start VM.",
+				getTimeout(virtualMachine, VirtualMachineConstants.START_TIMEOUT));
 	}
 
-	private void unlock(ISession session) {
-		if (session.getState().equals(SessionState.Locked)) {
-			session.unlockMachine();
-		}
+	/**
+	 * Powers the virtual machine down without waiting for it, so many machines
+	 * can be powered down at once, as with {@link #launch(VirtualMachine)}.
+	 * @return a future completed once the machine is powered off, or failed if
+	 * it could not be powered down before the stop timeout
+	 */
+	public Future<Void> powerDown(VirtualMachine virtualMachine) throws Exception {
+		closeGuestSession(virtualMachine);
+
+		final ISession session = getSession(virtualMachine);
+		IProgress shutDownProg = startOperation(virtualMachine.getName(), session,
+				LockType.Shared, new Callable<IProgress>() {
+			@Override
+			public IProgress call() throws Exception {
+				return session.getConsole().powerDown();
+			}
+		});
+		return watch(virtualMachine.getName(), shutDownProg, session, "Cannot stop VM.",
+				getTimeout(virtualMachine, VirtualMachineConstants.STOP_TIMEOUT));
+	}
+
+	/**
+	 * Locks the machine in the session and starts an operation on its console,
+	 * unlocking the session if the operation could not be started.
+	 */
+	private IProgress startOperation(final String vmName, final ISession session,
+			final LockType lockType, final Callable<IProgress> operation) throws Exception {
+		return worker.call(new Callable<IProgress>() {
+			@Override
+			public IProgress call() throws Exception {
+				IMachine machine = vbox.findMachine(vmName);
+				machine.lockMachine(session, lockType);
+				try {
+					return operation.call();
+				} catch (Exception e) {
+					unlock(session);
+					throw e;
+				}
+			}
+		});
+	}
+
+	private void unlock(final ISession session) throws Exception {
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				if (session.getState().equals(SessionState.Locked)) {
+					session.unlockMachine();
+				}
+				return null;
+			}
+		});
 	}
 	
 	@Override
@@ -347,21 +670,7 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 			return;
 		}
 
-		ISession session = getSession(virtualMachine);
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		machine.lockMachine(session, LockType.Shared);
-		try {
-			IConsole console = session.getConsole();
-			IProgress shutDownProg = console.powerDown();
-			shutDownProg.waitForCompletion(-1);
-			if (shutDownProg.getResultCode() != 0) {
-				throw new Exception("Cannot stop VM. " + shutDownProg.getErrorInfo().getText());
-			}
-		} catch (Exception e) {
-			throw e;
-		} finally {
-			unlock(session);
-		}
+		worker.get(powerDown(virtualMachine));
 	}
 
 	@Override
@@ -373,6 +682,10 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 					"Unable to execute command. Machine is not started.");
 		}
 
+		if (isGuestControlExec(virtualMachine)) {
+			return execGuestControl(virtualMachine, commandLine);
+		}
+
 		SSHClient sshClient = createSSHClient(virtualMachine);
 		String user = virtualMachine.getProperty(VirtualMachineConstants.GUEST_USER);
 	    String password = virtualMachine.getProperty(VirtualMachineConstants.GUEST_PASSWORD);
@@ -398,8 +711,135 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 		return executionResult;
 	}
 
+	private boolean isGuestControlExec(VirtualMachine virtualMachine) {
+		return GUEST_CONTROL_EXEC_MODE.equals(
+				virtualMachine.getProperty(VirtualMachineConstants.EXEC_MODE));
+	}
+
+	/**
+	 * Runs the command line with the guest shell through the VirtualBox guest
+	 * control, reusing the guest session of the machine. The output is read
+	 * while the process runs, polling it from the owner thread.
+	 */
+	private ExecutionResult execGuestControl(final VirtualMachine virtualMachine,
+			final String commandLine) throws Exception {
+
+		final IGuestProcess process = worker.call(new Callable<IGuestProcess>() {
+			@Override
+			public IGuestProcess call() throws Exception {
+				try {
+					return createGuestProcess(getGuestSession(virtualMachine), commandLine);
+				} catch (VBoxException e) {
+					// The guest session is lost when the guest is restarted
+					closeGuestSession(virtualMachine);
+					return createGuestProcess(getGuestSession(virtualMachine), commandLine);
+				}
+			}
+		});
+
+		final ByteArrayOutputStream stdOut = new ByteArrayOutputStream();
+		final ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
+		Callable<Integer> readOutput = new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				// The status is read first, so no output written before the exit is missed
+				boolean running = GUEST_PROCESS_RUNNING.contains(process.getStatus());
+				byte[] out = process.read(STDOUT_HANDLE, GUEST_OUTPUT_CHUNK, 0L);
+				byte[] err = process.read(STDERR_HANDLE, GUEST_OUTPUT_CHUNK, 0L);
+				stdOut.write(out);
+				stdErr.write(err);
+				int read = out.length + err.length;
+				return running || read > 0 ? read : -1;
+			}
+		};
+
+		int read;
+		while ((read = worker.call(readOutput)) >= 0) {
+			if (read == 0) {
+				Thread.sleep(GUEST_POLL_INTERVAL);
+			}
+		}
+
+		ProcessStatus status = worker.call(new Callable<ProcessStatus>() {
+			@Override
+			public ProcessStatus call() throws Exception {
+				return process.getStatus();
+			}
+		});
+		if (status != ProcessStatus.TerminatedNormally) {
+			throw new Exception("Command [ " + commandLine + " ] did not run in the guest: " + status);
+		}
+
+		ExecutionResult executionResult = new ExecutionResult();
+		executionResult.setReturnValue(worker.call(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return process.getExitCode();
+			}
+		}));
+		executionResult.setStdOut(IOUtils.readLines(new ByteArrayInputStream(stdOut.toByteArray())));
+		executionResult.setStdErr(IOUtils.readLines(new ByteArrayInputStream(stdErr.toByteArray())));
+		return executionResult;
+	}
+
+	private IGuestProcess createGuestProcess(IGuestSession guestSession, String commandLine) {
+		return guestSession.processCreate(GUEST_SHELL, Arrays.asList("-c", commandLine),
+				new LinkedList<String>(), Arrays.asList(
+						ProcessCreateFlag.WaitForStdOut, ProcessCreateFlag.WaitForStdErr), 0L);
+	}
+
+	/**
+	 * Opens a guest session with the guest credentials, or returns the one already
+	 * open. The machine is kept locked by a console session of its own while the
+	 * guest session is open.
+	 */
+	private IGuestSession getGuestSession(VirtualMachine virtualMachine) throws Exception {
+		IGuestSession guestSession = virtualMachine.getProperty(GUEST_SESSION);
+		if (guestSession != null) {
+			return guestSession;
+		}
+
+		ISession session = virtualMachine.getProperty(GUEST_CONSOLE_SESSION);
+		if (session == null) {
+			session = worker.getManager().getSessionObject();
+			virtualMachine.setProperty(GUEST_CONSOLE_SESSION, session);
+		}
+		if (!session.getState().equals(SessionState.Locked)) {
+			vbox.findMachine(virtualMachine.getName()).lockMachine(session, LockType.Shared);
+		}
+
+		String user = virtualMachine.getProperty(VirtualMachineConstants.GUEST_USER);
+		String password = virtualMachine.getProperty(VirtualMachineConstants.GUEST_PASSWORD);
+		guestSession = session.getConsole().getGuest().createSession(
+				user, password, "", "ourvirt");
+		virtualMachine.setProperty(GUEST_SESSION, guestSession);
+		return guestSession;
+	}
+
+	private void closeGuestSession(final VirtualMachine virtualMachine) throws Exception {
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				IGuestSession guestSession = virtualMachine.getProperty(GUEST_SESSION);
+				if (guestSession != null) {
+					virtualMachine.setProperty(GUEST_SESSION, null);
+					try {
+						guestSession.close();
+					} catch (VBoxException e) {
+						// Already closed with the guest
+					}
+				}
+				ISession session = virtualMachine.getProperty(GUEST_CONSOLE_SESSION);
+				if (session != null) {
+					unlock(session);
+				}
+				return null;
+			}
+		});
+	}
+
 	@Override
-	public void takeSnapshot(VirtualMachine virtualMachine, String snapshotName)
+	public void takeSnapshot(VirtualMachine virtualMachine, final String snapshotName)
 			throws Exception {
 		
 		String vMName = virtualMachine.getName();
@@ -409,115 +849,132 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 					"already exists for virtual machine [ " + vMName + " ].");
 		}
 		
-		ISession session = getSession(virtualMachine);
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		machine.lockMachine(session, LockType.Shared);
-		try {
-			IConsole console = session.getConsole();
-			IProgress takeSnapshotProg = console.takeSnapshot(snapshotName, "");
-			takeSnapshotProg.waitForCompletion(-1);
-			if (takeSnapshotProg.getResultCode() != 0) {
-				throw new Exception("Cannot take snapshot from VM. " + 
-						takeSnapshotProg.getErrorInfo().getText());
+		final ISession session = getSession(virtualMachine);
+		IProgress takeSnapshotProg = startOperation(vMName, session,
+				LockType.Shared, new Callable<IProgress>() {
+			@Override
+			public IProgress call() throws Exception {
+				return session.getConsole().takeSnapshot(snapshotName, "");
 			}
-		} catch (Exception e) {
-			throw e;
-		} finally {
-			unlock(session);
-		}
+		});
+		complete(takeSnapshotProg, session, "Cannot take snapshot from VM.");
 	}
 
 	@Override
-	public void restoreSnapshot(VirtualMachine virtualMachine, String snapshotName)
+	public void restoreSnapshot(VirtualMachine virtualMachine, final String snapshotName)
 			throws Exception {
 		if (status(virtualMachine).equals(VirtualMachineStatus.RUNNING)) {
 			stop(virtualMachine);
 		}
 
-		String vMName = virtualMachine.getName();
+		final String vMName = virtualMachine.getName();
 
 		if (! snapshotExists(virtualMachine, snapshotName)) {
 			throw new Exception("Snapshot [ " + snapshotName + " ] does not exist for " +
 					"virtual machine [ " + virtualMachine.getName() + " ].");
 		}
 		
-		IMachine machine = this.vbox.findMachine(vMName);
-		ISession session = getSession(virtualMachine);
-		machine.lockMachine(session, LockType.Shared);
-		try {
-			IConsole console = session.getConsole();
-			IProgress restoreSnapshotProg = console.restoreSnapshot(machine
-					.findSnapshot(snapshotName));
-			restoreSnapshotProg.waitForCompletion(-1);
-			if (restoreSnapshotProg.getResultCode() != 0) {
-				throw new Exception("Cannot restore snapshot from VM. " + 
-						restoreSnapshotProg.getErrorInfo().getText());
+		final ISession session = getSession(virtualMachine);
+		IProgress restoreSnapshotProg = startOperation(vMName, session,
+				LockType.Shared, new Callable<IProgress>() {
+			@Override
+			public IProgress call() throws Exception {
+				IMachine machine = vbox.findMachine(vMName);
+				return session.getConsole().restoreSnapshot(machine.findSnapshot(snapshotName));
 			}
-		} catch (Exception e) {
-			throw e;
-		} finally {
-			unlock(session);
-		}
+		});
+		complete(restoreSnapshotProg, session, "Cannot restore snapshot from VM.");
 	}
 
 	@Override
-	public void destroy(VirtualMachine virtualMachine) throws Exception {
+	public void destroy(final VirtualMachine virtualMachine) throws Exception {
 
 		if (status(virtualMachine).equals(VirtualMachineStatus.RUNNING)) {
 			stop(virtualMachine);
+		} else {
+			closeGuestSession(virtualMachine);
 		}
 		
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		ISession session = getSession(virtualMachine);
-		machine.lockMachine(session, LockType.Write);
-		try {
-			IConsole console = session.getConsole();
-			if (machine.getCurrentSnapshot() != null) {
-				IProgress deleteSnapshotProg = 
-					console.deleteSnapshot(machine.getCurrentSnapshot().getId());
-				deleteSnapshotProg.waitForCompletion(-1);
-				if (deleteSnapshotProg.getResultCode() != 0) {
-					throw new Exception("Cannot delete snapshot from VM. " + 
-							deleteSnapshotProg.getErrorInfo().getText());
+		final String vmName = virtualMachine.getName();
+		final ISession session = getSession(virtualMachine);
+		final IProgress deleteSnapshotProg = startOperation(vmName, session,
+				LockType.Write, new Callable<IProgress>() {
+			@Override
+			public IProgress call() throws Exception {
+				IMachine machine = vbox.findMachine(vmName);
+				if (machine.getCurrentSnapshot() == null) {
+					return null;
 				}
+				return session.getConsole().deleteSnapshot(machine.getCurrentSnapshot().getId());
 			}
-			IMachine mutable = session.getMachine();
-			try {
-				mutable.removeStorageController(DISK_CONTROLLER_NAME);
-			} catch (VBoxException e) {
-				// Do nothing if the controller does not exist
+		});
+		try {
+			if (deleteSnapshotProg != null) {
+				worker.waitForCompletion(deleteSnapshotProg);
 			}
-			mutable.saveSettings();
-		} catch (Exception e) {
-			throw e;
+			worker.call(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					if (deleteSnapshotProg != null && deleteSnapshotProg.getResultCode() != 0) {
+						throw new Exception("Cannot delete snapshot from VM. " + 
+								deleteSnapshotProg.getErrorInfo().getText());
+					}
+					// The differencing disks of linked clones are deleted with them
+					if (virtualMachine.getProperty(VirtualMachineConstants.TEMPLATE) == null) {
+						IMachine mutable = session.getMachine();
+						try {
+							mutable.removeStorageController(DISK_CONTROLLER_NAME);
+						} catch (VBoxException e) {
+							// Do nothing if the controller does not exist
+						}
+						mutable.saveSettings();
+					}
+					return null;
+				}
+			});
 		} finally {
 			unlock(session);
 		}
-		machine.delete(machine.unregister(CleanupMode.Full));
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				IMachine machine = vbox.findMachine(vmName);
+				String machineId = machine.getId();
+				machine.delete(machine.unregister(CleanupMode.Full));
+				events.unregistered(machineId);
+				return null;
+			}
+		});
 	}
 
 
 	@Override
-	public void createSharedFolder(VirtualMachine virtualMachine,
-			String shareName, String hostPath, String guestPath) throws Exception {
+	public void createSharedFolder(final VirtualMachine virtualMachine,
+			final String shareName, final String hostPath, String guestPath) throws Exception {
 		
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		ISession session = getSession(virtualMachine);
-		machine.lockMachine(session, LockType.Shared);
-		try {
-			IMachine mutable = session.getMachine();
-			mutable.createSharedFolder(shareName, hostPath, true, false);
-			mutable.saveSettings();
-		} catch (Exception e) {
-			throw e;
-		} finally {
-			unlock(session);
-		}
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				IMachine machine = vbox.findMachine(virtualMachine.getName());
+				ISession session = getSession(virtualMachine);
+				machine.lockMachine(session, LockType.Shared);
+				try {
+					IMachine mutable = session.getMachine();
+					mutable.createSharedFolder(shareName, hostPath, true, false);
+					mutable.saveSettings();
+				} catch (Exception e) {
+					throw e;
+				} finally {
+					unlock(session);
+				}
+				return null;
+			}
+		});
 	}
 	
 	@Override
-	public void deleteSharedFolder(VirtualMachine virtualMachine,
-			String shareName) throws Exception {
+	public void deleteSharedFolder(final VirtualMachine virtualMachine,
+			final String shareName) throws Exception {
 		
 		List<String> sharedFolders = listSharedFolders(virtualMachine);
 		
@@ -525,37 +982,29 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 			return;
 		}
 		
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		ISession session = getSession(virtualMachine);
-		machine.lockMachine(session, LockType.Shared);
-		try {
-			IMachine mutable = session.getMachine();
-			mutable.removeSharedFolder(shareName);
-			mutable.saveSettings();
-		} catch (Exception e) {
-			throw e;
-		} finally {
-			unlock(session);
-		}
-	}
-
-	private List<String> list(boolean onlyRunning) throws Exception {
-
-		List<IMachine> vmsOutput = this.vbox.getMachines();
-		List<String> vms = new LinkedList<String>();
-
-		for (IMachine vmOutputted : vmsOutput) {
-			if(!onlyRunning || vmOutputted.getState().equals(MachineState.Running)){
-				vms.add(vmOutputted.getName());
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				IMachine machine = vbox.findMachine(virtualMachine.getName());
+				ISession session = getSession(virtualMachine);
+				machine.lockMachine(session, LockType.Shared);
+				try {
+					IMachine mutable = session.getMachine();
+					mutable.removeSharedFolder(shareName);
+					mutable.saveSettings();
+				} catch (Exception e) {
+					throw e;
+				} finally {
+					unlock(session);
+				}
+				return null;
 			}
-		}
-
-		return vms;
+		});
 	}
 
 	@Override
 	public List<String> listVMs() throws Exception {
-		return list(false);
+		return events.list(false);
 	}
 
 	@Override
@@ -567,15 +1016,17 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 	public VirtualMachineStatus status(VirtualMachine virtualMachine)
 			throws Exception {
 
-		if (list(true).contains(virtualMachine.getName())) {
-			return VirtualMachineStatus.RUNNING;
+		MachineState state = events.getState(virtualMachine.getName());
+
+		if (state == null) {
+			return VirtualMachineStatus.NOT_CREATED;
 		}
 
-		if (list(false).contains(virtualMachine.getName())) {
-			return VirtualMachineStatus.POWERED_OFF;
+		if (state.equals(MachineState.Running)) {
+			return VirtualMachineStatus.RUNNING;
 		}
 
-		return VirtualMachineStatus.NOT_CREATED;
+		return VirtualMachineStatus.POWERED_OFF;
 	}
 
 	@Override
@@ -583,24 +1034,34 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 		return new LinkedList<String>();
 	}
 	
-	private boolean snapshotExists(VirtualMachine vm, String snapshot) throws Exception {
-		IMachine machine = this.vbox.findMachine(vm.getName());
-		return machine.getCurrentSnapshot() != null;
+	private boolean snapshotExists(final VirtualMachine vm, String snapshot) throws Exception {
+		return worker.call(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				IMachine machine = vbox.findMachine(vm.getName());
+				return machine.getCurrentSnapshot() != null;
+			}
+		});
 	}
 
 	@Override
-	public List<String> listSharedFolders(VirtualMachine virtualMachine) throws Exception {
+	public List<String> listSharedFolders(final VirtualMachine virtualMachine) throws Exception {
 
-		List<String> shares = new LinkedList<String>();
-		
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		List<ISharedFolder> sharedFolders = machine.getSharedFolders();
-		
-		for (ISharedFolder folder : sharedFolders) {
-			shares.add(folder.getName());
-		}
-		
-		return shares;
+		return worker.call(new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws Exception {
+				List<String> shares = new LinkedList<String>();
+				
+				IMachine machine = vbox.findMachine(virtualMachine.getName());
+				List<ISharedFolder> sharedFolders = machine.getSharedFolders();
+				
+				for (ISharedFolder folder : sharedFolders) {
+					shares.add(folder.getName());
+				}
+				
+				return shares;
+			}
+		});
 	}
 
 	@Override
@@ -667,16 +1128,10 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 	@Override
 	public Object getProperty(VirtualMachine registeredVM, String propertyName)
 			throws Exception {
-		Object property = registeredVM.getProperty(propertyName);
-		if (property != null) {
-			return property;
-		}
 		if (propertyName.equals(VirtualMachineConstants.IP)) {
-			IMachine machine = vbox.findMachine(registeredVM.getName());
-			String ip = machine.getGuestPropertyValue(IP_GUEST_PROPERTY);
-			return ip;
+			return getGuestIp(registeredVM);
 		}
-		return null;
+		return registeredVM.getProperty(propertyName);
 	}
 
 	@Override
@@ -700,31 +1155,201 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 		checkOSStarted(virtualMachine);
 	}
 	
-	private void rebootVirtualMachine(VirtualMachine virtualMachine) 
+	private void rebootVirtualMachine(final VirtualMachine virtualMachine) 
 			throws Exception {
-		ISession session = getSession(virtualMachine);
-		IMachine machine = this.vbox.findMachine(virtualMachine.getName());
-		machine.lockMachine(session, LockType.Shared);
-		try {
-			IConsole console = session.getConsole();
-			console.reset();
-		} catch (Exception e) {
-			throw e;
-		} finally {
-			unlock(session);
-		}
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				ISession session = getSession(virtualMachine);
+				IMachine machine = vbox.findMachine(virtualMachine.getName());
+				machine.lockMachine(session, LockType.Shared);
+				try {
+					IConsole console = session.getConsole();
+					console.reset();
+				} catch (Exception e) {
+					throw e;
+				} finally {
+					unlock(session);
+				}
+				return null;
+			}
+		});
 	}
 
 	@Override
 	public CPUStats getCPUStats(VirtualMachine virtualMachine) throws Exception {
-		// TODO Auto-generated method stub
-		return null;
+		return getMetrics().getCPUStats(virtualMachine.getName());
 	}
 
 	@Override
-	public List<DiskStats> getDiskStats(VirtualMachine registeredVM) throws Exception {
-		// TODO Auto-generated method stub
-		return null;
+	public MemoryStats getMemoryStats(final VirtualMachine registeredVM) throws Exception {
+		MemoryStats memoryStats = getMetrics().getMemoryStats(registeredVM.getName());
+		if (!HypervisorUtils.isLinuxHost()) {
+			return memoryStats;
+		}
+		
+		// Procfs also gives the proportional and swapped memory of the VM process
+		Long sessionPid = worker.call(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return vbox.findMachine(registeredVM.getName()).getSessionPID();
+			}
+		});
+		if (sessionPid == null || sessionPid == 0) {
+			throw new Exception("Virtual machine " + registeredVM.getName() + " is not running.");
+		}
+		MemoryStats processStats = LinuxUtils.getMemoryStats(sessionPid.toString());
+		memoryStats.setResidentMemory(processStats.getResidentMemory());
+		memoryStats.setProportionalMemory(processStats.getProportionalMemory());
+		memoryStats.setSwappedMemory(processStats.getSwappedMemory());
+		return memoryStats;
+	}
+
+	@Override
+	public List<DiskStats> getDiskStats(final VirtualMachine registeredVM) throws Exception {
+		return worker.call(new Callable<List<DiskStats>>() {
+			@Override
+			public List<DiskStats> call() throws Exception {
+				IMachine machine = vbox.findMachine(registeredVM.getName());
+				ISession session = getStatsSession(registeredVM);
+				machine.lockMachine(session, LockType.Shared);
+				
+				Holder<String> stats = new Holder<String>();
+				long nanoTime;
+				try {
+					IMachineDebugger debugger = session.getConsole().getDebugger();
+					debugger.getStats(DISK_STATS_PATTERN, false, stats);
+					nanoTime = System.nanoTime();
+				} finally {
+					unlock(session);
+				}
+				
+				return parseDiskStats(stats.value, nanoTime);
+			}
+		});
+	}
+
+	/**
+	 * Parses the byte counters of the storage devices out of the XML statistics 
+	 * of the VM, such as <i>&lt;Counter c="1024" unit="bytes" 
+	 * name="/Devices/AHCI0/Port0/ReadBytes"/&gt;</i>.
+	 */
+	private static List<DiskStats> parseDiskStats(String stats, long nanoTime) {
+		Map<String, DiskStats> disksStats = new HashMap<String, DiskStats>();
+		long timestamp = System.currentTimeMillis();
+		
+		Matcher matcher = STAT_PATTERN.matcher(stats);
+		while (matcher.find()) {
+			String name = matcher.group(2);
+			int lastSlash = name.lastIndexOf('/');
+			String deviceName = name.substring(0, lastSlash);
+			
+			DiskStats diskStats = disksStats.get(deviceName);
+			if (diskStats == null) {
+				diskStats = new DiskStats();
+				diskStats.setDeviceName(deviceName);
+				diskStats.setTimestamp(timestamp);
+				diskStats.setNanoTime(nanoTime);
+				disksStats.put(deviceName, diskStats);
+			}
+			
+			long value = Long.parseLong(matcher.group(1));
+			if (name.endsWith("/ReadBytes")) {
+				diskStats.setReadBytes(value);
+			} else {
+				diskStats.setWriteBytes(value);
+			}
+		}
+		
+		return new ArrayList<DiskStats>(disksStats.values());
+	}
+
+	/**
+	 * @return the performance metrics of all running VMs, queried again in a single 
+	 * batch if the last query is older than {@link VBoxMetricsAccumulator#MAX_AGE}
+	 */
+	private synchronized VBoxMetricsAccumulator getMetrics() throws Exception {
+		worker.call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				if (metrics == null) {
+					metrics = new VBoxMetricsAccumulator(
+							vbox.getHost().getProcessorCount().intValue());
+				}
+				if (metrics.needsRefresh()) {
+					queryMetrics();
+				}
+				return null;
+			}
+		});
+		return metrics;
+	}
+
+	private void queryMetrics() throws Exception {
+		IPerformanceCollector collector = vbox.getPerformanceCollector();
+		List<String> metricNames = Arrays.asList(VBoxMetricsAccumulator.METRICS);
+		
+		List<IUnknown> runningMachines = new LinkedList<IUnknown>();
+		List<IUnknown> newMachines = new LinkedList<IUnknown>();
+		Set<String> runningIds = new HashSet<String>();
+		
+		for (IMachine machine : vbox.getMachines()) {
+			MachineState state = machine.getState();
+			if (state != MachineState.Running && state != MachineState.Paused) {
+				continue;
+			}
+			runningMachines.add(machine);
+			runningIds.add(machine.getId());
+			if (!metricsSetUp.contains(machine.getId())) {
+				newMachines.add(machine);
+			}
+		}
+		
+		// VM metrics are registered when the VM starts, so each run is set up once
+		metricsSetUp.retainAll(runningIds);
+		if (!newMachines.isEmpty()) {
+			collector.setupMetrics(metricNames, newMachines, 
+					Long.getLong("vbox.metrics.period", 10), 1L);
+			for (IUnknown machine : newMachines) {
+				metricsSetUp.add(((IMachine) machine).getId());
+			}
+		}
+		
+		if (!runningMachines.isEmpty()) {
+			Holder<List<String>> names = new Holder<List<String>>();
+			Holder<List<IUnknown>> objects = new Holder<List<IUnknown>>();
+			Holder<List<String>> units = new Holder<List<String>>();
+			Holder<List<Long>> scales = new Holder<List<Long>>();
+			Holder<List<Long>> sequenceNumbers = new Holder<List<Long>>();
+			Holder<List<Long>> dataIndices = new Holder<List<Long>>();
+			Holder<List<Long>> dataLengths = new Holder<List<Long>>();
+			
+			List<Integer> data = collector.queryMetricsData(metricNames, runningMachines, 
+					names, objects, units, scales, sequenceNumbers, dataIndices, dataLengths);
+			
+			Map<String, Map<String, Double>> valuesByVM = new HashMap<String, Map<String, Double>>();
+			for (int i = 0; i < names.value.size(); i++) {
+				long length = dataLengths.value.get(i);
+				if (length == 0) {
+					continue;
+				}
+				String vmName = IMachine.queryInterface(objects.value.get(i)).getName();
+				Map<String, Double> values = valuesByVM.get(vmName);
+				if (values == null) {
+					values = new HashMap<String, Double>();
+					valuesByVM.put(vmName, values);
+				}
+				int latest = (int) (dataIndices.value.get(i) + length - 1);
+				values.put(names.value.get(i), 
+						data.get(latest).doubleValue() / scales.value.get(i));
+			}
+			
+			for (Map.Entry<String, Map<String, Double>> vmValues : valuesByVM.entrySet()) {
+				metrics.update(vmValues.getKey(), vmValues.getValue());
+			}
+		}
+		
+		metrics.refreshed();
 	}
 
 	@Override
@@ -747,7 +1372,6 @@ public class VBoxSdkStrategy implements HypervisorStrategy {
 	
 	@Override
 	public NetworkStats getNetworkStats(VirtualMachine registeredVM) throws Exception {
-		String ifName = registeredVM.getProperty(VirtualMachineConstants.BRIDGED_INTERFACE);
-		return LinuxUtils.getNetworkStats(registeredVM, ifName);
+		return getMetrics().getNetworkStats(registeredVM.getName());
 	}
 }
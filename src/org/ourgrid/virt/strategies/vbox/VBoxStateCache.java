@@ -0,0 +1,111 @@
+package org.ourgrid.virt.strategies.vbox;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ourgrid.virt.model.ExecutionResult;
+import org.ourgrid.virt.model.VirtualMachineStatus;
+import org.ourgrid.virt.strategies.HypervisorUtils;
+
+/**
+ * Keeps the state of every virtual machine registered in VirtualBox, as read
+ * by "VBoxManage list vms" and "VBoxManage list runningvms". The states are
+ * shared by all the virtual machines of the host and read again when they are
+ * older than the time to live, set with the vbox.state.ttl property, or when
+ * invalidated after an operation which changes them.
+ */
+class VBoxStateCache {
+
+	private static final long DEFAULT_TTL = 2000;
+	private static final String INACCESSIBLE = "<inaccessible>";
+
+	private final long ttl;
+	private Map<String, VirtualMachineStatus> states;
+	private long lastRefresh;
+
+	VBoxStateCache() {
+		this.ttl = Long.parseLong(System.getProperty(
+				"vbox.state.ttl", String.valueOf(DEFAULT_TTL)));
+	}
+
+	/**
+	 * @return the status of the virtual machine, {@link VirtualMachineStatus#NOT_CREATED}
+	 * if it is not registered
+	 */
+	synchronized VirtualMachineStatus getStatus(String vmName) throws Exception {
+		VirtualMachineStatus status = getStates().get(vmName);
+		return status == null ? VirtualMachineStatus.NOT_CREATED : status;
+	}
+
+	/**
+	 * @return the names of the registered virtual machines, or only of those
+	 * which have a running session
+	 */
+	synchronized List<String> list(boolean onlyRunning) throws Exception {
+		List<String> vms = new LinkedList<String>();
+		for (Map.Entry<String, VirtualMachineStatus> state : getStates().entrySet()) {
+			if (!onlyRunning || state.getValue() == VirtualMachineStatus.RUNNING) {
+				vms.add(state.getKey());
+			}
+		}
+		return vms;
+	}
+
+	/**
+	 * Discards the states, so they are read again on the next call.
+	 */
+	synchronized void invalidate() {
+		states = null;
+	}
+
+	private Map<String, VirtualMachineStatus> getStates() throws Exception {
+		if (states == null || System.nanoTime() - lastRefresh > ttl * 1000000) {
+			List<String> vms = listNames("list vms");
+			Set<String> runningVMs = new HashSet<String>(listNames("list runningvms"));
+
+			states = new LinkedHashMap<String, VirtualMachineStatus>();
+			for (String vmName : vms) {
+				states.put(vmName, runningVMs.contains(vmName) ?
+						VirtualMachineStatus.RUNNING : VirtualMachineStatus.POWERED_OFF);
+			}
+			lastRefresh = System.nanoTime();
+		}
+		return states;
+	}
+
+	private static List<String> listNames(String cmd) throws Exception {
+		ProcessBuilder listBuilder = VBoxStrategy.getProcessBuilder(cmd);
+		ExecutionResult listResult = HypervisorUtils.runProcess(listBuilder);
+		HypervisorUtils.checkReturnValue(listResult);
+		return parse(listResult.getStdOut());
+	}
+
+	/**
+	 * Each virtual machine is listed on a line such as "my vm" {uuid}. Names
+	 * may contain quotes and braces, so the uuid is searched from the end.
+	 * @return the names of the listed virtual machines, except inaccessible ones
+	 */
+	static List<String> parse(List<String> lines) {
+		List<String> vmNames = new LinkedList<String>();
+		for (String line : lines) {
+			line = line.trim();
+			int uuidIndex = line.lastIndexOf(" {");
+			if (uuidIndex < 0 || !line.startsWith("\"")) {
+				continue;
+			}
+			String vmName = line.substring(0, uuidIndex).trim();
+			if (vmName.length() < 2 || !vmName.endsWith("\"")) {
+				continue;
+			}
+			vmName = vmName.substring(1, vmName.length() - 1);
+			if (!vmName.equals(INACCESSIBLE)) {
+				vmNames.add(vmName);
+			}
+		}
+		return vmNames;
+	}
+}
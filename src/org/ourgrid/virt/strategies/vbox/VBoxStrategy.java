@@ -5,19 +5,25 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.ourgrid.virt.exception.SnapshotAlreadyExistsException;
 import org.ourgrid.virt.model.CPUStats;
 import org.ourgrid.virt.model.DiskStats;
 import org.ourgrid.virt.model.ExecutionResult;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.VirtualMachine;
 import org.ourgrid.virt.model.VirtualMachineConstants;
 import org.ourgrid.virt.model.VirtualMachineStatus;
+import org.ourgrid.virt.strategies.HostCapabilities;
 import org.ourgrid.virt.strategies.HypervisorStrategy;
 import org.ourgrid.virt.strategies.HypervisorUtils;
 import org.ourgrid.virt.strategies.LinuxUtils;
@@ -33,7 +39,15 @@ public class VBoxStrategy implements HypervisorStrategy {
 	private static final String VIRTUALBOX_VMS = System.getProperty("user.home") + "/VirtualBox VMs";
 
 	private static final String DISK_CONTROLLER_NAME = "Disk Controller";
+	private static final String HOST_METRICS_OBJECT = "host";
+	private static final String VM_INFO = "VBOX_VM_INFO";
 	private final int START_RECHECK_DELAY = 10;
+	// Shared by all the strategy instances, as the states are host wide
+	private static final VBoxStateCache STATE_CACHE = new VBoxStateCache();
+	
+	private VBoxMetricsAccumulator metrics;
+	private final Set<String> metricsSetUp = new HashSet<String>();
+	private Set<String> queriedVMs = new HashSet<String>();
 
 	@Override
 	public void create(VirtualMachine virtualMachine) throws Exception {
@@ -44,7 +58,21 @@ public class VBoxStrategy implements HypervisorStrategy {
 			return;
 		}
 
+		String template = virtualMachine.getProperty(VirtualMachineConstants.TEMPLATE);
+		if (template != null) {
+			if (status == VirtualMachineStatus.NOT_CREATED) {
+				linkedClone(virtualMachine, template);
+				STATE_CACHE.invalidate();
+				invalidateVmInfo(virtualMachine);
+			}
+			// The clone has the controllers and disks of the template, only its settings are modified
+			modify(virtualMachine);
+			return;
+		}
+
 		register(virtualMachine);
+		STATE_CACHE.invalidate();
+		invalidateVmInfo(virtualMachine);
 		boolean definedSata = define(virtualMachine);
 
 		if (!definedSata) {
@@ -78,6 +106,7 @@ public class VBoxStrategy implements HypervisorStrategy {
 				"\" --port 0 --device 0 --type hdd");
 
 		HypervisorUtils.runAndCheckProcess(attachMediaBuilder);
+		invalidateVmInfo(virtualMachine);
 	}
 
 	/**
@@ -95,15 +124,10 @@ public class VBoxStrategy implements HypervisorStrategy {
 	private boolean define(VirtualMachine virtualMachine)
 			throws Exception {
 
-		String memory = virtualMachine.getProperty(
-				VirtualMachineConstants.MEMORY);
 		String diskType = virtualMachine.getProperty(
 				VirtualMachineConstants.DISK_TYPE);
 
-		ProcessBuilder modifyVMBuilder = getProcessBuilder(
-				"modifyvm " + virtualMachine.getName() + " --memory " + memory + 
-				" --acpi on --boot1 disk --vrde off --pae on");
-		HypervisorUtils.runAndCheckProcess(modifyVMBuilder);
+		modify(virtualMachine);
 
 		ProcessBuilder createControllerBuilder = getProcessBuilder(
 				"storagectl " + virtualMachine.getName() + " --name \"" + DISK_CONTROLLER_NAME + "\" --add " + diskType);
@@ -129,6 +153,58 @@ public class VBoxStrategy implements HypervisorStrategy {
 		return true;
 	}
 
+	/**
+	 * Applies the settings of the virtual machine. The memory is left as it is,
+	 * such as the one of the template of a clone, when it is not configured.
+	 * 
+	 * @param virtualMachine
+	 * @throws Exception
+	 */
+	private void modify(VirtualMachine virtualMachine) throws Exception {
+
+		String memory = virtualMachine.getProperty(
+				VirtualMachineConstants.MEMORY);
+
+		ProcessBuilder modifyVMBuilder = getProcessBuilder(
+				"modifyvm " + virtualMachine.getName() + 
+				(memory == null ? "" : " --memory " + memory) + 
+				" --acpi on --boot1 disk --vrde off --pae on");
+		HypervisorUtils.runAndCheckProcess(modifyVMBuilder);
+		invalidateVmInfo(virtualMachine);
+	}
+
+	/**
+	 * Creates and registers the virtual machine as a linked clone of a snapshot
+	 * of the template. The clone disks are differencing images on top of the
+	 * template disks, so they are created instantly and only hold the changes.
+	 * 
+	 * @param virtualMachine
+	 * @param template the name of the template virtual machine
+	 * @throws Exception if the template has no snapshot or could not be cloned
+	 */
+	private void linkedClone(VirtualMachine virtualMachine, String template)
+			throws Exception {
+
+		String snapshot = virtualMachine.getProperty(
+				VirtualMachineConstants.TEMPLATE_SNAPSHOT);
+
+		if (snapshot == null) {
+			VBoxVmInfo templateInfo = getVmInfo(new VirtualMachine(template));
+			if (templateInfo == null) {
+				throw new Exception("Template [ " + template + " ] is not registered.");
+			}
+			snapshot = templateInfo.getCurrentSnapshotName();
+			if (snapshot == null) {
+				throw new Exception("Template [ " + template + " ] has no snapshot to link to.");
+			}
+		}
+
+		ProcessBuilder cloneProcessBuilder = getProcessBuilder(
+				"clonevm \"" + template + "\" --snapshot \"" + snapshot + "\"" +
+				" --options link --name " + virtualMachine.getName() + " --register");
+		HypervisorUtils.runAndCheckProcess(cloneProcessBuilder);
+	}
+
 	private void register(VirtualMachine virtualMachine)
 			throws Exception {
 
@@ -155,6 +231,8 @@ public class VBoxStrategy implements HypervisorStrategy {
 		}
 
 		startVirtualMachine(virtualMachine);
+		STATE_CACHE.invalidate();
+		invalidateVmInfo(virtualMachine);
 		checkOSStarted(virtualMachine);
 	}
 
@@ -320,6 +398,9 @@ public class VBoxStrategy implements HypervisorStrategy {
 		ProcessBuilder stopProcessBuilder = getProcessBuilder(
 				"controlvm " + virtualMachine.getName() + " poweroff");
 		HypervisorUtils.runAndCheckProcess(stopProcessBuilder);
+		STATE_CACHE.invalidate();
+		invalidateVmInfo(virtualMachine);
+		forgetMetricsSetup(virtualMachine.getName());
 	}
 
 	@Override
@@ -368,6 +449,7 @@ public class VBoxStrategy implements HypervisorStrategy {
 		ProcessBuilder takeSnapshotProcessBuilder = getProcessBuilder(
 				"snapshot " + vMName + " take " + snapshotName);
 		HypervisorUtils.runAndCheckProcess(takeSnapshotProcessBuilder);
+		invalidateVmInfo(virtualMachine);
 
 	}
 
@@ -388,6 +470,8 @@ public class VBoxStrategy implements HypervisorStrategy {
 		ProcessBuilder restoreSnapshotProcessBuilder = getProcessBuilder(
 				"snapshot " + vMName + " restore " + snapshotName);
 		HypervisorUtils.runAndCheckProcess(restoreSnapshotProcessBuilder);
+		STATE_CACHE.invalidate();
+		invalidateVmInfo(virtualMachine);
 	}
 
 	@Override
@@ -407,11 +491,16 @@ public class VBoxStrategy implements HypervisorStrategy {
 		ProcessBuilder destroyProcessBuilder = getProcessBuilder(
 				"unregistervm " + virtualMachine.getName() + " --delete");
 		HypervisorUtils.runProcess(destroyProcessBuilder);
+		STATE_CACHE.invalidate();
+		invalidateVmInfo(virtualMachine);
 		
 		String imagePath = virtualMachine.getProperty(
 				VirtualMachineConstants.DISK_IMAGE_PATH);
+		String template = virtualMachine.getProperty(
+				VirtualMachineConstants.TEMPLATE);
 		
-		if (imagePath != null) {
+		// The disks of linked clones are deleted with them, the image belongs to the template
+		if (imagePath != null && template == null) {
 			String imageName = new File(imagePath).getName();
 			
 			ProcessBuilder destroyDiskBuilder = getProcessBuilder(
@@ -426,7 +515,7 @@ public class VBoxStrategy implements HypervisorStrategy {
 		
 	}
 
-	private static ProcessBuilder getProcessBuilder(
+	static ProcessBuilder getProcessBuilder(
 			String cmd) throws Exception {
 
 		String vboxManageCmdLine = "VBoxManage --nologo " + cmd;
@@ -466,6 +555,7 @@ public class VBoxStrategy implements HypervisorStrategy {
 						" --hostpath \"" + new File(hostPath).getAbsolutePath() + "\"" +
 						" --name " + shareName); 
 		HypervisorUtils.runAndCheckProcess(versionProcessBuilder);
+		invalidateVmInfo(virtualMachine);
 
 	}
 	
@@ -476,6 +566,7 @@ public class VBoxStrategy implements HypervisorStrategy {
 				"sharedfolder remove \"" + virtualMachine.getName() + "\"" + 
 						" --name " + shareName); 
 		ExecutionResult deleteSharedFolderResult = HypervisorUtils.runProcess(versionProcessBuilder);
+		invalidateVmInfo(virtualMachine);
 
 		if (deleteSharedFolderResult.getReturnValue() != ExecutionResult.OK) {
 			// Shared folder already exists
@@ -486,106 +577,74 @@ public class VBoxStrategy implements HypervisorStrategy {
 		}
 	}
 
-	private List<String> list(boolean onlyRunning) throws Exception {
-
-		ProcessBuilder listBuilder = getProcessBuilder(
-				"list " + (onlyRunning ? "runningvms" : "vms"));
-		ExecutionResult listResult = HypervisorUtils.runProcess(listBuilder);
-
-		HypervisorUtils.checkReturnValue(listResult);
-
-		List<String> vmsOutput = listResult.getStdOut();
-		List<String> vms = new LinkedList<String>();
-
-		for (String vmOutputted : vmsOutput) {
-			vms.add(vmOutputted.substring(
-					vmOutputted.indexOf("\"") + 1, vmOutputted.lastIndexOf("\"")));
-		}
-
-		return vms;
-	}
-
 	@Override
 	public List<String> listVMs() throws Exception {
-		return list(false);
+		return STATE_CACHE.list(false);
 	}
 
 	@Override
 	public boolean isSupported() {
-		try {
-			ProcessBuilder versionProcessBuilder = getProcessBuilder("--version");
-			HypervisorUtils.runAndCheckProcess(versionProcessBuilder);
-			return true;
-		} catch (Exception e) {
-			return false;
-		}
+		return HostCapabilities.getInstance().getVBoxManageVersion() != null;
 	}
 
 	@Override
 	public VirtualMachineStatus status(VirtualMachine virtualMachine)
 			throws Exception {
 
-		if (list(true).contains(virtualMachine.getName())) {
-			return VirtualMachineStatus.RUNNING;
-		}
-
-		if (list(false).contains(virtualMachine.getName())) {
-			return VirtualMachineStatus.POWERED_OFF;
-		}
-
-		return VirtualMachineStatus.NOT_CREATED;
+		return STATE_CACHE.getStatus(virtualMachine.getName());
 	}
 
 	@Override
 	public List<String> listSnapshots(VirtualMachine virtualMachine) throws Exception {
-
-		ProcessBuilder startProcessBuilder = getProcessBuilder(
-				"snapshot " + virtualMachine.getName() + " list --machinereadable");
-		ExecutionResult runProcess = HypervisorUtils.runProcess(startProcessBuilder);
-		
-		List<String> snapshots = new LinkedList<String>();
-		
-		if (runProcess.getReturnValue() != 0) {
-			return snapshots;
+		VBoxVmInfo vmInfo = getVmInfo(virtualMachine);
+		if (vmInfo == null) {
+			return new LinkedList<String>();
 		}
-		
-		for (String line : runProcess.getStdOut()) {
-			if (line.startsWith("SnapshotName")) {
-				String snapshotWithQuotes = line.split("=")[1];
-				snapshots.add(snapshotWithQuotes.substring(
-						1, snapshotWithQuotes.length() - 1));
-			}
-		}
-		
-		return snapshots;
+		return vmInfo.getSnapshotNames();
 	}
 	
 	private boolean snapshotExists(VirtualMachine vm, String snapshot) throws Exception {
-		return listSnapshots(vm).contains(snapshot);
+		VBoxVmInfo vmInfo = getVmInfo(vm);
+		return vmInfo != null && vmInfo.hasSnapshot(snapshot);
 	}
 
 	@Override
 	public List<String> listSharedFolders(VirtualMachine virtualMachine) throws Exception {
+		VBoxVmInfo vmInfo = getVmInfo(virtualMachine);
+		if (vmInfo == null) {
+			return new LinkedList<String>();
+		}
+		return new LinkedList<String>(vmInfo.getSharedFolders().keySet());
+	}
 
-		ProcessBuilder startProcessBuilder = getProcessBuilder(
-				"showvminfo " + virtualMachine.getName() + " list --machinereadable");
-		ExecutionResult runProcess = HypervisorUtils.runProcess(startProcessBuilder);
-		
-		List<String> shares = new LinkedList<String>();
-		
-		if (runProcess.getReturnValue() != 0) {
-			return shares;
+	/**
+	 * Reads the configuration of the virtual machine with a single showvminfo call.
+	 * It is kept in the virtual machine properties until one of our operations
+	 * changes it, so later queries do not fork VBoxManage again.
+	 * 
+	 * @return the configuration, or <b>null</b> if the machine is not registered
+	 */
+	private VBoxVmInfo getVmInfo(VirtualMachine virtualMachine) throws Exception {
+		VBoxVmInfo vmInfo = virtualMachine.getProperty(VM_INFO);
+		if (vmInfo != null) {
+			return vmInfo;
 		}
-		
-		for (String line : runProcess.getStdOut()) {
-			if (line.startsWith("SharedFolderName")) {
-				String shareNameWithQuotes = line.split("=")[1];
-				shares.add(shareNameWithQuotes.substring(
-						1, shareNameWithQuotes.length() - 1));
-			}
+
+		ProcessBuilder showVmInfoBuilder = getProcessBuilder(
+				"showvminfo \"" + virtualMachine.getName() + "\" --machinereadable");
+		ExecutionResult showVmInfoResult = HypervisorUtils.runProcess(showVmInfoBuilder);
+
+		if (showVmInfoResult.getReturnValue() != ExecutionResult.OK) {
+			return null;
 		}
-		
-		return shares;
+
+		vmInfo = VBoxVmInfo.parse(showVmInfoResult.getStdOut());
+		virtualMachine.setProperty(VM_INFO, vmInfo);
+		return vmInfo;
+	}
+
+	private void invalidateVmInfo(VirtualMachine virtualMachine) {
+		virtualMachine.setProperty(VM_INFO, null);
 	}
 
 	@Override
@@ -693,16 +752,145 @@ public class VBoxStrategy implements HypervisorStrategy {
 
 	@Override
 	public CPUStats getCPUStats(VirtualMachine virtualMachine) throws Exception {
-		// TODO Auto-generated method stub
-		return null;
+		return getMetrics(virtualMachine.getName()).getCPUStats(virtualMachine.getName());
+	}
+
+	@Override
+	public MemoryStats getMemoryStats(VirtualMachine registeredVM) throws Exception {
+		return getMetrics(registeredVM.getName()).getMemoryStats(registeredVM.getName());
 	}
 
 	@Override
 	public List<DiskStats> getDiskStats(VirtualMachine registeredVM) throws Exception {
-		// TODO Auto-generated method stub
+		// Not supported yet, VirtualBox has no disk I/O metrics
 		return null;
 	}
 
+	/**
+	 * @return the performance metrics of all running VMs, queried again with a single 
+	 * VBoxManage call if the last query is older than {@link VBoxMetricsAccumulator#MAX_AGE}
+	 */
+	private synchronized VBoxMetricsAccumulator getMetrics(String vmName) throws Exception {
+		if (metrics == null) {
+			metrics = new VBoxMetricsAccumulator(Runtime.getRuntime().availableProcessors());
+			setupMetrics("*");
+		}
+		if (metrics.needsRefresh()) {
+			queryMetrics();
+		}
+		
+		// VM metrics are registered when the VM starts, after the initial setup.
+		// Stopped VMs have none to set up, and are left out of the query until restarted.
+		if (!queriedVMs.contains(vmName) && !metricsSetUp.contains(vmName)
+				&& STATE_CACHE.getStatus(vmName) == VirtualMachineStatus.RUNNING) {
+			metricsSetUp.add(vmName);
+			setupMetrics("\"" + vmName + "\"");
+		}
+		return metrics;
+	}
+
+	/**
+	 * Forgets the metrics setup of a stopped VM, as its metrics are unregistered
+	 * and need a new setup once it is restarted.
+	 */
+	private synchronized void forgetMetricsSetup(String vmName) {
+		metricsSetUp.remove(vmName);
+	}
+
+	private void setupMetrics(String object) throws Exception {
+		ProcessBuilder setupBuilder = getProcessBuilder(
+				"metrics setup --period " + Long.getLong("vbox.metrics.period", 10) + 
+				" --samples 1 " + object + " " + getMetricList());
+		HypervisorUtils.runAndCheckProcess(setupBuilder);
+	}
+
+	private void queryMetrics() throws Exception {
+		ProcessBuilder queryBuilder = getProcessBuilder(
+				"metrics query \"*\" " + getMetricList());
+		ExecutionResult queryResult = HypervisorUtils.runProcess(queryBuilder);
+		HypervisorUtils.checkReturnValue(queryResult);
+		
+		Map<String, Map<String, Double>> valuesByVM = parseMetrics(queryResult.getStdOut());
+		for (Map.Entry<String, Map<String, Double>> vmValues : valuesByVM.entrySet()) {
+			if (!vmValues.getValue().isEmpty()) {
+				metrics.update(vmValues.getKey(), vmValues.getValue());
+			}
+		}
+		metrics.refreshed();
+		
+		// VMs which were set up but have not reported yet keep their setup, 
+		// unless they were stopped meanwhile
+		queriedVMs = valuesByVM.keySet();
+		Iterator<String> setUpVMs = metricsSetUp.iterator();
+		while (setUpVMs.hasNext()) {
+			String setUpVM = setUpVMs.next();
+			if (!queriedVMs.contains(setUpVM)
+					&& STATE_CACHE.getStatus(setUpVM) != VirtualMachineStatus.RUNNING) {
+				setUpVMs.remove();
+			}
+		}
+	}
+
+	/**
+	 * Parses the output of <i>VBoxManage metrics query</i>, which has lines such as 
+	 * <i>"myvm            CPU/Load/User             12.50%"</i>. Metric names are searched 
+	 * for, rather than split on blanks, as VM names may contain spaces.
+	 * @return the values of the metrics of each VM, empty for VMs with metrics 
+	 * which have not been collected yet
+	 */
+	private static Map<String, Map<String, Double>> parseMetrics(List<String> lines) {
+		Map<String, Map<String, Double>> valuesByVM = new HashMap<String, Map<String, Double>>();
+		
+		for (String line : lines) {
+			for (String metric : VBoxMetricsAccumulator.METRICS) {
+				int metricIndex = line.indexOf(" " + metric + " ");
+				if (metricIndex < 0) {
+					metricIndex = line.endsWith(" " + metric) ? 
+							line.length() - metric.length() - 1 : -1;
+				}
+				if (metricIndex < 0) {
+					continue;
+				}
+				
+				String object = line.substring(0, metricIndex).trim();
+				if (object.equals(HOST_METRICS_OBJECT)) {
+					break;
+				}
+				Map<String, Double> values = valuesByVM.get(object);
+				if (values == null) {
+					values = new HashMap<String, Double>();
+					valuesByVM.put(object, values);
+				}
+				
+				// Values are listed oldest first, followed by their unit
+				String samples = line.substring(metricIndex + metric.length() + 1).trim();
+				String latest = samples.substring(samples.lastIndexOf(',') + 1).trim();
+				int numberEnd = 0;
+				while (numberEnd < latest.length() && (Character.isDigit(
+						latest.charAt(numberEnd)) || latest.charAt(numberEnd) == '.')) {
+					numberEnd++;
+				}
+				if (numberEnd > 0) {
+					values.put(metric, Double.parseDouble(latest.substring(0, numberEnd)));
+				}
+				break;
+			}
+		}
+		
+		return valuesByVM;
+	}
+
+	private static String getMetricList() {
+		StringBuilder metricList = new StringBuilder();
+		for (String metric : VBoxMetricsAccumulator.METRICS) {
+			if (metricList.length() > 0) {
+				metricList.append(',');
+			}
+			metricList.append(metric);
+		}
+		return metricList.toString();
+	}
+
 	@Override
 	public String attachDevice(VirtualMachine registeredVM, String devName) {
 		return null;
@@ -723,7 +911,6 @@ public class VBoxStrategy implements HypervisorStrategy {
 
 	@Override
 	public NetworkStats getNetworkStats(VirtualMachine registeredVM) throws Exception {
-		String ifName = registeredVM.getProperty(VirtualMachineConstants.BRIDGED_INTERFACE);
-		return LinuxUtils.getNetworkStats(registeredVM, ifName);
+		return getMetrics(registeredVM.getName()).getNetworkStats(registeredVM.getName());
 	}
 }
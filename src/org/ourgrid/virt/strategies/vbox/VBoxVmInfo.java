@@ -0,0 +1,312 @@
+package org.ourgrid.virt.strategies.vbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The configuration of a virtual machine, as printed by
+ * "VBoxManage showvminfo --machinereadable". The output is made of key="value"
+ * lines, where indexed entries such as NICs and snapshots are numbered in the key.
+ */
+public class VBoxVmInfo {
+
+	private static final Pattern NIC_KEY = Pattern.compile("nic(\\d+)");
+	private static final Pattern SNAPSHOT_KEY = Pattern.compile("SnapshotName((?:-\\d+)*)");
+	private static final Pattern ATTACHMENT_SLOT = Pattern.compile("(\\d+)-(\\d+)");
+	private static final String STORAGE_CONTROLLER_KEY = "storagecontrollername";
+	private static final String SHARED_FOLDER_KEY = "SharedFolderName";
+	private static final String SHARED_FOLDER_PATH_KEY = "SharedFolderPath";
+	private static final String EMPTY_SLOT = "none";
+
+	private String name;
+	private String uuid;
+	private String state;
+	private final List<Nic> nics = new ArrayList<Nic>();
+	private final Map<String, String> sharedFolders = new LinkedHashMap<String, String>();
+	private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+	private String currentSnapshotName;
+	private final List<StorageAttachment> storageAttachments = new ArrayList<StorageAttachment>();
+
+	public String getName() {
+		return name;
+	}
+
+	public String getUuid() {
+		return uuid;
+	}
+
+	/**
+	 * @return the state of the machine when the information was read, such as
+	 * "running" or "poweroff". The information is cached until changed by us,
+	 * so the state goes stale when the guest powers itself off; the status of
+	 * a machine is read from {@link VBoxStateCache} instead.
+	 */
+	public String getState() {
+		return state;
+	}
+
+	/**
+	 * @return the enabled network adapters, by slot
+	 */
+	public List<Nic> getNics() {
+		return nics;
+	}
+
+	/**
+	 * @return the host path of each shared folder, by share name
+	 */
+	public Map<String, String> getSharedFolders() {
+		return sharedFolders;
+	}
+
+	/**
+	 * @return the root snapshots, usually a single one, or an empty list
+	 * if the machine has no snapshots
+	 */
+	public List<Snapshot> getSnapshots() {
+		return snapshots;
+	}
+
+	/**
+	 * @return the names of all the snapshots, parents before their children
+	 */
+	public List<String> getSnapshotNames() {
+		List<String> names = new LinkedList<String>();
+		addSnapshotNames(snapshots, names);
+		return names;
+	}
+
+	private static void addSnapshotNames(List<Snapshot> snapshots, List<String> names) {
+		for (Snapshot snapshot : snapshots) {
+			names.add(snapshot.getName());
+			addSnapshotNames(snapshot.getChildren(), names);
+		}
+	}
+
+	public boolean hasSnapshot(String snapshotName) {
+		return getSnapshotNames().contains(snapshotName);
+	}
+
+	public String getCurrentSnapshotName() {
+		return currentSnapshotName;
+	}
+
+	public List<StorageAttachment> getStorageAttachments() {
+		return storageAttachments;
+	}
+
+	/**
+	 * Parses the output of "VBoxManage showvminfo --machinereadable".
+	 */
+	public static VBoxVmInfo parse(List<String> lines) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String line : lines) {
+			parseLine(line, values);
+		}
+
+		VBoxVmInfo info = new VBoxVmInfo();
+		info.name = values.get("name");
+		info.uuid = values.get("UUID");
+		info.state = values.get("VMState");
+		info.currentSnapshotName = values.get("CurrentSnapshotName");
+
+		Map<String, Snapshot> snapshotsByPath = new HashMap<String, Snapshot>();
+		Map<Integer, Nic> nicsBySlot = new TreeMap<Integer, Nic>();
+		List<String> controllers = new LinkedList<String>();
+
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String key = entry.getKey();
+			String value = entry.getValue();
+
+			Matcher nicMatcher = NIC_KEY.matcher(key);
+			Matcher snapshotMatcher = SNAPSHOT_KEY.matcher(key);
+
+			if (nicMatcher.matches() && !value.equals(EMPTY_SLOT)) {
+				String slot = nicMatcher.group(1);
+				Nic nic = new Nic(Integer.parseInt(slot), value, values.get("macaddress" + slot),
+						"on".equals(values.get("cableconnected" + slot)));
+				nicsBySlot.put(nic.getSlot(), nic);
+
+			} else if (snapshotMatcher.matches()) {
+				// Children append their index to the path of their parent,
+				// as in SnapshotName-1-2 for the second child of the first child
+				String path = snapshotMatcher.group(1);
+				Snapshot snapshot = new Snapshot(value, values.get("SnapshotUUID" + path));
+				snapshotsByPath.put(path, snapshot);
+				if (path.isEmpty()) {
+					info.snapshots.add(snapshot);
+				} else {
+					Snapshot parent = snapshotsByPath.get(path.substring(0, path.lastIndexOf('-')));
+					if (parent != null) {
+						parent.children.add(snapshot);
+					}
+				}
+
+			} else if (key.startsWith(SHARED_FOLDER_KEY)) {
+				String pathKey = SHARED_FOLDER_PATH_KEY + key.substring(SHARED_FOLDER_KEY.length());
+				info.sharedFolders.put(value, values.get(pathKey));
+
+			} else if (key.startsWith(STORAGE_CONTROLLER_KEY)) {
+				controllers.add(value);
+			}
+		}
+		info.nics.addAll(nicsBySlot.values());
+
+		// Attachments are keyed as "<controller>-<port>-<device>"
+		for (String controller : controllers) {
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				String key = entry.getKey();
+				if (!key.startsWith(controller + "-") || entry.getValue().equals(EMPTY_SLOT)) {
+					continue;
+				}
+				String slot = key.substring(controller.length() + 1);
+				Matcher slotMatcher = ATTACHMENT_SLOT.matcher(slot);
+				if (slotMatcher.matches()) {
+					info.storageAttachments.add(new StorageAttachment(controller,
+							Integer.parseInt(slotMatcher.group(1)),
+							Integer.parseInt(slotMatcher.group(2)), entry.getValue(),
+							values.get(controller + "-ImageUUID-" + slot)));
+				}
+			}
+		}
+
+		return info;
+	}
+
+	/**
+	 * Splits a line such as name="value" or "quoted name"="value",
+	 * with quotes escaped by a backslash.
+	 */
+	private static void parseLine(String line, Map<String, String> values) {
+		int separator;
+		String key;
+		if (line.startsWith("\"")) {
+			int keyEnd = line.indexOf("\"=", 1);
+			if (keyEnd < 0) {
+				return;
+			}
+			key = line.substring(1, keyEnd);
+			separator = keyEnd + 1;
+		} else {
+			separator = line.indexOf('=');
+			if (separator < 0) {
+				return;
+			}
+			key = line.substring(0, separator);
+		}
+
+		String value = line.substring(separator + 1).trim();
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			value = value.substring(1, value.length() - 1)
+					.replace("\\\"", "\"").replace("\\\\", "\\");
+		}
+		values.put(key, value);
+	}
+
+	public static class Nic {
+
+		private final int slot;
+		private final String type;
+		private final String macAddress;
+		private final boolean cableConnected;
+
+		Nic(int slot, String type, String macAddress, boolean cableConnected) {
+			this.slot = slot;
+			this.type = type;
+			this.macAddress = macAddress;
+			this.cableConnected = cableConnected;
+		}
+
+		public int getSlot() {
+			return slot;
+		}
+
+		/**
+		 * @return the attachment type, such as "nat", "bridged" or "hostonly"
+		 */
+		public String getType() {
+			return type;
+		}
+
+		public String getMacAddress() {
+			return macAddress;
+		}
+
+		public boolean isCableConnected() {
+			return cableConnected;
+		}
+	}
+
+	public static class Snapshot {
+
+		private final String name;
+		private final String uuid;
+		private final List<Snapshot> children = new ArrayList<Snapshot>();
+
+		Snapshot(String name, String uuid) {
+			this.name = name;
+			this.uuid = uuid;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUuid() {
+			return uuid;
+		}
+
+		public List<Snapshot> getChildren() {
+			return children;
+		}
+	}
+
+	public static class StorageAttachment {
+
+		private final String controller;
+		private final int port;
+		private final int device;
+		private final String medium;
+		private final String mediumUuid;
+
+		StorageAttachment(String controller, int port, int device,
+				String medium, String mediumUuid) {
+			this.controller = controller;
+			this.port = port;
+			this.device = device;
+			this.medium = medium;
+			this.mediumUuid = mediumUuid;
+		}
+
+		public String getController() {
+			return controller;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public int getDevice() {
+			return device;
+		}
+
+		/**
+		 * @return the path of the attached medium, or "emptydrive"
+		 * for a removable drive with no medium
+		 */
+		public String getMedium() {
+			return medium;
+		}
+
+		public String getMediumUuid() {
+			return mediumUuid;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package org.ourgrid.virt.strategies.vbox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.virtualbox_4_2.IProgress;
+import org.virtualbox_4_2.IVirtualBox;
+import org.virtualbox_4_2.VirtualBoxManager;
+
+/**
+ * Owns the VirtualBox XPCOM bridge. XPCOM objects are bound to the thread which
+ * created them, so the manager is created by a single owner thread and every
+ * call to VirtualBox is queued to it. At each turn the owner thread runs all the
+ * calls queued meanwhile back to back, then the tasks which must run periodically
+ * on it, such as draining the VirtualBox events.
+ * <p>
+ * Calls made by the owner thread itself, as when a queued call makes another one,
+ * run right away. Long operations are not waited for on the owner thread: their
+ * {@link IProgress} is watched with {@link #watch(IProgress, long, Callable)}, and
+ * the owner thread polls all the watched operations at every turn, so many
+ * operations can run at once without a thread waiting for each of them.
+ */
+class VBoxWorker implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(VBoxWorker.class);
+	private static final long TURN_INTERVAL = 100;
+
+	private final BlockingQueue<FutureTask<?>> queue = new LinkedBlockingQueue<FutureTask<?>>();
+	private final List<Runnable> turnTasks = new CopyOnWriteArrayList<Runnable>();
+	// Only used by the owner thread
+	private final List<Watch> watches = new LinkedList<Watch>();
+	private final Thread thread;
+	private volatile boolean closed;
+
+	private VirtualBoxManager manager;
+	private IVirtualBox vbox;
+
+	/**
+	 * Starts the owner thread and connects to VirtualBox from it.
+	 * @param vboxHome the VirtualBox installation directory
+	 */
+	VBoxWorker(final String vboxHome) throws Exception {
+		this.thread = new Thread(this, "vbox-xpcom-owner");
+		this.thread.setDaemon(true);
+		this.thread.start();
+
+		call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				manager = VirtualBoxManager.createInstance(vboxHome);
+				vbox = manager.getVBox();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @return the manager, to be used by calls running on the owner thread only
+	 */
+	VirtualBoxManager getManager() {
+		return manager;
+	}
+
+	/**
+	 * @return the VirtualBox object, to be used by calls running on the owner thread only
+	 */
+	IVirtualBox getVBox() {
+		return vbox;
+	}
+
+	/**
+	 * Queues a call to the owner thread.
+	 * @return the future result of the call
+	 */
+	<T> Future<T> submit(Callable<T> callable) {
+		FutureTask<T> task = new FutureTask<T>(callable);
+		// Closed under the same lock, so no call is queued after the last drain
+		synchronized (queue) {
+			if (closed) {
+				throw new RejectedExecutionException("The VirtualBox worker is closed");
+			}
+			queue.add(task);
+		}
+		return task;
+	}
+
+	/**
+	 * Runs a call on the owner thread and waits for its result.
+	 * @return the result of the call
+	 * @throws Exception the exception thrown by the call
+	 */
+	<T> T call(Callable<T> callable) throws Exception {
+		if (Thread.currentThread() == thread) {
+			return callable.call();
+		}
+		return get(submit(callable));
+	}
+
+	/**
+	 * Waits for a future of the worker.
+	 * @return the result of the future
+	 * @throws Exception the exception which failed the future
+	 * @throws IllegalStateException if called on the owner thread, which
+	 * completes the futures and must not wait for them
+	 */
+	<T> T get(Future<T> future) throws Exception {
+		checkNotOwnerThread();
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * Waits for a VirtualBox operation to complete, polling its progress from the
+	 * owner thread, so the calling thread is the only one blocked meanwhile.
+	 */
+	void waitForCompletion(IProgress progress) throws Exception {
+		checkNotOwnerThread();
+		get(watch(progress, 0, null));
+	}
+
+	private void checkNotOwnerThread() {
+		if (Thread.currentThread() == thread) {
+			throw new IllegalStateException(
+					"The VirtualBox owner thread must not wait for its own work");
+		}
+	}
+
+	/**
+	 * Watches a VirtualBox operation, to be polled by the owner thread at every
+	 * turn along with all the other watched operations. An operation which does
+	 * not complete before the timeout is cancelled.
+	 * @param timeout in milliseconds, or 0 to wait for the operation indefinitely
+	 * @param onCompletion run on the owner thread once the operation completes, times
+	 * out or the future is cancelled, to check its result and release its resources;
+	 * the future fails with the exception it throws. May be <b>null</b>.
+	 * @return a future completed once the operation completes, or failed with a
+	 * {@link TimeoutException} if it times out
+	 */
+	Future<Void> watch(final IProgress progress, long timeout,
+			final Callable<Void> onCompletion) throws Exception {
+		final Watch watch = new Watch(progress, timeout == 0 ? 0 : System.currentTimeMillis() + timeout,
+				onCompletion);
+		call(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				watches.add(watch);
+				return null;
+			}
+		});
+		return watch.future;
+	}
+
+	private void pollWatches() {
+		long now = System.currentTimeMillis();
+		Iterator<Watch> iterator = watches.iterator();
+		while (iterator.hasNext()) {
+			Watch watch = iterator.next();
+			try {
+				if (watch.future.isCancelled()) {
+					cancel(watch.progress);
+					watch.complete();
+				} else if (watch.progress.getCompleted()) {
+					watch.complete();
+				} else if (watch.deadline > 0 && now > watch.deadline) {
+					cancel(watch.progress);
+					watch.future.fail(new TimeoutException("VirtualBox operation timed out"));
+					watch.complete();
+				} else {
+					continue;
+				}
+			} catch (Exception e) {
+				watch.future.fail(e);
+			}
+			iterator.remove();
+		}
+	}
+
+	private static void cancel(IProgress progress) {
+		if (progress.getCancelable() && !progress.getCompleted()) {
+			progress.cancel();
+		}
+	}
+
+	/**
+	 * Adds a task to be run by the owner thread at every turn.
+	 */
+	void addTurnTask(Runnable task) {
+		turnTasks.add(task);
+	}
+
+	@Override
+	public void run() {
+		List<FutureTask<?>> batch = new ArrayList<FutureTask<?>>();
+		while (!closed) {
+			try {
+				FutureTask<?> first = queue.poll(TURN_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch);
+					for (FutureTask<?> task : batch) {
+						task.run();
+					}
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			if (manager == null) {
+				continue;
+			}
+			try {
+				manager.waitForEvents(0);
+				pollWatches();
+			} catch (Exception e) {
+				LOGGER.warn("VirtualBox worker turn failed", e);
+			}
+			for (Runnable task : turnTasks) {
+				try {
+					task.run();
+				} catch (Exception e) {
+					LOGGER.warn("VirtualBox worker task failed", e);
+				}
+			}
+		}
+
+		synchronized (queue) {
+			closed = true;
+			queue.drainTo(batch);
+		}
+		for (FutureTask<?> task : batch) {
+			task.cancel(false);
+		}
+		for (Watch watch : watches) {
+			watch.future.fail(new RejectedExecutionException("The VirtualBox worker is closed"));
+		}
+		// Cleared, so the interruption of close() does not disturb the cleanup
+		Thread.interrupted();
+		if (manager != null) {
+			manager.cleanup();
+		}
+	}
+
+	/**
+	 * Cancels the queued calls and disconnects from VirtualBox.
+	 */
+	void close() {
+		synchronized (queue) {
+			closed = true;
+		}
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A VirtualBox operation being watched by the owner thread.
+	 */
+	private static class Watch {
+
+		final IProgress progress;
+		final long deadline;
+		final Callable<Void> onCompletion;
+		final VBoxFuture<Void> future = new VBoxFuture<Void>();
+
+		Watch(IProgress progress, long deadline, Callable<Void> onCompletion) {
+			this.progress = progress;
+			this.deadline = deadline;
+			this.onCompletion = onCompletion;
+		}
+
+		void complete() throws Exception {
+			if (onCompletion != null) {
+				onCompletion.call();
+			}
+			future.set(null);
+		}
+	}
+}
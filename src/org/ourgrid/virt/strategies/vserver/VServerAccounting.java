@@ -0,0 +1,340 @@
+package org.ourgrid.virt.strategies.vserver;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.ourgrid.virt.model.CPUStats;
+import org.ourgrid.virt.model.DiskStats;
+import org.ourgrid.virt.model.MemoryStats;
+import org.ourgrid.virt.model.NetworkStats;
+import org.ourgrid.virt.strategies.HostCapabilities;
+
+/**
+ * Reads the kernel accounting of VServer contexts from /proc/virtual/&lt;xid&gt;
+ * and, where the guests are placed in cgroups, from their cpuacct, memory and
+ * blkio controllers. The guests and their running contexts are found from
+ * /etc/vservers and /proc/virtual as well. The files are read directly, with
+ * no sudo process.
+ */
+public class VServerAccounting {
+
+	private static final String VSERVERS_DIR = "/etc/vservers/";
+	private static final String PROC_VIRTUAL_DIR = "/proc/virtual/";
+	private static final String[] CGROUP_ROOTS = {"/sys/fs/cgroup", "/dev/cgroup"};
+	// Limits are accounted in pages, VServer runs on x86 hosts
+	private static final long PAGE_SIZE = 4096;
+
+	/**
+	 * @param vmName the name of the guest
+	 * @return the context id the guest runs in, as written to its run file. Guests
+	 * with a dynamic context get a new one each time they start, so it is read again
+	 * on every call.
+	 * @throws IOException if the guest is not running
+	 */
+	public static int getContextId(String vmName) throws IOException {
+		String xid = readRunningContext(vmName);
+		if (xid == null) {
+			throw new IOException("Guest " + vmName + " is not running.");
+		}
+		try {
+			return Integer.parseInt(xid);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid context for " + vmName + ": " + xid);
+		}
+	}
+
+	/**
+	 * @return the names of the guests configured in /etc/vservers, skipping
+	 * the hidden directories such as .defaults
+	 * @throws IOException if there is no VServer configuration directory
+	 */
+	public static List<String> listGuests() throws IOException {
+		File[] guestDirs = new File(VSERVERS_DIR).listFiles();
+		if (guestDirs == null) {
+			throw new IOException("VServer base directory does not exist.");
+		}
+		List<String> guests = new ArrayList<String>();
+		for (File guestDir : guestDirs) {
+			if (guestDir.isDirectory() && !guestDir.getName().startsWith(".")) {
+				guests.add(guestDir.getName());
+			}
+		}
+		Collections.sort(guests);
+		return guests;
+	}
+
+	/**
+	 * A running guest has the context id it runs in written to its run file,
+	 * /etc/vservers/&lt;name&gt;/run, and the kernel lists the context in
+	 * /proc/virtual. The run file is left behind by guests which died, so the
+	 * context is checked as well.
+	 * @return <b><i>true</b></i> if the context of the guest is running
+	 * @throws IOException if the kernel has no VServer support
+	 */
+	public static boolean isRunning(String vmName) throws IOException {
+		return readRunningContext(vmName) != null;
+	}
+
+	private static String readRunningContext(String vmName) throws IOException {
+		if (!new File(PROC_VIRTUAL_DIR).isDirectory()) {
+			throw new IOException("No VServer support in the kernel, "
+					+ PROC_VIRTUAL_DIR + " does not exist.");
+		}
+		File runFile = new File(VSERVERS_DIR + vmName + "/run");
+		if (!runFile.exists()) {
+			return null;
+		}
+		String xid = readFile(runFile.getPath()).trim();
+		return xid.length() > 0 && new File(PROC_VIRTUAL_DIR + xid).isDirectory() ? xid : null;
+	}
+
+	/**
+	 * Reads the cpu times of the guest from its cpuacct cgroup or, if there is none,
+	 * from the per cpu ticks in /proc/virtual/&lt;xid&gt;/sched.
+	 * @throws IOException if the context is not running
+	 */
+	public static CPUStats getCPUStats(String vmName, int xid) throws IOException {
+		CPUStats cpuStats = new CPUStats();
+		cpuStats.setTimestamp(System.currentTimeMillis());
+		cpuStats.setNanoTime(System.nanoTime());
+		long hz = HostCapabilities.getInstance().getClockTicks();
+
+		File cpuacctStat = getCgroupFile("cpuacct", vmName, "cpuacct.stat");
+		if (cpuacctStat != null) {
+			Map<String, Long> stat = readKeyValues(cpuacctStat.getPath(), ' ');
+			cpuStats.setUserTime(toMillis(stat.get("user"), hz));
+			cpuStats.setSystemTime(toMillis(stat.get("system"), hz));
+			// The usage is in ns and more precise than the ticks
+			File cpuacctUsage = getCgroupFile("cpuacct", vmName, "cpuacct.usage");
+			cpuStats.setCpuTime(cpuacctUsage == null ?
+					cpuStats.getUserTime() + cpuStats.getSystemTime() :
+					Long.parseLong(readFile(cpuacctUsage.getPath()).trim()) / 1000000);
+			return cpuStats;
+		}
+
+		// Lines such as "cpu 0: 3136 1164 0 0 0", with user, system and hold ticks
+		long userTicks = 0;
+		long systemTicks = 0;
+		for (String line : readLines(PROC_VIRTUAL_DIR + xid + "/sched")) {
+			if (!line.startsWith("cpu ")) {
+				continue;
+			}
+			String[] ticks = line.substring(line.indexOf(':') + 1).trim().split("\\s+");
+			userTicks += Long.parseLong(ticks[0]);
+			systemTicks += Long.parseLong(ticks[1]);
+		}
+		cpuStats.setUserTime(userTicks * 1000 / hz);
+		cpuStats.setSystemTime(systemTicks * 1000 / hz);
+		cpuStats.setCpuTime(cpuStats.getUserTime() + cpuStats.getSystemTime());
+		return cpuStats;
+	}
+
+	/**
+	 * Reads the resident memory of the context from /proc/virtual/&lt;xid&gt;/limit,
+	 * completed with the cache and swap usage of its memory cgroup, if any.
+	 * @throws IOException if the context is not running
+	 */
+	public static MemoryStats getMemoryStats(String vmName, int xid) throws IOException {
+		MemoryStats memoryStats = new MemoryStats();
+		memoryStats.setTimestamp(System.currentTimeMillis());
+		memoryStats.setNanoTime(System.nanoTime());
+
+		// Lines such as "RSS:  12345  0/12400  -1/-1  0", starting with the current value
+		Map<String, Long> limits = readKeyValues(PROC_VIRTUAL_DIR + xid + "/limit", ':');
+		Long rssPages = limits.get("RSS");
+		if (rssPages != null) {
+			memoryStats.setResidentMemory(rssPages * PAGE_SIZE);
+		}
+
+		File memoryStat = getCgroupFile("memory", vmName, "memory.stat");
+		if (memoryStat != null) {
+			Map<String, Long> stat = readKeyValues(memoryStat.getPath(), ' ');
+			if (stat.containsKey("cache")) {
+				memoryStats.setGuestCachedMemory(stat.get("cache"));
+			}
+			if (stat.containsKey("swap")) {
+				memoryStats.setSwappedMemory(stat.get("swap"));
+			}
+		}
+		return memoryStats;
+	}
+
+	/**
+	 * Reads the traffic of the context from /proc/virtual/&lt;xid&gt;/cacct, summing
+	 * the IPv4 and IPv6 socket accounting. Packets failed to be sent are counted
+	 * as transfer errors.
+	 * @throws IOException if the context is not running
+	 */
+	public static NetworkStats getNetworkStats(String vmName, int xid) throws IOException {
+		NetworkStats networkStats = new NetworkStats();
+		networkStats.setDeviceName(vmName);
+		networkStats.setTimestamp(System.currentTimeMillis());
+		networkStats.setNanoTime(System.nanoTime());
+
+		// Lines such as "INET:  104/18592  97/9120  0/0", with received, sent and
+		// failed packets/bytes
+		for (String line : readLines(PROC_VIRTUAL_DIR + xid + "/cacct")) {
+			if (!line.startsWith("INET:") && !line.startsWith("INET6:")) {
+				continue;
+			}
+			String[] counters = line.substring(line.indexOf(':') + 1).trim().split("[\\s/]+");
+			networkStats.setReceivedPackets(networkStats.getReceivedPackets()
+					+ Long.parseLong(counters[0]));
+			networkStats.setReceivedBytes(networkStats.getReceivedBytes()
+					+ Long.parseLong(counters[1]));
+			networkStats.setTransferredPackets(networkStats.getTransferredPackets()
+					+ Long.parseLong(counters[2]));
+			networkStats.setTransferredBytes(networkStats.getTransferredBytes()
+					+ Long.parseLong(counters[3]));
+			networkStats.setTransferredErrors(networkStats.getTransferredErrors()
+					+ Long.parseLong(counters[4]));
+		}
+		return networkStats;
+	}
+
+	/**
+	 * Reads the I/O of the guest on each block device from its blkio cgroup.
+	 * @return the stats of each device, empty if the guest has no blkio cgroup
+	 * @throws IOException if the cgroup files cannot be read
+	 */
+	public static List<DiskStats> getDiskStats(String vmName) throws IOException {
+		File serviced = getCgroupFile("blkio", vmName, "blkio.io_serviced");
+		if (serviced == null) {
+			return new ArrayList<DiskStats>();
+		}
+		File dir = serviced.getParentFile();
+		long timestamp = System.currentTimeMillis();
+		long nanoTime = System.nanoTime();
+
+		// Lines such as "8:0 Read 1234", per device and operation
+		Map<String, DiskStats> disksStats = new LinkedHashMap<String, DiskStats>();
+		for (String[] entry : readBlkioEntries(serviced)) {
+			DiskStats diskStats = getDiskStats(disksStats, entry[0], timestamp, nanoTime);
+			if (entry[1].equals("Read")) {
+				diskStats.setReadOps(Long.parseLong(entry[2]));
+			} else if (entry[1].equals("Write")) {
+				diskStats.setWriteOps(Long.parseLong(entry[2]));
+			}
+		}
+		for (String[] entry : readBlkioEntries(new File(dir, "blkio.io_service_bytes"))) {
+			DiskStats diskStats = getDiskStats(disksStats, entry[0], timestamp, nanoTime);
+			if (entry[1].equals("Read")) {
+				diskStats.setReadBytes(Long.parseLong(entry[2]));
+			} else if (entry[1].equals("Write")) {
+				diskStats.setWriteBytes(Long.parseLong(entry[2]));
+			}
+		}
+		File serviceTime = new File(dir, "blkio.io_service_time");
+		if (serviceTime.exists()) {
+			// Service times are in ns
+			for (String[] entry : readBlkioEntries(serviceTime)) {
+				DiskStats diskStats = getDiskStats(disksStats, entry[0], timestamp, nanoTime);
+				if (entry[1].equals("Read")) {
+					diskStats.setReadTotalTime(Long.parseLong(entry[2]) / 1000);
+				} else if (entry[1].equals("Write")) {
+					diskStats.setWriteTotalTime(Long.parseLong(entry[2]) / 1000);
+				}
+			}
+		}
+		return new ArrayList<DiskStats>(disksStats.values());
+	}
+
+	private static List<String[]> readBlkioEntries(File file) throws IOException {
+		List<String[]> entries = new ArrayList<String[]>();
+		for (String line : readLines(file.getPath())) {
+			String[] entry = line.split("\\s+");
+			// Skips the overall "Total 1234" line
+			if (entry.length == 3) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	private static DiskStats getDiskStats(Map<String, DiskStats> disksStats,
+			String device, long timestamp, long nanoTime) {
+		DiskStats diskStats = disksStats.get(device);
+		if (diskStats == null) {
+			diskStats = new DiskStats();
+			diskStats.setDeviceName(device);
+			diskStats.setTimestamp(timestamp);
+			diskStats.setNanoTime(nanoTime);
+			disksStats.put(device, diskStats);
+		}
+		return diskStats;
+	}
+
+	/**
+	 * Looks for a control file of the guest cgroup, either in a per controller
+	 * hierarchy, as in /sys/fs/cgroup/blkio/&lt;name&gt;, or in the single hierarchy
+	 * mounted by util-vserver, as in /dev/cgroup/&lt;name&gt;. The root can be set
+	 * with the vserver.cgroup.root property.
+	 * @return the control file, or <b>null</b> if the guest has no such cgroup
+	 */
+	private static File getCgroupFile(String controller, String vmName, String fileName) {
+		String configuredRoot = System.getProperty("vserver.cgroup.root");
+		String[] roots = configuredRoot == null ? CGROUP_ROOTS : new String[] {configuredRoot};
+		for (String root : roots) {
+			File file = new File(root + "/" + controller + "/" + vmName, fileName);
+			if (file.exists()) {
+				return file;
+			}
+			file = new File(root + "/" + vmName, fileName);
+			if (file.exists()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private static long toMillis(Long ticks, long hz) {
+		return ticks == null ? 0 : ticks * 1000 / hz;
+	}
+
+	/**
+	 * Parses files made of "key value ..." lines, keeping the first value.
+	 */
+	private static Map<String, Long> readKeyValues(String path, char separator)
+			throws IOException {
+		Map<String, Long> keyValues = new HashMap<String, Long>();
+		for (String line : readLines(path)) {
+			int separatorIndex = line.indexOf(separator);
+			if (separatorIndex < 0) {
+				continue;
+			}
+			String[] value = line.substring(separatorIndex + 1).trim().split("[\\s/]+");
+			try {
+				keyValues.put(line.substring(0, separatorIndex).trim(), Long.parseLong(value[0]));
+			} catch (NumberFormatException e) {
+				// Not a numeric entry, such as headers
+			}
+		}
+		return keyValues;
+	}
+
+	private static String readFile(String path) throws IOException {
+		FileReader reader = new FileReader(path);
+		try {
+			return IOUtils.toString(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static List<String> readLines(String path) throws IOException {
+		FileReader reader = new FileReader(path);
+		try {
+			return IOUtils.readLines(reader);
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -3,7 +3,6 @@ package org.ourgrid.virt.strategies.vserver;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -11,10 +10,12 @@ import java.util.Map;
 import org.ourgrid.virt.model.CPUStats;
 import org.ourgrid.virt.model.DiskStats;
 import org.ourgrid.virt.model.ExecutionResult;
+import org.ourgrid.virt.model.MemoryStats;
 import org.ourgrid.virt.model.NetworkStats;
 import org.ourgrid.virt.model.VirtualMachine;
 import org.ourgrid.virt.model.VirtualMachineConstants;
 import org.ourgrid.virt.model.VirtualMachineStatus;
+import org.ourgrid.virt.strategies.HostCapabilities;
 import org.ourgrid.virt.strategies.HypervisorStrategy;
 import org.ourgrid.virt.strategies.HypervisorUtils;
 import org.ourgrid.virt.strategies.LinuxUtils;
@@ -23,7 +24,6 @@ public class VServerStrategy implements HypervisorStrategy {
 
 	private static final String SUDO = "/usr/bin/sudo";
 	
-	private static final int VSERVER_STOPPED_EXIT_VALUE = 3;
 	private static final int START_RECHECK_DELAY = 10;
 	private static final int CONTEXT_RANGE_INITIAL= 2;
 	private static final int CONTEXT_RANGE = 49151 - CONTEXT_RANGE_INITIAL;
@@ -343,26 +343,12 @@ public class VServerStrategy implements HypervisorStrategy {
 
 	@Override
 	public List<String> listVMs() throws Exception {
-		ProcessBuilder listBuilder = getVServerProcessBuilder("ls /etc/vservers/");
-		ExecutionResult listResult = HypervisorUtils.runProcess(listBuilder);
-
-		HypervisorUtils.checkReturnValue(listResult);
-
-		List<String> vmsOutput = listResult.getStdOut();
-		String[] vms = vmsOutput.get(0).split(" {1,}+");
-
-		return Arrays.asList(vms);
+		return VServerAccounting.listGuests();
 	}
 
 	@Override
 	public boolean isSupported() {
-		try {
-			ProcessBuilder versionProcessBuilder = getVServerProcessBuilder("--version");
-			HypervisorUtils.runAndCheckProcess(versionProcessBuilder);
-			return true;
-		} catch (Exception e) {
-			return false;
-		}
+		return HostCapabilities.getInstance().getVServerVersion() != null;
 	}
 
 	@Override
@@ -375,23 +361,10 @@ public class VServerStrategy implements HypervisorStrategy {
 			return VirtualMachineStatus.NOT_CREATED;
 		}
 
-		ProcessBuilder statusProcess = getVMProcessBuilder(virtualMachine,
-				"status");
-		ExecutionResult statusInfo = HypervisorUtils.runProcess(statusProcess);
-
-		if (statusInfo.getReturnValue() != ExecutionResult.OK) {
-			if (statusInfo.getReturnValue() != VSERVER_STOPPED_EXIT_VALUE) {
-				throw new Exception(statusInfo.getStdErr().toString());
-			}
-		}
-
-		String status = statusInfo.getStdOut().get(0);
-		if (status.contains("running")) {
+		if (VServerAccounting.isRunning(virtualMachine.getName())) {
 			return VirtualMachineStatus.RUNNING;
-		} else if (status.contains("stopped")) {
-			return VirtualMachineStatus.POWERED_OFF;
 		}
-		return VirtualMachineStatus.NOT_REGISTERED;
+		return VirtualMachineStatus.POWERED_OFF;
 	}
 
 	@Override
@@ -530,14 +503,23 @@ public class VServerStrategy implements HypervisorStrategy {
 
 	@Override
 	public CPUStats getCPUStats(VirtualMachine virtualMachine) throws Exception {
-		// TODO Auto-generated method stub
-		return null;
+		return VServerAccounting.getCPUStats(virtualMachine.getName(), 
+				getContextId(virtualMachine));
+	}
+
+	@Override
+	public MemoryStats getMemoryStats(VirtualMachine registeredVM) throws Exception {
+		return VServerAccounting.getMemoryStats(registeredVM.getName(), 
+				getContextId(registeredVM));
 	}
 
 	@Override
 	public List<DiskStats> getDiskStats(VirtualMachine registeredVM) throws Exception {
-		// TODO Auto-generated method stub
-		return null;
+		return VServerAccounting.getDiskStats(registeredVM.getName());
+	}
+
+	private int getContextId(VirtualMachine virtualMachine) throws Exception {
+		return VServerAccounting.getContextId(virtualMachine.getName());
 	}
 
 	@Override
@@ -560,8 +542,8 @@ public class VServerStrategy implements HypervisorStrategy {
 
 	@Override
 	public NetworkStats getNetworkStats(VirtualMachine registeredVM) throws Exception {
-		String ifName = registeredVM.getProperty(VirtualMachineConstants.BRIDGED_INTERFACE);
-		return LinuxUtils.getNetworkStats(registeredVM, ifName);
+		return VServerAccounting.getNetworkStats(registeredVM.getName(), 
+				getContextId(registeredVM));
 	}
 
 }